@@ -0,0 +1,143 @@
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The BoundsTask class finds the smallest box holding a range of particles.
+ * Like a ForceTask, it keeps splitting itself in half until the range is no
+ * larger than the chunk size. Each half finds the box around its own
+ * particles, and the two boxes are then merged into one.
+ *
+ * @author Christopher Glasz
+ */
+public class BoundsTask extends RecursiveAction {
+
+	/**
+	 * The version of the class, for serialization
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The particles the box is found for
+	 */
+	private ParticleStore particles;
+
+	/**
+	 * The index of the first particle in this task's range
+	 */
+	private int start;
+
+	/**
+	 * The index one past the last particle in this task's range
+	 */
+	private int end;
+
+	/**
+	 * The lowest and highest coordinates of the particles in the range
+	 */
+	private double minX, maxX, minY, maxY, minZ, maxZ;
+
+	/**
+	 * The constructor creates a task covering the given range of particles
+	 *
+	 * @param particles
+	 * @param start
+	 * @param end
+	 */
+	public BoundsTask(ParticleStore particles, int start, int end) {
+		this.particles = particles;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Finds the box around the task's particles, splitting the work in two if
+	 * there is more than one chunk of it
+	 */
+	protected void compute() {
+		if (end - start <= Math.max(Universe.chunkSize, 1)) {
+			measure();
+		} else {
+			int middle = (start + end) >>> 1;
+			BoundsTask low = new BoundsTask(particles, start, middle);
+			BoundsTask high = new BoundsTask(particles, middle, end);
+			invokeAll(low, high);
+			minX = Math.min(low.minX, high.minX);
+			maxX = Math.max(low.maxX, high.maxX);
+			minY = Math.min(low.minY, high.minY);
+			maxY = Math.max(low.maxY, high.maxY);
+			minZ = Math.min(low.minZ, high.minZ);
+			maxZ = Math.max(low.maxZ, high.maxZ);
+		}
+	}
+
+	/**
+	 * Finds the box around the task's particles on this thread alone. An
+	 * empty range leaves a box with its lowest coordinates above its highest.
+	 */
+	public void measure() {
+		double[] x = particles.x, y = particles.y, z = particles.z;
+		minX = minY = minZ = Double.POSITIVE_INFINITY;
+		maxX = maxY = maxZ = Double.NEGATIVE_INFINITY;
+		for (int i = start; i < end; i++) {
+			minX = Math.min(minX, x[i]);
+			maxX = Math.max(maxX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxY = Math.max(maxY, y[i]);
+			minZ = Math.min(minZ, z[i]);
+			maxZ = Math.max(maxZ, z[i]);
+		}
+	}
+
+	/**
+	 * Returns the lowest x value of the particles
+	 *
+	 * @return the lowest x value
+	 */
+	public double getMinX() {
+		return minX;
+	}
+
+	/**
+	 * Returns the highest x value of the particles
+	 *
+	 * @return the highest x value
+	 */
+	public double getMaxX() {
+		return maxX;
+	}
+
+	/**
+	 * Returns the lowest y value of the particles
+	 *
+	 * @return the lowest y value
+	 */
+	public double getMinY() {
+		return minY;
+	}
+
+	/**
+	 * Returns the highest y value of the particles
+	 *
+	 * @return the highest y value
+	 */
+	public double getMaxY() {
+		return maxY;
+	}
+
+	/**
+	 * Returns the lowest z value of the particles
+	 *
+	 * @return the lowest z value
+	 */
+	public double getMinZ() {
+		return minZ;
+	}
+
+	/**
+	 * Returns the highest z value of the particles
+	 *
+	 * @return the highest z value
+	 */
+	public double getMaxZ() {
+		return maxZ;
+	}
+}
@@ -0,0 +1,125 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The BusyTimes class adds up how long each thread spends on a piece of
+ * parallel work, so that it can be seen how evenly the work was spread. Every
+ * thread that reports time is handed the next free entry the first time it
+ * reports during a round of work, so the entries stay packed together no
+ * matter how the pool numbers its threads. A thread that comes along once
+ * every entry is taken shares the last one.
+ *
+ * @author Christopher Glasz
+ */
+public class BusyTimes {
+
+	/**
+	 * The time, in nanoseconds, each entry's thread has spent working
+	 */
+	private AtomicLongArray times;
+
+	/**
+	 * The next entry to hand out
+	 */
+	private AtomicInteger next;
+
+	/**
+	 * The number of the current round of work. A thread's entry is only
+	 * good for the round it was handed out in.
+	 */
+	private volatile int round;
+
+	/**
+	 * The round each thread was last handed an entry in, and the entry
+	 */
+	private ThreadLocal<int[]> entry;
+
+	/**
+	 * The number of threads the work is meant to be spread over
+	 */
+	private int threads;
+
+	/**
+	 * Constructor sets up an entry for each of the given number of threads,
+	 * and one more for a thread outside the pool that helps with the work
+	 *
+	 * @param threads
+	 */
+	public BusyTimes(int threads) {
+		this.threads = threads;
+		times = new AtomicLongArray(threads + 1);
+		next = new AtomicInteger();
+		entry = new ThreadLocal<int[]>() {
+			protected int[] initialValue() {
+				return new int[] { -1, 0 };
+			}
+		};
+	}
+
+	/**
+	 * Returns the number of threads the work is meant to be spread over
+	 *
+	 * @return the number of threads
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Starts a new round of work, with every entry at zero and none handed
+	 * out. It must not be called while threads are still reporting.
+	 */
+	public void reset() {
+		for (int i = 0; i < times.length(); i++)
+			times.set(i, 0);
+		next.set(0);
+		round++;
+	}
+
+	/**
+	 * Adds the given time to the entry of the thread calling
+	 *
+	 * @param nanos
+	 */
+	public void add(long nanos) {
+		int[] mine = entry.get();
+		if (mine[0] != round) {
+			mine[0] = round;
+			mine[1] = Math.min(next.getAndIncrement(), times.length() - 1);
+		}
+		times.addAndGet(mine[1], nanos);
+	}
+
+	/**
+	 * Returns the time, in nanoseconds, each thread has spent working this
+	 * round, in the order the threads first reported
+	 *
+	 * @return the busy time of each thread
+	 */
+	public long[] getTimes() {
+		long[] copy = new long[Math.min(next.get(), times.length())];
+		for (int i = 0; i < copy.length; i++)
+			copy[i] = times.get(i);
+		return copy;
+	}
+
+	/**
+	 * Returns how evenly the work was spread this round: the average busy
+	 * time over the longest, where the average is taken over the threads the
+	 * work was meant for, or over every thread that worked if there were
+	 * more of them
+	 *
+	 * @return the load balance, from 0 to 1, or 0 if nothing was timed
+	 */
+	public double getLoadBalance() {
+		long[] busy = getTimes();
+		long total = 0, longest = 0;
+		for (int i = 0; i < busy.length; i++) {
+			total += busy[i];
+			longest = Math.max(longest, busy[i]);
+		}
+		if (longest == 0)
+			return 0;
+		return (double) total / (Math.max(threads, busy.length) * longest);
+	}
+}
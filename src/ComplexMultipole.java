@@ -0,0 +1,677 @@
+import java.util.Arrays;
+
+/**
+ * The ComplexMultipole class computes the forces between the particles of a
+ * Quadtree with the fast multipole method, in the same way as the
+ * FastMultipole class does for an Octree, but with its expansions written in
+ * terms of complex numbers.
+ *
+ * A point on the plane is taken as the complex number z = x + iy. Any
+ * function of x and y can then be written as a power series in z and its
+ * conjugate, and since the potential is real, the coefficient of z^a
+ * conj(z)^b is the conjugate of the coefficient of z^b conj(z)^a. Only the
+ * terms with a >= b are kept, which makes for half as many terms as a series
+ * in x and y, and every shift and translation is done in complex arithmetic.
+ *
+ * As in the FastMultipole class, each pair of nodes is only met once, and
+ * works both ways.
+ *
+ * The potential of the force law G / (r^2 + epsilon) is not the logarithm of
+ * classic two dimensional multipole expansions, so the series runs over both
+ * z and its conjugate rather than over z alone.
+ *
+ * @author Christopher Glasz
+ */
+public class ComplexMultipole {
+
+	/**
+	 * The tree the forces are computed over
+	 */
+	private Quadtree tree;
+
+	/**
+	 * The particles the tree is populated with
+	 */
+	private ParticleStore particles;
+
+	/**
+	 * The highest total power kept in the expansions
+	 */
+	private int order;
+
+	/**
+	 * The number of terms kept in each expansion
+	 */
+	private int terms;
+
+	/**
+	 * The powers of z and of its conjugate in each kept term. Terms are listed
+	 * by their total power, lowest first.
+	 */
+	private int[] powerZ, powerConjugate;
+
+	/**
+	 * The index of the kept term with the given powers of z and its
+	 * conjugate, whichever way around they are kept
+	 */
+	private int[] index;
+
+	/**
+	 * The number of kept terms with each total power or lower
+	 */
+	private int[] termsUpTo;
+
+	/**
+	 * The terms touched by each step of a multipole to multipole shift: the
+	 * term added to, the term of the child, and the power of the shift
+	 */
+	private int[] m2mTarget, m2mSource, m2mPower;
+
+	/**
+	 * Whether the child term and the power of each step of a multipole to
+	 * multipole shift are conjugated (-1) or not (1)
+	 */
+	private double[] m2mSourceSign, m2mPowerSign;
+
+	/**
+	 * The terms touched by each step of a local to local shift
+	 */
+	private int[] l2lTarget, l2lSource, l2lPower;
+
+	/**
+	 * Whether the parent term and the power of each step of a local to local
+	 * shift are conjugated, and the factor the step is multiplied by
+	 */
+	private double[] l2lSourceSign, l2lPowerSign, l2lFactor;
+
+	/**
+	 * The terms touched by each step of a multipole to local translation: the
+	 * local term added to, the multipole term, and the derivative they meet at
+	 */
+	private int[] m2lTarget, m2lSource, m2lDerivative;
+
+	/**
+	 * Whether the multipole term and the derivative of each step of a
+	 * multipole to local translation are conjugated, and the factor the step
+	 * is multiplied by, sign included
+	 */
+	private double[] m2lSourceSign, m2lDerivativeSign, m2lFactor;
+
+	/**
+	 * The factor of each step of the translation when it is run the other
+	 * way, from the target to the source
+	 */
+	private double[] m2lMirror;
+
+	/**
+	 * The real and imaginary parts of the multipole expansion of each node,
+	 * one run of terms per node
+	 */
+	private double[] multipoleRe, multipoleIm;
+
+	/**
+	 * The real and imaginary parts of the local expansion of each node, one
+	 * run of terms per node
+	 */
+	private double[] localRe, localIm;
+
+	/**
+	 * The distance from each node's center of mass to its farthest particle
+	 */
+	private double[] radius;
+
+	/**
+	 * Scratch space for the Taylor coefficients of the kernel and of its
+	 * derivatives with respect to the squared distance
+	 */
+	private double[] derivativesRe, derivativesIm;
+
+	/**
+	 * Scratch space for the derivatives of the kernel with respect to the
+	 * squared distance
+	 */
+	private double[] kernel;
+
+	/**
+	 * Scratch space for the derivatives of u^(-1/2) and (u + epsilon)^-1
+	 */
+	private double[] roots, softs;
+
+	/**
+	 * Scratch space for the kept powers of a displacement
+	 */
+	private double[] powersRe, powersIm;
+
+	/**
+	 * Scratch space for the powers of a displacement taken as a single
+	 * complex number
+	 */
+	private double[] sequenceRe, sequenceIm;
+
+	/**
+	 * Default constructor should never be used
+	 */
+	public ComplexMultipole() {
+	}
+
+	/**
+	 * Constructor sets up the method for the given tree, keeping terms of the
+	 * expansions up to the given order
+	 *
+	 * @param tree
+	 * @param particles
+	 * @param order
+	 */
+	public ComplexMultipole(Quadtree tree, ParticleStore particles, int order) {
+		this.tree = tree;
+		this.particles = particles;
+		this.order = Math.max(order, 1);
+		makeTerms();
+		makeShifts();
+		multipoleRe = new double[0];
+		multipoleIm = new double[0];
+		localRe = new double[0];
+		localIm = new double[0];
+		radius = new double[0];
+		derivativesRe = new double[(this.order + 1) * terms];
+		derivativesIm = new double[(this.order + 1) * terms];
+		kernel = new double[this.order + 1];
+		roots = new double[this.order];
+		softs = new double[this.order];
+		powersRe = new double[terms];
+		powersIm = new double[terms];
+		sequenceRe = new double[this.order + 1];
+		sequenceIm = new double[this.order + 1];
+	}
+
+	/**
+	 * Lists the kept terms of an expansion
+	 */
+	private void makeTerms() {
+		index = new int[(order + 1) * (order + 1)];
+		termsUpTo = new int[order + 1];
+		int t = 0;
+		for (int n = 0; n <= order; n++) {
+			for (int b = 0; b <= n / 2; b++)
+				t++;
+			termsUpTo[n] = t;
+		}
+		terms = t;
+		powerZ = new int[terms];
+		powerConjugate = new int[terms];
+
+		t = 0;
+		for (int n = 0; n <= order; n++) {
+			for (int b = 0; b <= n / 2; b++) {
+				int a = n - b;
+				powerZ[t] = a;
+				powerConjugate[t] = b;
+				index[a * (order + 1) + b] = t;
+				index[b * (order + 1) + a] = t;
+				t++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the kept term holding the given powers of z and its conjugate
+	 *
+	 * @param a
+	 * @param b
+	 * @return the kept term with the given powers, or with them swapped
+	 */
+	private int find(int a, int b) {
+		return index[a * (order + 1) + b];
+	}
+
+	/**
+	 * Returns -1 if the term with the given powers of z and its conjugate is
+	 * kept as the conjugate of its mirror image, and 1 if it is kept as it is
+	 *
+	 * @param a
+	 * @param b
+	 * @return the sign of the imaginary part of the term as it is kept
+	 */
+	private static double sign(int a, int b) {
+		return a >= b ? 1 : -1;
+	}
+
+	/**
+	 * Lists the steps of each kind of shift and translation, so they can be
+	 * carried out as a single loop over plain arrays. The kept terms gather
+	 * from every term, kept or not, by way of the conjugates.
+	 */
+	private void makeShifts() {
+		int shiftSteps = 0, l2lSteps = 0, translateSteps = 0;
+		for (int t = 0; t < terms; t++) {
+			int a = powerZ[t], b = powerConjugate[t];
+			shiftSteps += (a + 1) * (b + 1);
+			for (int c = 0; c + a + b <= order; c++) {
+				for (int e = 0; c + e + a + b <= order; e++) {
+					l2lSteps++;
+					if (a + b >= 1)
+						translateSteps++;
+				}
+			}
+		}
+
+		m2mTarget = new int[shiftSteps];
+		m2mSource = new int[shiftSteps];
+		m2mPower = new int[shiftSteps];
+		m2mSourceSign = new double[shiftSteps];
+		m2mPowerSign = new double[shiftSteps];
+		int k = 0;
+		for (int t = 0; t < terms; t++) {
+			int a = powerZ[t], b = powerConjugate[t];
+			for (int c = 0; c <= a; c++) {
+				for (int e = 0; e <= b; e++) {
+					m2mTarget[k] = t;
+					m2mSource[k] = find(c, e);
+					m2mSourceSign[k] = sign(c, e);
+					m2mPower[k] = find(a - c, b - e);
+					m2mPowerSign[k] = sign(a - c, b - e);
+					k++;
+				}
+			}
+		}
+
+		l2lTarget = new int[l2lSteps];
+		l2lSource = new int[l2lSteps];
+		l2lPower = new int[l2lSteps];
+		l2lSourceSign = new double[l2lSteps];
+		l2lPowerSign = new double[l2lSteps];
+		l2lFactor = new double[l2lSteps];
+		m2lTarget = new int[translateSteps];
+		m2lSource = new int[translateSteps];
+		m2lDerivative = new int[translateSteps];
+		m2lSourceSign = new double[translateSteps];
+		m2lDerivativeSign = new double[translateSteps];
+		m2lFactor = new double[translateSteps];
+		m2lMirror = new double[translateSteps];
+		k = 0;
+		int l = 0;
+		for (int t = 0; t < terms; t++) {
+			int a = powerZ[t], b = powerConjugate[t];
+			for (int c = 0; c + a + b <= order; c++) {
+				for (int e = 0; c + e + a + b <= order; e++) {
+
+					// A local term gathers the higher terms of the parent
+					l2lTarget[k] = t;
+					l2lSource[k] = find(a + c, b + e);
+					l2lSourceSign[k] = sign(a + c, b + e);
+					l2lPower[k] = find(c, e);
+					l2lPowerSign[k] = sign(c, e);
+					l2lFactor[k] = factorial(a + c) * factorial(b + e)
+							/ (factorial(a) * factorial(b));
+					k++;
+
+					// A local term gathers every multipole term it can be
+					// paired with
+					if (a + b >= 1) {
+						m2lTarget[l] = t;
+						m2lSource[l] = find(c, e);
+						m2lSourceSign[l] = sign(c, e);
+						m2lDerivative[l] = find(a + c, b + e);
+						m2lDerivativeSign[l] = sign(a + c, b + e);
+						m2lFactor[l] = ((c + e) % 2 == 0 ? 1 : -1)
+								* factorial(a + c) * factorial(b + e)
+								/ (factorial(a) * factorial(b));
+						m2lMirror[l] = ((a + b + c + e) % 2 == 0 ? 1 : -1)
+								* m2lFactor[l];
+						l++;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns n!
+	 *
+	 * @param n
+	 * @return n!
+	 */
+	private static double factorial(int n) {
+		double f = 1;
+		for (int i = 2; i <= n; i++)
+			f *= i;
+		return f;
+	}
+
+	/**
+	 * Returns the highest total power kept in the expansions
+	 *
+	 * @return the order of the expansions
+	 */
+	public int getOrder() {
+		return order;
+	}
+
+	/**
+	 * Computes the net force acting on every particle in the tree, and stores
+	 * it with the particle
+	 */
+	public void computeForces() {
+		int nodes = tree.size();
+		if (radius.length < nodes) {
+			int capacity = Math.max(nodes, radius.length * 2);
+			multipoleRe = new double[capacity * terms];
+			multipoleIm = new double[capacity * terms];
+			localRe = new double[capacity * terms];
+			localIm = new double[capacity * terms];
+			radius = new double[capacity];
+		}
+		Arrays.fill(localRe, 0, nodes * terms, 0);
+		Arrays.fill(localIm, 0, nodes * terms, 0);
+		Arrays.fill(particles.xNetForce, 0, particles.size(), 0);
+		Arrays.fill(particles.yNetForce, 0, particles.size(), 0);
+		if (tree.totalMass[Quadtree.ROOT] == 0)
+			return;
+
+		upwardPass();
+		interact(Quadtree.ROOT, Quadtree.ROOT);
+		downwardPass();
+	}
+
+	/**
+	 * Builds the multipole expansion of every node, children first
+	 */
+	private void upwardPass() {
+		// For explanation, see comments in the FastMultipole class
+		for (int node = tree.size() - 1; node >= 0; node--) {
+			int base = node * terms;
+			Arrays.fill(multipoleRe, base, base + terms, 0);
+			Arrays.fill(multipoleIm, base, base + terms, 0);
+			radius[node] = 0;
+			if (tree.totalMass[node] == 0)
+				continue;
+			double cx = tree.comX[node];
+			double cy = tree.comY[node];
+
+			if (!tree.isInternal(node)) {
+				int start = tree.rangeStart[node];
+				int end = start + tree.rangeCount[node];
+				for (int k = start; k < end; k++) {
+					double dx = tree.bodyX[k] - cx;
+					double dy = tree.bodyY[k] - cy;
+					scaledPowers(dx, dy);
+					for (int t = 0; t < terms; t++) {
+						multipoleRe[base + t] += Particle.mass * powersRe[t];
+						multipoleIm[base + t] += Particle.mass * powersIm[t];
+					}
+					radius[node] = Math.max(radius[node],
+							Math.sqrt(dx * dx + dy * dy));
+				}
+			} else {
+				int first = tree.firstChild[node];
+				for (int child = first; child < first + 4; child++) {
+					if (tree.totalMass[child] == 0)
+						continue;
+					double dx = tree.comX[child] - cx;
+					double dy = tree.comY[child] - cy;
+					scaledPowers(dx, dy);
+					int from = child * terms;
+					for (int k = 0; k < m2mTarget.length; k++) {
+						double sRe = multipoleRe[from + m2mSource[k]];
+						double sIm = m2mSourceSign[k]
+								* multipoleIm[from + m2mSource[k]];
+						double pRe = powersRe[m2mPower[k]];
+						double pIm = m2mPowerSign[k] * powersIm[m2mPower[k]];
+						multipoleRe[base + m2mTarget[k]] += sRe * pRe - sIm
+								* pIm;
+						multipoleIm[base + m2mTarget[k]] += sRe * pIm + sIm
+								* pRe;
+					}
+					radius[node] = Math.max(radius[node],
+							Math.sqrt(dx * dx + dy * dy) + radius[child]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the field of each of the two nodes to the particles of the other,
+	 * splitting up whichever of the two is larger until the pair is far
+	 * enough apart, or both are leaves
+	 *
+	 * @param node
+	 * @param other
+	 */
+	private void interact(int node, int other) {
+		// For explanation, see comments in the FastMultipole class
+		if (tree.totalMass[node] == 0 || tree.totalMass[other] == 0)
+			return;
+
+		boolean nodeLeaf = !tree.isInternal(node);
+		boolean otherLeaf = !tree.isInternal(other);
+		if (node == other) {
+			if (nodeLeaf) {
+				tree.accumulateLeafPairForces(node, node);
+			} else {
+				int first = tree.firstChild[node];
+				for (int child = first; child < first + 4; child++) {
+					for (int next = child; next < first + 4; next++)
+						interact(child, next);
+				}
+			}
+			return;
+		}
+
+		double dx = tree.comX[node] - tree.comX[other];
+		double dy = tree.comY[node] - tree.comY[other];
+		double dist = Math.sqrt(dx * dx + dy * dy);
+
+		if (radius[node] + radius[other] < Universe.theta * dist) {
+			translate(node, other, dx, dy);
+		} else if (nodeLeaf && otherLeaf) {
+			tree.accumulateLeafPairForces(node, other);
+		} else if (otherLeaf
+				|| (!nodeLeaf && radius[node] >= radius[other])) {
+			int first = tree.firstChild[node];
+			for (int child = first; child < first + 4; child++)
+				interact(child, other);
+		} else {
+			int first = tree.firstChild[other];
+			for (int child = first; child < first + 4; child++)
+				interact(node, child);
+		}
+	}
+
+	/**
+	 * Adds the multipole expansion of each of the two nodes, turned into a
+	 * local expansion about the other's center of mass, to the other's local
+	 * expansion
+	 *
+	 * @param node
+	 * @param other
+	 * @param dx
+	 * @param dy
+	 *            the offset from the other node's center of mass to the
+	 *            node's
+	 */
+	private void translate(int node, int other, double dx, double dy) {
+		taylorCoefficients(dx, dy);
+		int to = node * terms;
+		int from = other * terms;
+		for (int k = 0; k < m2lTarget.length; k++) {
+			double dRe = derivativesRe[m2lDerivative[k]];
+			double dIm = m2lDerivativeSign[k]
+					* derivativesIm[m2lDerivative[k]];
+
+			double mRe = multipoleRe[from + m2lSource[k]];
+			double mIm = m2lSourceSign[k] * multipoleIm[from + m2lSource[k]];
+			localRe[to + m2lTarget[k]] += m2lFactor[k] * (mRe * dRe - mIm * dIm);
+			localIm[to + m2lTarget[k]] += m2lFactor[k] * (mRe * dIm + mIm * dRe);
+
+			mRe = multipoleRe[to + m2lSource[k]];
+			mIm = m2lSourceSign[k] * multipoleIm[to + m2lSource[k]];
+			localRe[from + m2lTarget[k]] += m2lMirror[k]
+					* (mRe * dRe - mIm * dIm);
+			localIm[from + m2lTarget[k]] += m2lMirror[k]
+					* (mRe * dIm + mIm * dRe);
+		}
+	}
+
+	/**
+	 * Shifts every node's local expansion down to its children, and evaluates
+	 * the local expansions of the leaves at their particles, parents first
+	 */
+	private void downwardPass() {
+		for (int node = 0; node < tree.size(); node++) {
+			if (tree.totalMass[node] == 0)
+				continue;
+			int base = node * terms;
+			double cx = tree.comX[node];
+			double cy = tree.comY[node];
+
+			if (tree.isInternal(node)) {
+				int first = tree.firstChild[node];
+				for (int child = first; child < first + 4; child++) {
+					if (tree.totalMass[child] == 0)
+						continue;
+					scaledPowers(tree.comX[child] - cx, tree.comY[child] - cy);
+					int to = child * terms;
+					for (int k = 0; k < l2lTarget.length; k++) {
+						double sRe = localRe[base + l2lSource[k]];
+						double sIm = l2lSourceSign[k]
+								* localIm[base + l2lSource[k]];
+						double pRe = powersRe[l2lPower[k]];
+						double pIm = l2lPowerSign[k] * powersIm[l2lPower[k]];
+						localRe[to + l2lTarget[k]] += l2lFactor[k]
+								* (sRe * pRe - sIm * pIm);
+						localIm[to + l2lTarget[k]] += l2lFactor[k]
+								* (sRe * pIm + sIm * pRe);
+					}
+				}
+			} else {
+				int start = tree.rangeStart[node];
+				int end = start + tree.rangeCount[node];
+				for (int k = start; k < end; k++)
+					evaluate(node, tree.order[k], tree.bodyX[k] - cx,
+							tree.bodyY[k] - cy);
+			}
+		}
+	}
+
+	/**
+	 * Adds the force given by the local expansion of the leaf to the net force
+	 * acting on the particle with the passed index, which sits at the given
+	 * offset from the leaf's center of mass.
+	 *
+	 * The slope of a real function of z is twice its derivative by the
+	 * conjugate of z, taken as the complex number x + iy, so the force is
+	 * found by differentiating each term by the conjugate: the kept term and
+	 * its mirror image each give one.
+	 *
+	 * @param node
+	 * @param particle
+	 * @param dx
+	 * @param dy
+	 */
+	private void evaluate(int node, int particle, double dx, double dy) {
+		// The powers of the offset, without any factorials
+		sequenceRe[0] = 1;
+		sequenceIm[0] = 0;
+		for (int i = 1; i <= order; i++) {
+			sequenceRe[i] = sequenceRe[i - 1] * dx - sequenceIm[i - 1] * dy;
+			sequenceIm[i] = sequenceRe[i - 1] * dy + sequenceIm[i - 1] * dx;
+		}
+
+		int base = node * terms;
+		double slopeRe = 0, slopeIm = 0;
+		for (int t = 1; t < terms; t++) {
+			int a = powerZ[t], b = powerConjugate[t];
+			double lRe = localRe[base + t];
+			double lIm = localIm[base + t];
+
+			// b L z^a conj(z)^(b-1)
+			if (b >= 1) {
+				double pRe = sequenceRe[a] * sequenceRe[b - 1] + sequenceIm[a]
+						* sequenceIm[b - 1];
+				double pIm = sequenceIm[a] * sequenceRe[b - 1] - sequenceRe[a]
+						* sequenceIm[b - 1];
+				slopeRe += b * (lRe * pRe - lIm * pIm);
+				slopeIm += b * (lRe * pIm + lIm * pRe);
+			}
+
+			// a conj(L) z^b conj(z)^(a-1), for the mirror image
+			if (a != b) {
+				double pRe = sequenceRe[b] * sequenceRe[a - 1] + sequenceIm[b]
+						* sequenceIm[a - 1];
+				double pIm = sequenceIm[b] * sequenceRe[a - 1] - sequenceRe[b]
+						* sequenceIm[a - 1];
+				slopeRe += a * (lRe * pRe + lIm * pIm);
+				slopeIm += a * (lRe * pIm - lIm * pRe);
+			}
+		}
+		particles.xNetForce[particle] -= 2 * Particle.mass * slopeRe;
+		particles.yNetForce[particle] -= 2 * Particle.mass * slopeIm;
+	}
+
+	/**
+	 * Fills the powers scratch space with the kept powers of the given offset,
+	 * z^a conj(z)^b / (a! b!)
+	 *
+	 * @param dx
+	 * @param dy
+	 */
+	private void scaledPowers(double dx, double dy) {
+		sequenceRe[0] = 1;
+		sequenceIm[0] = 0;
+		for (int i = 1; i <= order; i++) {
+			sequenceRe[i] = (sequenceRe[i - 1] * dx - sequenceIm[i - 1] * dy)
+					/ i;
+			sequenceIm[i] = (sequenceRe[i - 1] * dy + sequenceIm[i - 1] * dx)
+					/ i;
+		}
+		for (int t = 0; t < terms; t++) {
+			int a = powerZ[t], b = powerConjugate[t];
+			powersRe[t] = sequenceRe[a] * sequenceRe[b] + sequenceIm[a]
+					* sequenceIm[b];
+			powersIm[t] = sequenceIm[a] * sequenceRe[b] - sequenceRe[a]
+					* sequenceIm[b];
+		}
+	}
+
+	/**
+	 * Fills the start of the derivatives scratch space with the kept Taylor
+	 * coefficients of the potential at the given offset.
+	 *
+	 * This is the same recurrence as in the FastMultipole class, with z in
+	 * place of x, y and z: if f_m stands for the m-th derivative of the
+	 * potential with respect to the squared distance z conj(z), then
+	 * differentiating f_m by z gives conj(z) f_(m+1).
+	 *
+	 * @param dx
+	 * @param dy
+	 */
+	private void taylorCoefficients(double dx, double dy) {
+		FastMultipole.kernelDerivatives(dx * dx + dy * dy, kernel, roots,
+				softs);
+		for (int m = order; m >= 0; m--) {
+			int base = m * terms;
+			int above = base + terms;
+			derivativesRe[base] = kernel[m];
+			derivativesIm[base] = 0;
+			for (int t = 1; t < termsUpTo[order - m]; t++) {
+				int a = powerZ[t], b = powerConjugate[t];
+
+				// conj(z) times the coefficient with one less power of z
+				int lower = above + find(a - 1, b);
+				double lRe = derivativesRe[lower];
+				double lIm = sign(a - 1, b) * derivativesIm[lower];
+				double re = dx * lRe + dy * lIm;
+				double im = dx * lIm - dy * lRe;
+
+				// plus the coefficient with one less power of each
+				if (b >= 1) {
+					lower = above + find(a - 1, b - 1);
+					re += derivativesRe[lower];
+					im += derivativesIm[lower];
+				}
+				derivativesRe[base + t] = re / a;
+				derivativesIm[base + t] = im / a;
+			}
+		}
+	}
+}
@@ -0,0 +1,230 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The DirectSum class computes the exact net force on every particle by
+ * summing up the force between every pair of particles. It makes no use of a
+ * tree, so it is the reference the other solvers are checked against, and for
+ * small systems it is faster than building and walking a tree.
+ *
+ * The force between a pair of particles is computed once, and added to one
+ * particle and taken from the other. The particles are split into tiles small
+ * enough to stay in the cache, and the work is done one pair of tiles at a
+ * time. To work on several pairs of tiles at once without two threads ever
+ * writing the same particle, the pairs are dealt out in rounds, like the
+ * games of a round-robin tournament: within a round, no tile appears twice.
+ *
+ * @author Christopher Glasz
+ */
+public class DirectSum {
+
+	/**
+	 * The number of particles in a tile
+	 */
+	public static final int TILE_SIZE = 256;
+
+	/**
+	 * The particles the forces are computed for
+	 */
+	private ParticleStore particles;
+
+	/**
+	 * The number of tiles, rounded up to an even number. If the real number is
+	 * odd, the last tile is empty and each round one tile sits out.
+	 */
+	private int tiles;
+
+	/**
+	 * Default constructor should never be used
+	 */
+	public DirectSum() {
+	}
+
+	/**
+	 * Constructor sets up the method for the given particles
+	 *
+	 * @param particles
+	 */
+	public DirectSum(ParticleStore particles) {
+		this.particles = particles;
+	}
+
+	/**
+	 * Computes the net force acting on every particle, and stores it with the
+	 * particle. If a pool is given, the pairs of tiles in each round are
+	 * shared out between its threads.
+	 *
+	 * @param pool
+	 *            the pool to run on, or null to run on this thread
+	 */
+	public void computeForces(ForkJoinPool pool) {
+		int n = particles.size();
+		Arrays.fill(particles.xNetForce, 0, n, 0);
+		Arrays.fill(particles.yNetForce, 0, n, 0);
+		Arrays.fill(particles.zNetForce, 0, n, 0);
+		tiles = (n + TILE_SIZE - 1) / TILE_SIZE;
+		tiles += tiles % 2;
+
+		// The pairs within each tile first, then every round of pairs of
+		// different tiles
+		for (int round = -1; round < tiles - 1; round++) {
+			if (pool != null)
+				pool.invoke(new RoundTask(round, 0, tiles / 2));
+			else
+				computeRound(round, 0, tiles / 2);
+		}
+	}
+
+	/**
+	 * Computes the given games of the given round. Round -1 pairs every tile
+	 * with itself.
+	 *
+	 * @param round
+	 * @param start
+	 * @param end
+	 */
+	private void computeRound(int round, int start, int end) {
+		for (int game = start; game < end; game++) {
+			if (round < 0) {
+				computeTile(2 * game);
+				computeTile(2 * game + 1);
+				continue;
+			}
+
+			// The last tile stays put while the rest move around a circle, so
+			// over all the rounds every tile meets every other tile once
+			int first, second;
+			if (game == 0) {
+				first = round;
+				second = tiles - 1;
+			} else {
+				first = (round + game) % (tiles - 1);
+				second = (round - game + tiles - 1) % (tiles - 1);
+			}
+			computeTiles(first, second);
+		}
+	}
+
+	/**
+	 * Adds the forces between every pair of particles within the given tile
+	 *
+	 * @param tile
+	 */
+	private void computeTile(int tile) {
+		int start = tile * TILE_SIZE;
+		int end = Math.min(start + TILE_SIZE, particles.size());
+		for (int i = start; i < end; i++)
+			computePairs(i, i + 1, end);
+	}
+
+	/**
+	 * Adds the forces between every particle of one tile and every particle of
+	 * the other
+	 *
+	 * @param first
+	 * @param second
+	 */
+	private void computeTiles(int first, int second) {
+		int start = first * TILE_SIZE;
+		int end = Math.min(start + TILE_SIZE, particles.size());
+		int otherStart = second * TILE_SIZE;
+		int otherEnd = Math.min(otherStart + TILE_SIZE, particles.size());
+		for (int i = start; i < end; i++)
+			computePairs(i, otherStart, otherEnd);
+	}
+
+	/**
+	 * Adds the force between the particle with the given index and each
+	 * particle in the given range to both particles of the pair
+	 *
+	 * @param i
+	 * @param start
+	 * @param end
+	 */
+	private void computePairs(int i, int start, int end) {
+		double[] x = particles.x, y = particles.y, z = particles.z;
+		double[] xForce = particles.xNetForce;
+		double[] yForce = particles.yNetForce;
+		double[] zForce = particles.zNetForce;
+		double m = Universe.G * Particle.mass * Particle.mass;
+		double xi = x[i], yi = y[i], zi = z[i];
+		double fx = 0, fy = 0, fz = 0;
+		for (int j = start; j < end; j++) {
+			double dx = x[j] - xi;
+			double dy = y[j] - yi;
+			double dz = z[j] - zi;
+			double distSquared = dx * dx + dy * dy + dz * dz;
+
+			// Particles in the same place exert no force on each other, just
+			// as in the tree
+			if (distSquared > 0) {
+				double dist = Math.sqrt(distSquared);
+				double scale = m / ((distSquared + Universe.epsilon) * dist);
+				fx += dx * scale;
+				fy += dy * scale;
+				fz += dz * scale;
+				xForce[j] -= dx * scale;
+				yForce[j] -= dy * scale;
+				zForce[j] -= dz * scale;
+			}
+		}
+		xForce[i] += fx;
+		yForce[i] += fy;
+		zForce[i] += fz;
+	}
+
+	/**
+	 * The RoundTask class covers a range of the games of one round, and keeps
+	 * splitting itself in half until it holds a single game
+	 */
+	private class RoundTask extends RecursiveAction {
+
+		/**
+		 * The version of the class, for serialization
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The round the games belong to
+		 */
+		private int round;
+
+		/**
+		 * The first game of the task's range
+		 */
+		private int start;
+
+		/**
+		 * One past the last game of the task's range
+		 */
+		private int end;
+
+		/**
+		 * The constructor creates a task covering the given games
+		 *
+		 * @param round
+		 * @param start
+		 * @param end
+		 */
+		public RoundTask(int round, int start, int end) {
+			this.round = round;
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * Plays the task's games, splitting them in two if there is more than
+		 * one
+		 */
+		protected void compute() {
+			if (end - start <= 1) {
+				computeRound(round, start, end);
+			} else {
+				int middle = (start + end) >>> 1;
+				invokeAll(new RoundTask(round, start, middle), new RoundTask(
+						round, middle, end));
+			}
+		}
+	}
+}
@@ -0,0 +1,571 @@
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+
+/**
+ * The ForceKernel class works out the force that a batch of sources exert on
+ * a single particle. Whole nodes that stand in for the particles in them are
+ * gathered into the batch while the tree is walked, and runs of particles
+ * that already sit next to each other in the tree's order are summed up
+ * where they are. Either way, the forces are worked out one source after
+ * another in a tight scalar loop over plain arrays, with no calls and no
+ * walking of the tree in between.
+ *
+ * The batch and the runs can also be gathered once for a whole group of
+ * particles that are close together, and then applied to each of them. For
+ * the TreePM solver, the force law can be scaled down to its short range
+ * part.
+ *
+ * Each thread needs its own kernel, since the batch is kept in the kernel.
+ * Kernels are made by create, which picks the VectorForceKernel if it can.
+ * That kernel works on several sources at once with the Vector API, which is
+ * not part of the Java 7 platform the rest of the program is written for, so
+ * it lives in its own source folder, vector, and is compiled and run with
+ * --add-modules jdk.incubator.vector. If it was not compiled, the module is
+ * missing at run time, or the processor has no vector instructions for
+ * doubles, this scalar kernel is used instead.
+ *
+ * @author Christopher Glasz
+ */
+public class ForceKernel {
+
+	/**
+	 * The number of sources the kernel starts out with room for
+	 */
+	private static final int INITIAL_CAPACITY = 256;
+
+	/**
+	 * The name of the kernel that uses the Vector API
+	 */
+	private static final String VECTOR_KERNEL = "VectorForceKernel";
+
+	/**
+	 * True once create has tried to load the kernel that uses the Vector
+	 * API, so it is only tried once
+	 */
+	private static volatile boolean vectorTried;
+
+	/**
+	 * The constructor of the kernel that uses the Vector API, or null if it
+	 * could not be loaded
+	 */
+	private static volatile Constructor<? extends ForceKernel> vectorKernel;
+
+	/**
+	 * The location of each source
+	 */
+	protected double[] x, y, z;
+
+	/**
+	 * The mass of each source
+	 */
+	protected double[] mass;
+
+	/**
+	 * The node of the tree each source stands in for
+	 */
+	protected int[] node;
+
+	/**
+	 * The number of sources in the batch
+	 */
+	protected int count;
+
+	/**
+	 * The start and end of each run of particles, in the tree's order, that
+	 * acts on the particles the batch is for
+	 */
+	protected int[] rangeStart, rangeEnd;
+
+	/**
+	 * The number of runs of particles
+	 */
+	protected int rangeCount;
+
+	/**
+	 * The force worked out so far
+	 */
+	protected double xForce, yForce, zForce;
+
+	/**
+	 * The number of sources and particles of runs that have acted on the
+	 * particles the batch is for since it was last emptied
+	 */
+	protected int interactions;
+
+	/**
+	 * The constructor creates a kernel with an empty batch
+	 */
+	public ForceKernel() {
+		x = new double[INITIAL_CAPACITY];
+		y = new double[INITIAL_CAPACITY];
+		z = new double[INITIAL_CAPACITY];
+		mass = new double[INITIAL_CAPACITY];
+		node = new int[INITIAL_CAPACITY];
+		count = 0;
+		rangeStart = new int[INITIAL_CAPACITY];
+		rangeEnd = new int[INITIAL_CAPACITY];
+		rangeCount = 0;
+	}
+
+	/**
+	 * Returns a new kernel: the one that uses the Vector API if it was
+	 * compiled and can run here, or a plain ForceKernel if not
+	 *
+	 * @return a new kernel
+	 */
+	public static ForceKernel create() {
+		if (!vectorTried) {
+			synchronized (ForceKernel.class) {
+				if (!vectorTried) {
+					vectorKernel = loadVectorKernel();
+					vectorTried = true;
+				}
+			}
+		}
+		if (vectorKernel != null) {
+			try {
+				return vectorKernel.newInstance();
+			} catch (ReflectiveOperationException e) {
+				// It made one when it was loaded, so this should not happen
+			}
+		}
+		return new ForceKernel();
+	}
+
+	/**
+	 * Loads the kernel that uses the Vector API, and makes one to check that
+	 * it runs here
+	 *
+	 * @return the kernel's constructor, or null if it cannot be used
+	 */
+	private static Constructor<? extends ForceKernel> loadVectorKernel() {
+		try {
+			Constructor<? extends ForceKernel> constructor = Class
+					.forName(VECTOR_KERNEL).asSubclass(ForceKernel.class)
+					.getConstructor();
+			constructor.newInstance();
+			return constructor;
+		} catch (ReflectiveOperationException e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		} catch (ClassCastException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Empties the batch and the runs of particles, and forgets the force
+	 * worked out so far
+	 */
+	public void clear() {
+		count = 0;
+		rangeCount = 0;
+		interactions = 0;
+		clearForce();
+	}
+
+	/**
+	 * Forgets the force worked out so far, but keeps the batch, so that it
+	 * can be applied to another particle
+	 */
+	public void clearForce() {
+		xForce = 0;
+		yForce = 0;
+		zForce = 0;
+	}
+
+	/**
+	 * Makes sure there is room for at least the given number of sources
+	 *
+	 * @param capacity
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > x.length) {
+			int newCapacity = Math.max(capacity, x.length * 2);
+			x = Arrays.copyOf(x, newCapacity);
+			y = Arrays.copyOf(y, newCapacity);
+			z = Arrays.copyOf(z, newCapacity);
+			mass = Arrays.copyOf(mass, newCapacity);
+			node = Arrays.copyOf(node, newCapacity);
+		}
+	}
+
+	/**
+	 * Adds a source with the given location and mass, standing in for the
+	 * given node, to the batch
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param mass
+	 * @param node
+	 */
+	public void add(double x, double y, double z, double mass, int node) {
+		if (count == this.x.length)
+			ensureCapacity(count + 1);
+		this.x[count] = x;
+		this.y[count] = y;
+		this.z[count] = z;
+		this.mass[count] = mass;
+		this.node[count] = node;
+		count++;
+		interactions++;
+	}
+
+	/**
+	 * Adds a run of particles, in the tree's order, to the runs that act on
+	 * the particles the batch is for. A run that carries on straight from the
+	 * last one is merged into it.
+	 *
+	 * @param start
+	 * @param end
+	 */
+	public void addRange(int start, int end) {
+		interactions += end - start;
+		if (rangeCount > 0 && rangeEnd[rangeCount - 1] == start) {
+			rangeEnd[rangeCount - 1] = end;
+			return;
+		}
+		if (rangeCount == rangeStart.length) {
+			rangeStart = Arrays.copyOf(rangeStart, rangeCount * 2);
+			rangeEnd = Arrays.copyOf(rangeEnd, rangeCount * 2);
+		}
+		rangeStart[rangeCount] = start;
+		rangeEnd[rangeCount] = end;
+		rangeCount++;
+	}
+
+	/**
+	 * Adds the force that the given run of particles, all of the given mass,
+	 * exerts on a particle at the given location on the plane to the force
+	 * worked out so far. The particles are already next to each other in
+	 * memory, so they are not copied into the batch.
+	 *
+	 * @param sx
+	 * @param sy
+	 * @param start
+	 * @param end
+	 * @param sourceMass
+	 * @param x
+	 * @param y
+	 */
+	public void sum(double[] sx, double[] sy, int start, int end,
+			double sourceMass, double x, double y) {
+		interactions += end - start;
+		sumRun(sx, sy, start, end, sourceMass, x, y);
+	}
+
+	/**
+	 * Adds the force that the given run of particles exerts on a particle on
+	 * the plane, without counting the run as more interactions
+	 *
+	 * @param sx
+	 * @param sy
+	 * @param start
+	 * @param end
+	 * @param sourceMass
+	 * @param x
+	 * @param y
+	 */
+	protected void sumRun(double[] sx, double[] sy, int start, int end,
+			double sourceMass, double x, double y) {
+		double epsilon = Universe.epsilon;
+		double fx = 0, fy = 0;
+		for (int j = start; j < end; j++) {
+			double dx = sx[j] - x;
+			double dy = sy[j] - y;
+			double distSquared = dx * dx + dy * dy;
+
+			// A source in the same place as the particle is the particle
+			// itself, which exerts no force, so its scale is zero
+			double dist = Math.sqrt(distSquared);
+			double scale = distSquared > 0 ? 1 / ((distSquared + epsilon)
+					* dist) : 0;
+			fx += dx * scale;
+			fy += dy * scale;
+		}
+		double m = Universe.G * Particle.mass * sourceMass;
+		xForce += fx * m;
+		yForce += fy * m;
+	}
+
+	/**
+	 * Adds the force that the given run of particles, all of the given mass,
+	 * exerts on a particle at the given location to the force worked out so
+	 * far
+	 *
+	 * @param sx
+	 * @param sy
+	 * @param sz
+	 * @param start
+	 * @param end
+	 * @param sourceMass
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void sum(double[] sx, double[] sy, double[] sz, int start,
+			int end, double sourceMass, double x, double y, double z) {
+		interactions += end - start;
+		sumRun(sx, sy, sz, start, end, sourceMass, x, y, z);
+	}
+
+	/**
+	 * Adds the force that the given run of particles exerts on a particle,
+	 * without counting the run as more interactions
+	 *
+	 * @param sx
+	 * @param sy
+	 * @param sz
+	 * @param start
+	 * @param end
+	 * @param sourceMass
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	protected void sumRun(double[] sx, double[] sy, double[] sz, int start,
+			int end, double sourceMass, double x, double y, double z) {
+		double epsilon = Universe.epsilon;
+		double fx = 0, fy = 0, fz = 0;
+		for (int j = start; j < end; j++) {
+			double dx = sx[j] - x;
+			double dy = sy[j] - y;
+			double dz = sz[j] - z;
+			double distSquared = dx * dx + dy * dy + dz * dz;
+			double dist = Math.sqrt(distSquared);
+			double scale = distSquared > 0 ? 1 / ((distSquared + epsilon)
+					* dist) : 0;
+			fx += dx * scale;
+			fy += dy * scale;
+			fz += dz * scale;
+		}
+		double m = Universe.G * Particle.mass * sourceMass;
+		xForce += fx * m;
+		yForce += fy * m;
+		zForce += fz * m;
+	}
+
+	/**
+	 * Adds the force that every run of particles, all of the given mass,
+	 * exerts on a particle at the given location on the plane to the force
+	 * worked out so far
+	 *
+	 * @param sx
+	 * @param sy
+	 * @param sourceMass
+	 * @param x
+	 * @param y
+	 */
+	public void sumRanges(double[] sx, double[] sy, double sourceMass,
+			double x, double y) {
+		for (int r = 0; r < rangeCount; r++)
+			sumRun(sx, sy, rangeStart[r], rangeEnd[r], sourceMass, x, y);
+	}
+
+	/**
+	 * Adds the force that every run of particles, all of the given mass,
+	 * exerts on a particle at the given location to the force worked out so
+	 * far
+	 *
+	 * @param sx
+	 * @param sy
+	 * @param sz
+	 * @param sourceMass
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void sumRanges(double[] sx, double[] sy, double[] sz,
+			double sourceMass, double x, double y, double z) {
+		for (int r = 0; r < rangeCount; r++)
+			sumRun(sx, sy, sz, rangeStart[r], rangeEnd[r], sourceMass, x, y,
+					z);
+	}
+
+	/**
+	 * Adds the short range part of the force that every run of particles, all
+	 * of the given mass, exerts on a particle at the given location on the
+	 * plane to the force worked out so far
+	 *
+	 * @param sx
+	 * @param sy
+	 * @param sourceMass
+	 * @param x
+	 * @param y
+	 * @param split
+	 */
+	public void sumRangesShortRange(double[] sx, double[] sy,
+			double sourceMass, double x, double y, ForceSplit split) {
+		double epsilon = Universe.epsilon;
+		double fx = 0, fy = 0;
+		for (int r = 0; r < rangeCount; r++) {
+			for (int j = rangeStart[r]; j < rangeEnd[r]; j++) {
+				double dx = sx[j] - x;
+				double dy = sy[j] - y;
+				double distSquared = dx * dx + dy * dy;
+				double dist = Math.sqrt(distSquared);
+				double scale = distSquared > 0 ? split.shortRange(distSquared)
+						/ ((distSquared + epsilon) * dist) : 0;
+				fx += dx * scale;
+				fy += dy * scale;
+			}
+		}
+		double m = Universe.G * Particle.mass * sourceMass;
+		xForce += fx * m;
+		yForce += fy * m;
+	}
+
+	/**
+	 * Adds the short range part of the force that every run of particles, all
+	 * of the given mass, exerts on a particle at the given location to the
+	 * force worked out so far
+	 *
+	 * @param sx
+	 * @param sy
+	 * @param sz
+	 * @param sourceMass
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param split
+	 */
+	public void sumRangesShortRange(double[] sx, double[] sy, double[] sz,
+			double sourceMass, double x, double y, double z, ForceSplit split) {
+		double epsilon = Universe.epsilon;
+		double fx = 0, fy = 0, fz = 0;
+		for (int r = 0; r < rangeCount; r++) {
+			for (int j = rangeStart[r]; j < rangeEnd[r]; j++) {
+				double dx = sx[j] - x;
+				double dy = sy[j] - y;
+				double dz = sz[j] - z;
+				double distSquared = dx * dx + dy * dy + dz * dz;
+				double dist = Math.sqrt(distSquared);
+				double scale = distSquared > 0 ? split.shortRange(distSquared)
+						/ ((distSquared + epsilon) * dist) : 0;
+				fx += dx * scale;
+				fy += dy * scale;
+				fz += dz * scale;
+			}
+		}
+		double m = Universe.G * Particle.mass * sourceMass;
+		xForce += fx * m;
+		yForce += fy * m;
+		zForce += fz * m;
+	}
+
+	/**
+	 * Adds the force the batch exerts on a particle at the given location on
+	 * the plane to the force worked out so far. Unlike a run of particles,
+	 * the batch never holds the particle itself.
+	 *
+	 * @param x
+	 * @param y
+	 */
+	public void apply(double x, double y) {
+		double[] sx = this.x, sy = this.y, sm = this.mass;
+		double epsilon = Universe.epsilon;
+		double fx = 0, fy = 0;
+		for (int j = 0; j < count; j++) {
+			double dx = sx[j] - x;
+			double dy = sy[j] - y;
+			double distSquared = dx * dx + dy * dy;
+			double dist = Math.sqrt(distSquared);
+			double scale = sm[j] / ((distSquared + epsilon) * dist);
+			fx += dx * scale;
+			fy += dy * scale;
+		}
+		double m = Universe.G * Particle.mass;
+		xForce += fx * m;
+		yForce += fy * m;
+	}
+
+	/**
+	 * Adds the force the batch exerts on a particle at the given location to
+	 * the force worked out so far
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void apply(double x, double y, double z) {
+		double[] sx = this.x, sy = this.y, sz = this.z, sm = this.mass;
+		double epsilon = Universe.epsilon;
+		double fx = 0, fy = 0, fz = 0;
+		for (int j = 0; j < count; j++) {
+			double dx = sx[j] - x;
+			double dy = sy[j] - y;
+			double dz = sz[j] - z;
+			double distSquared = dx * dx + dy * dy + dz * dz;
+			double dist = Math.sqrt(distSquared);
+			double scale = sm[j] / ((distSquared + epsilon) * dist);
+			fx += dx * scale;
+			fy += dy * scale;
+			fz += dz * scale;
+		}
+		double m = Universe.G * Particle.mass;
+		xForce += fx * m;
+		yForce += fy * m;
+		zForce += fz * m;
+	}
+
+	/**
+	 * Adds the short range part of the force the batch exerts on a particle
+	 * at the given location on the plane to the force worked out so far
+	 *
+	 * @param x
+	 * @param y
+	 * @param split
+	 */
+	public void applyShortRange(double x, double y, ForceSplit split) {
+		double[] sx = this.x, sy = this.y, sm = this.mass;
+		double epsilon = Universe.epsilon;
+		double fx = 0, fy = 0;
+		for (int j = 0; j < count; j++) {
+			double dx = sx[j] - x;
+			double dy = sy[j] - y;
+			double distSquared = dx * dx + dy * dy;
+			double dist = Math.sqrt(distSquared);
+			double scale = sm[j] * split.shortRange(distSquared)
+					/ ((distSquared + epsilon) * dist);
+			fx += dx * scale;
+			fy += dy * scale;
+		}
+		double m = Universe.G * Particle.mass;
+		xForce += fx * m;
+		yForce += fy * m;
+	}
+
+	/**
+	 * Adds the short range part of the force the batch exerts on a particle
+	 * at the given location to the force worked out so far
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param split
+	 */
+	public void applyShortRange(double x, double y, double z,
+			ForceSplit split) {
+		double[] sx = this.x, sy = this.y, sz = this.z, sm = this.mass;
+		double epsilon = Universe.epsilon;
+		double fx = 0, fy = 0, fz = 0;
+		for (int j = 0; j < count; j++) {
+			double dx = sx[j] - x;
+			double dy = sy[j] - y;
+			double dz = sz[j] - z;
+			double distSquared = dx * dx + dy * dy + dz * dz;
+			double dist = Math.sqrt(distSquared);
+			double scale = sm[j] * split.shortRange(distSquared)
+					/ ((distSquared + epsilon) * dist);
+			fx += dx * scale;
+			fy += dy * scale;
+			fz += dz * scale;
+		}
+		double m = Universe.G * Particle.mass;
+		xForce += fx * m;
+		yForce += fy * m;
+		zForce += fz * m;
+	}
+}
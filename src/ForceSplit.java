@@ -0,0 +1,382 @@
+/**
+ * The ForceSplit class splits the force law into a smooth long range part,
+ * which a mesh can work out, and a short range part, which only reaches a few
+ * times the split's scale and is left to the tree.
+ *
+ * The split is the one of Hernquist, Bouchet and Suto, applied to the
+ * softened force law G m^2 / (r^2 + epsilon) the rest of the simulation uses.
+ * The short range part is the whole softened law times
+ *
+ * S(r) = erfc(r / 2s) + r / (s sqrt(pi)) exp(-r^2 / 4s^2)
+ *
+ * which is one for nearby particles and all but nothing past the cutoff, at
+ * 4.5 scales, and the long range part is the softened law times 1 - S(r), so
+ * the two always add up to the whole force. Working out an erfc and an exp
+ * for every pair would cost more than the rest of the walk, so S is looked up
+ * in a table instead.
+ *
+ * The mesh needs the transform of the long range part's potential. Without
+ * softening it is the plain transform times exp(-k^2 s^2) in three
+ * dimensions, or times erfc(k s) on the plane, where the transform is taken
+ * over the plane alone. Softening changes it by the transform of the
+ * difference between the softened and the plain long range potentials, which
+ * has no simple form, so it is worked out numerically, once, when the split
+ * is made, and looked up in a second table.
+ *
+ * @author Christopher Glasz
+ */
+public class ForceSplit {
+
+	/**
+	 * The distance past which the short range force is dropped, in scales
+	 */
+	public static final double CUTOFF = 4.5;
+
+	/**
+	 * The wavenumber past which the long range force is dropped, in inverse
+	 * scales
+	 */
+	public static final double REACH = 8;
+
+	/**
+	 * The number of steps in the table of short range factors
+	 */
+	private static final int TABLE_SIZE = 1024;
+
+	/**
+	 * The number of steps in the table of long range factors
+	 */
+	private static final int LONG_RANGE_SIZE = 512;
+
+	/**
+	 * The distance, in units of the softening length, out to which the
+	 * transform of the softened potential is integrated
+	 */
+	private static final double SOFTENING_REACH = 200;
+
+	/**
+	 * The distance, in scales, past which the long range part of the softened
+	 * law is taken to be the whole of it. The short range factor there is
+	 * below 1e-6.
+	 */
+	private static final double SPLIT_REACH = 8;
+
+	/**
+	 * The number of steps the transform of the split is integrated in
+	 */
+	private static final int SPLIT_STEPS = 4096;
+
+	/**
+	 * The scale of the split
+	 */
+	private double scale;
+
+	/**
+	 * The softening the split was made for
+	 */
+	private double epsilon;
+
+	/**
+	 * The number of dimensions of the system, either 2 or 3
+	 */
+	private int dimensions;
+
+	/**
+	 * The distance past which the short range force is dropped
+	 */
+	private double cutoff;
+
+	/**
+	 * The short range factor at evenly spaced squared distances, from zero to
+	 * the squared cutoff
+	 */
+	private double[] table;
+
+	/**
+	 * The number of steps of the table in a unit of squared distance
+	 */
+	private double steps;
+
+	/**
+	 * The long range factor at evenly spaced wavenumbers, from zero to the
+	 * reach
+	 */
+	private double[] longTable;
+
+	/**
+	 * The number of steps of the long range table in a unit of wavenumber
+	 */
+	private double longSteps;
+
+	/**
+	 * Default constructor should never be used
+	 */
+	public ForceSplit() {
+	}
+
+	/**
+	 * Constructor sets up a split at the given scale, for the given softening
+	 * and number of dimensions
+	 *
+	 * @param scale
+	 * @param epsilon
+	 * @param dimensions
+	 *            either 2 or 3
+	 */
+	public ForceSplit(double scale, double epsilon, int dimensions) {
+		this.scale = scale;
+		this.epsilon = Math.max(epsilon, 0);
+		this.dimensions = dimensions == 3 ? 3 : 2;
+		cutoff = CUTOFF * scale;
+		steps = TABLE_SIZE / (cutoff * cutoff);
+
+		// The entry at the cutoff is zero, so the factor tapers off over the
+		// last step rather than dropping there, and anything past the cutoff
+		// looks up the zero
+		table = new double[TABLE_SIZE + 2];
+		for (int k = 0; k < TABLE_SIZE; k++)
+			table[k] = split(Math.sqrt(k / steps));
+		makeLongRange();
+	}
+
+	/**
+	 * Returns the scale of the split
+	 *
+	 * @return the scale of the split
+	 */
+	public double getScale() {
+		return scale;
+	}
+
+	/**
+	 * Returns the softening the split was made for
+	 *
+	 * @return the softening
+	 */
+	public double getEpsilon() {
+		return epsilon;
+	}
+
+	/**
+	 * Returns the distance past which the short range force is dropped
+	 *
+	 * @return the cutoff distance
+	 */
+	public double getCutoff() {
+		return cutoff;
+	}
+
+	/**
+	 * Returns the share of the force law that is left to the short range part
+	 * at the given squared distance
+	 *
+	 * @param distSquared
+	 * @return the short range factor
+	 */
+	public double shortRange(double distSquared) {
+		double position = Math.min(distSquared * steps, TABLE_SIZE);
+		int k = (int) position;
+		double f = position - k;
+		return table[k] + f * (table[k + 1] - table[k]);
+	}
+
+	/**
+	 * Returns the transform of the long range part's potential at the given
+	 * wavenumber, as a share of the transform of the plain, unsoftened
+	 * potential
+	 *
+	 * @param k
+	 * @return the long range factor
+	 */
+	public double longRange(double k) {
+		double position = k * longSteps;
+		if (position >= LONG_RANGE_SIZE)
+			return 0;
+		int i = (int) position;
+		double f = position - i;
+		return longTable[i] + f * (longTable[i + 1] - longTable[i]);
+	}
+
+	/**
+	 * Returns the share of the force law left to the short range part at the
+	 * given distance
+	 *
+	 * @param r
+	 * @return S(r)
+	 */
+	private double split(double r) {
+		return erfc(r / (2 * scale)) + r / (scale * Math.sqrt(Math.PI))
+				* Math.exp(-r * r / (4 * scale * scale));
+	}
+
+	/**
+	 * Works out the long range factor at every step of its table. It is the
+	 * factor of the plain split, plus the change softening makes to the long
+	 * range potential, d(r), over the plain transform.
+	 *
+	 * Past the split's reach, d is just the softened potential less the plain
+	 * one, whose transform is known from the spread of mass that softening
+	 * stands for (see spreadFactor). Inside the reach d differs from that by
+	 * c(r), the integral from r out to the reach of S times the softened law
+	 * less the plain one, which is transformed numerically. With a unit of G
+	 * and mass, the factor is
+	 *
+	 * L(k) = P(k) + W(k) - 1 - k integral of c(r) r K(kr) dr
+	 *
+	 * where P is the plain split's factor, W the spread's, and K is sin in
+	 * three dimensions and J0 on the plane.
+	 */
+	private void makeLongRange() {
+		longTable = new double[LONG_RANGE_SIZE + 2];
+		longSteps = LONG_RANGE_SIZE * scale / REACH;
+
+		// c(r) r at evenly spaced distances out to the reach. The softened
+		// potential less the plain one is 1 / r - atan(a / r) / a, and the
+		// integral is taken of (1 - S) times the softened law less the plain
+		// one, which, unlike S times it, stays small near zero.
+		double a = Math.sqrt(epsilon);
+		double reach = SPLIT_REACH * scale;
+		double h = reach / SPLIT_STEPS;
+		double[] cr = new double[SPLIT_STEPS + 1];
+		double atReach = 1 / reach - (a > 0 ? Math.atan(a / reach) / a : 0);
+		double outer = 0, previous = 0;
+		for (int j = SPLIT_STEPS; j >= 0; j--) {
+			double r = j * h;
+			double difference = r > 0 ? (1 - split(r)) * -epsilon
+					/ (r * r * (r * r + epsilon)) : 0;
+			if (j < SPLIT_STEPS)
+				outer += h / 2 * (difference + previous);
+			previous = difference;
+			double softened = r > 0 && a > 0 ? r / a * Math.atan(a / r) : 1;
+			cr[j] = r * (atReach - outer) - (a > 0 ? 1 - softened : 0);
+		}
+
+		for (int i = 0; i < longTable.length; i++) {
+			double k = i / longSteps;
+			double ks = k * scale;
+			double plain = dimensions == 3 ? Math.exp(-ks * ks) : erfc(ks);
+			if (k == 0 || epsilon == 0) {
+				longTable[i] = plain;
+				continue;
+			}
+			double sum = 0;
+			for (int j = 0; j <= SPLIT_STEPS; j++) {
+				double x = k * j * h;
+				sum += simpsonWeight(j, SPLIT_STEPS) * cr[j]
+						* (dimensions == 3 ? Math.sin(x) : besselJ0(x));
+			}
+			longTable[i] = plain + spreadFactor(k * a) - 1 - k * sum * h / 3;
+		}
+	}
+
+	/**
+	 * Returns the transform of the softened potential over the transform of
+	 * the plain one, where b is the wavenumber times the softening length. In
+	 * three dimensions it is the transform of the spread of mass whose pull
+	 * is the softened law,
+	 *
+	 * (2 / b) integral of sin(b t) / (t^2 + 1)^2 dt
+	 *
+	 * and on the plane it is
+	 *
+	 * 1 - b integral of (1 - t atan(1 / t)) J0(b t) dt
+	 *
+	 * Both integrals run from zero out to the softening's reach, and both
+	 * give one at b = 0.
+	 *
+	 * @param b
+	 * @return the softening's factor
+	 */
+	private double spreadFactor(double b) {
+		if (b == 0)
+			return 1;
+
+		// Enough steps to follow every wave of the integrand
+		int n = 2 * (int) Math.ceil(SOFTENING_REACH
+				* Math.max(10, 4 * b / Math.PI) / 2);
+		double h = SOFTENING_REACH / n;
+		double sum = 0;
+		for (int j = 0; j <= n; j++) {
+			double t = j * h;
+			double value;
+			if (dimensions == 3) {
+				double u = t * t + 1;
+				value = Math.sin(b * t) / (u * u);
+			} else {
+				value = (t == 0 ? 1 : 1 - t * Math.atan(1 / t))
+						* besselJ0(b * t);
+			}
+			sum += simpsonWeight(j, n) * value;
+		}
+		sum *= h / 3;
+		return dimensions == 3 ? 2 * sum / b : 1 - b * sum;
+	}
+
+	/**
+	 * Returns the weight of the given point of Simpson's rule over the given
+	 * even number of steps
+	 *
+	 * @param j
+	 * @param n
+	 * @return the weight of the point
+	 */
+	private static double simpsonWeight(int j, int n) {
+		if (j == 0 || j == n)
+			return 1;
+		return (j & 1) == 1 ? 4 : 2;
+	}
+
+	/**
+	 * Returns the complementary error function of x, to about seven places,
+	 * with the Chebyshev fit of Numerical Recipes
+	 *
+	 * @param x
+	 * @return erfc(x)
+	 */
+	public static double erfc(double x) {
+		double z = Math.abs(x);
+		double t = 1 / (1 + 0.5 * z);
+		double value = t
+				* Math.exp(-z * z - 1.26551223 + t
+						* (1.00002368 + t
+						* (0.37409196 + t
+						* (0.09678418 + t
+						* (-0.18628806 + t
+						* (0.27886807 + t
+						* (-1.13520398 + t
+						* (1.48851587 + t
+						* (-0.82215223 + t * 0.17087277)))))))));
+		return x >= 0 ? value : 2 - value;
+	}
+
+	/**
+	 * Returns the Bessel function J0 of x, to about eight places, with the
+	 * rational fits of Numerical Recipes
+	 *
+	 * @param x
+	 * @return J0(x)
+	 */
+	public static double besselJ0(double x) {
+		double ax = Math.abs(x);
+		if (ax < 8) {
+			double y = x * x;
+			double p = 57568490574.0 + y * (-13362590354.0 + y
+					* (651619640.7 + y * (-11214424.18 + y
+					* (77392.33017 + y * -184.9052456))));
+			double q = 57568490411.0 + y * (1029532985.0 + y
+					* (9494680.718 + y * (59272.64853 + y
+					* (267.8532712 + y))));
+			return p / q;
+		}
+		double z = 8 / ax;
+		double y = z * z;
+		double xx = ax - 0.785398164;
+		double p = 1 + y * (-0.1098628627e-2 + y * (0.2734510407e-4 + y
+				* (-0.2073370639e-5 + y * 0.2093887211e-6)));
+		double q = -0.1562499995e-1 + y * (0.1430488765e-3 + y
+				* (-0.6911147651e-5 + y * (0.7621095161e-6 - y
+				* 0.934935152e-7)));
+		return Math.sqrt(0.636619772 / ax)
+				* (Math.cos(xx) * p - z * Math.sin(xx) * q);
+	}
+}
@@ -0,0 +1,179 @@
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The ForceTask class defines a piece of the force calculation that can be run
+ * on a fork/join pool. A task covers a range of particles, and keeps splitting
+ * itself in half until the range is no larger than the chunk size, at which
+ * point the forces on those particles are computed one after another. A task
+ * can also cover a range of groups of particles that walk the tree together,
+ * in which case each group counts as one, or only add the short range forces
+ * of the TreePM solver.
+ *
+ * Particles are worked on in the tree's order. If the task is given what the
+ * work costs, it is split at the middle of the cost rather than the middle of
+ * the range, and stops splitting once a piece costs no more than an average
+ * chunk. Particles in the dense core of a galaxy open far more nodes than
+ * those in the sparse halo, so this keeps one thread from being handed all
+ * the expensive ones. The time each thread spends working can be added up
+ * to see how even the load was.
+ * 
+ * @author Christopher Glasz
+ */
+public class ForceTask extends RecursiveAction {
+
+	/**
+	 * The version of the class, for serialization
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The tree the forces are computed from. It is only ever read, so every
+	 * task can share it safely.
+	 */
+	private Quadtree tree;
+
+	/**
+	 * True if the task covers groups rather than particles
+	 */
+	private boolean groups;
+
+	/**
+	 * The split between the long and short range forces if the task only
+	 * adds the short range forces, or null
+	 */
+	private ForceSplit split;
+
+	/**
+	 * The running total of the cost of the particles (or groups), or null to
+	 * split the range at its middle
+	 */
+	private long[] costs;
+
+	/**
+	 * The most a range may cost before it is split
+	 */
+	private long chunkCost;
+
+	/**
+	 * The time each thread has spent working, or null
+	 */
+	private BusyTimes busy;
+
+	/**
+	 * The index of the first particle (or group) in this task's range
+	 */
+	private int start;
+
+	/**
+	 * The index one past the last particle (or group) in this task's range
+	 */
+	private int end;
+
+	/**
+	 * The constructor creates a task covering the given range, split by what
+	 * the work costs if the costs are given, and adding up the time each
+	 * thread spends working if the busy times are given
+	 * 
+	 * @param tree
+	 * @param groups
+	 * @param split
+	 * @param costs
+	 *            the running total of the cost of the particles (or groups),
+	 *            or null
+	 * @param busy
+	 *            the time each thread has spent working, or null
+	 * @param start
+	 * @param end
+	 */
+	public ForceTask(Quadtree tree, boolean groups, ForceSplit split,
+			long[] costs, BusyTimes busy, int start, int end) {
+		this(tree, groups, split, costs, 0, busy, start, end);
+		if (costs != null && end > start)
+			chunkCost = Math.max((costs[end] - costs[start]) * chunkSize()
+					/ (end - start), 1);
+	}
+
+	/**
+	 * The constructor creates a piece of another task
+	 * 
+	 * @param tree
+	 * @param groups
+	 * @param split
+	 * @param costs
+	 * @param chunkCost
+	 * @param busy
+	 * @param start
+	 * @param end
+	 */
+	private ForceTask(Quadtree tree, boolean groups, ForceSplit split,
+			long[] costs, long chunkCost, BusyTimes busy, int start, int end) {
+		this.tree = tree;
+		this.groups = groups;
+		this.split = split;
+		this.costs = costs;
+		this.chunkCost = chunkCost;
+		this.busy = busy;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Computes the forces on the task's particles, splitting the work in two
+	 * if there is more than one chunk of it
+	 */
+	protected void compute() {
+		boolean small = costs == null ? end - start <= chunkSize()
+				: end - start <= 1 || costs[end] - costs[start] <= chunkCost;
+		if (small) {
+			long began = System.nanoTime();
+			for (int i = start; i < end; i++) {
+				if (groups)
+					tree.computeGroupForces(i);
+				else if (split != null)
+					tree.computeShortRangeForce(tree.order[i], split);
+				else
+					tree.computeForce(tree.order[i]);
+			}
+			if (busy != null)
+				busy.add(System.nanoTime() - began);
+		} else {
+			int middle = middle();
+			invokeAll(new ForceTask(tree, groups, split, costs, chunkCost,
+					busy, start, middle), new ForceTask(tree, groups, split,
+					costs, chunkCost, busy, middle, end));
+		}
+	}
+
+	/**
+	 * Returns the number of particles (or groups) in a chunk
+	 *
+	 * @return the number of particles (or groups) in a chunk
+	 */
+	private int chunkSize() {
+		int chunkSize = Math.max(Universe.chunkSize, 1);
+		if (groups)
+			chunkSize = Math.max(chunkSize / Math.max(Universe.groupSize, 1), 1);
+		return chunkSize;
+	}
+
+	/**
+	 * Returns the index the range is split at: its middle, or the first
+	 * index at which half of the range's cost is used up
+	 *
+	 * @return the index the range is split at
+	 */
+	private int middle() {
+		if (costs == null)
+			return (start + end) >>> 1;
+		long half = (costs[start] + costs[end]) / 2;
+		int from = start + 1, to = end - 1;
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (costs[middle] < half)
+				from = middle + 1;
+			else
+				to = middle;
+		}
+		return from;
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * The FourierTransform class computes the discrete Fourier transform of a
+ * sequence of complex numbers whose length is a power of two, with the radix
+ * two fast Fourier transform. The sines and cosines and the bit reversed order
+ * of the sequence are worked out once, when the transform is made, so the
+ * same transform can be run over many sequences of the same length.
+ *
+ * @author Christopher Glasz
+ */
+public class FourierTransform {
+
+	/**
+	 * The length of the sequences the transform runs over
+	 */
+	private int length;
+
+	/**
+	 * The cosine and sine of each of the angles the transform turns through
+	 */
+	private double[] cos, sin;
+
+	/**
+	 * The index of each element once its bits are reversed
+	 */
+	private int[] reversed;
+
+	/**
+	 * Default constructor should never be used
+	 */
+	public FourierTransform() {
+	}
+
+	/**
+	 * Constructor sets up the transform for sequences of the given length,
+	 * which must be a power of two
+	 *
+	 * @param length
+	 */
+	public FourierTransform(int length) {
+		this.length = length;
+		cos = new double[length / 2];
+		sin = new double[length / 2];
+		for (int k = 0; k < length / 2; k++) {
+			cos[k] = Math.cos(2 * Math.PI * k / length);
+			sin[k] = Math.sin(2 * Math.PI * k / length);
+		}
+
+		reversed = new int[length];
+		int bits = Integer.numberOfTrailingZeros(length);
+		for (int k = 0; k < length; k++)
+			reversed[k] = bits == 0 ? 0 : Integer.reverse(k) >>> (32 - bits);
+	}
+
+	/**
+	 * Returns the length of the sequences the transform runs over
+	 *
+	 * @return the length of the sequences
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Replaces the given sequence with its Fourier transform. The inverse
+	 * transform turns the other way, and is not divided by the length, so
+	 * running a sequence forwards and back multiplies it by the length.
+	 *
+	 * @param re
+	 *            the real parts of the sequence
+	 * @param im
+	 *            the imaginary parts of the sequence
+	 * @param inverse
+	 *            true to run the inverse transform
+	 */
+	public void transform(double[] re, double[] im, boolean inverse) {
+		// Put the elements in bit reversed order, so each pass can combine
+		// neighbouring blocks in place
+		for (int k = 0; k < length; k++) {
+			int j = reversed[k];
+			if (j > k) {
+				double t = re[k];
+				re[k] = re[j];
+				re[j] = t;
+				t = im[k];
+				im[k] = im[j];
+				im[j] = t;
+			}
+		}
+
+		double direction = inverse ? 1 : -1;
+		for (int half = 1; half < length; half *= 2) {
+			int step = length / (2 * half);
+			for (int start = 0; start < length; start += 2 * half) {
+				for (int k = 0; k < half; k++) {
+					double c = cos[k * step];
+					double s = direction * sin[k * step];
+					int a = start + k;
+					int b = a + half;
+					double bRe = re[b] * c - im[b] * s;
+					double bIm = re[b] * s + im[b] * c;
+					re[b] = re[a] - bRe;
+					im[b] = im[a] - bIm;
+					re[a] += bRe;
+					im[a] += bIm;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,393 @@
+import java.util.Arrays;
+
+/**
+ * The FrameGovernor class trades accuracy for speed to hold the simulation at
+ * a target number of steps per second. It keeps a rolling average of how long
+ * each phase of a step takes, and when the steps run too slowly it makes the
+ * costliest phase cheaper: it paints the system less often, raises theta, or
+ * lets the leaves of the tree hold more particles. When the steps run well
+ * ahead of the target, it gives the accuracy back in the opposite order, but
+ * never past the settings it started from.
+ *
+ * To keep the settings from flipping back and forth, the steps have to be
+ * well off the target before anything changes, and after every change the
+ * governor waits for a fresh set of timings under the new settings. It also
+ * remembers how much each change sped the steps up, and only undoes a change
+ * if the steps would still be inside the band after it is undone, so a
+ * change that more than halves the step time is not undone straight away.
+ *
+ * Theta and the leaf size are only changed while the system's forces come
+ * from walking the tree. Under the particle-mesh solver or direct summation
+ * they make no difference to the step time, so the governor leaves them be,
+ * and gives back any change it made to them before the solver was switched.
+ *
+ * Only the governor's own changes are ever undone. A setting that has been
+ * changed by someone else since the governor last touched it, such as theta
+ * from the buttons, is taken as the new starting point.
+ *
+ * @author Christopher Glasz
+ */
+public class FrameGovernor {
+
+	/**
+	 * The number of steps the timings are averaged over, and waited out after
+	 * every change
+	 */
+	public static final int WINDOW = 8;
+
+	/**
+	 * How far over the target a step may take before the governor makes the
+	 * steps cheaper, as a fraction of the target
+	 */
+	public static final double SLOW_BAND = 0.1;
+
+	/**
+	 * How far under the target a step has to take before the governor gives
+	 * back accuracy, as a fraction of the target
+	 */
+	public static final double FAST_BAND = 0.4;
+
+	/**
+	 * The largest theta the governor will raise theta to
+	 */
+	public static final double MAX_THETA = 1.2;
+
+	/**
+	 * The amount theta is raised by at a time
+	 */
+	public static final double THETA_STEP = 0.1;
+
+	/**
+	 * The largest leaf size the governor will raise the leaf size to
+	 */
+	public static final int MAX_LEAF_SIZE = 64;
+
+	/**
+	 * The most steps the governor will let go by between paints
+	 */
+	public static final int MAX_RENDER_INTERVAL = 16;
+
+	/**
+	 * The settings the governor can change
+	 */
+	private static final int THETA = 0, LEAF_SIZE = 1, RENDER_INTERVAL = 2;
+
+	/**
+	 * The setting each change the governor has made was to, oldest first
+	 */
+	private int[] changed;
+
+	/**
+	 * The value each changed setting had before the change
+	 */
+	private double[] previous;
+
+	/**
+	 * How much longer a step took before each change than after it. Until
+	 * the steps after the last change have been timed, its entry holds the
+	 * step time from before it.
+	 */
+	private double[] slowdown;
+
+	/**
+	 * The number of changes the governor has made and not undone
+	 */
+	private int changes;
+
+	/**
+	 * Boolean to determine whether the last change is still waiting for the
+	 * steps after it to be timed
+	 */
+	private boolean measuring;
+
+	/**
+	 * The value the governor last left theta at
+	 */
+	private double theta;
+
+	/**
+	 * The value the governor last left the leaf size at
+	 */
+	private int leafSize;
+
+	/**
+	 * The value the governor last left the render interval at
+	 */
+	private int renderInterval;
+
+	/**
+	 * The rolling average time, in nanoseconds, of building the tree,
+	 * computing the forces, moving the particles, and painting them
+	 */
+	private double build, force, move, paint;
+
+	/**
+	 * The number of steps timed since the last change
+	 */
+	private int steps;
+
+	/**
+	 * Constructor starts the governor from the current settings
+	 */
+	public FrameGovernor() {
+		changed = new int[8];
+		previous = new double[8];
+		slowdown = new double[8];
+		remember();
+	}
+
+	/**
+	 * Adds the timings of the step the given system has just taken to the
+	 * averages, and changes the settings if the steps are running too slowly
+	 * or well ahead of the target
+	 *
+	 * @param system
+	 */
+	public void update(ParticleSystem system) {
+		forgetOthersChanges();
+		boolean walksTree = system.walksTree();
+		if (!walksTree)
+			giveBackTreeChanges();
+
+		// The first step after a change starts the averages over
+		double weight = 1.0 / Math.min(steps + 1, WINDOW);
+		build += weight * (system.getBuildTime() - build);
+		force += weight * (system.getForceTime() - force);
+		move += weight * (system.getMoveTime() - move);
+		paint += weight * (system.getPaintTime() - paint);
+		if (++steps < WINDOW || Universe.targetRate <= 0)
+			return;
+
+		// The painting is only paid for once every render interval
+		double target = 1e9 / Universe.targetRate;
+		double render = paint / Universe.renderInterval;
+		double step = build + force + move + render;
+		if (measuring) {
+			slowdown[changes - 1] /= Math.max(step, 1);
+			measuring = false;
+		}
+		boolean changed = false;
+		if (step > target * (1 + SLOW_BAND))
+			changed = speedUp(render > build + force + move, build > force,
+					walksTree);
+		else if (step < target * (1 - FAST_BAND))
+			changed = slowDown(step, target);
+		if (changed) {
+			steps = 0;
+			if (changes > 0 && slowdown[changes - 1] < 0) {
+				slowdown[changes - 1] = step;
+				measuring = true;
+			}
+		}
+		remember();
+	}
+
+	/**
+	 * Undoes every change the governor has made to a setting that nobody
+	 * else has changed since
+	 */
+	public void restore() {
+		forgetOthersChanges();
+		while (changes > 0)
+			undo();
+		measuring = false;
+		remember();
+	}
+
+	/**
+	 * Makes the steps cheaper, starting with the phase that costs the most
+	 *
+	 * @param paintBound
+	 *            true if painting costs more than the rest of the step
+	 * @param buildBound
+	 *            true if building the tree costs more than the forces
+	 * @param walksTree
+	 *            true if the forces come from walking the tree, so that theta
+	 *            and the leaf size are worth changing
+	 * @return true if anything was changed
+	 */
+	private boolean speedUp(boolean paintBound, boolean buildBound,
+			boolean walksTree) {
+		if (paintBound && raiseRenderInterval())
+			return true;
+		if (walksTree) {
+			if (buildBound && raiseLeafSize())
+				return true;
+			if (raiseTheta() || raiseLeafSize())
+				return true;
+		}
+		return raiseRenderInterval();
+	}
+
+	/**
+	 * Gives back accuracy by undoing the last change, as long as the steps
+	 * are expected to stay inside the band once it is undone
+	 *
+	 * @param step
+	 *            the average time of a step, in nanoseconds
+	 * @param target
+	 *            the time a step is meant to take, in nanoseconds
+	 * @return true if anything was changed
+	 */
+	private boolean slowDown(double step, double target) {
+		if (changes == 0
+				|| step * slowdown[changes - 1] > target * (1 + SLOW_BAND))
+			return false;
+		undo();
+		return true;
+	}
+
+	/**
+	 * Raises theta by a step, unless it is already as high as it may go
+	 *
+	 * @return true if theta was raised
+	 */
+	private boolean raiseTheta() {
+		if (!tunesTheta() || Universe.theta >= MAX_THETA - 1e-9)
+			return false;
+		record(THETA, Universe.theta);
+		Universe.theta = Math.min(Universe.theta + THETA_STEP, MAX_THETA);
+		return true;
+	}
+
+	/**
+	 * Doubles the leaf size, unless it is already as large as it may go
+	 *
+	 * @return true if the leaf size was raised
+	 */
+	private boolean raiseLeafSize() {
+		if (Universe.leafSize >= MAX_LEAF_SIZE)
+			return false;
+		record(LEAF_SIZE, Universe.leafSize);
+		Universe.leafSize = Math.min(Universe.leafSize * 2, MAX_LEAF_SIZE);
+		return true;
+	}
+
+	/**
+	 * Doubles the render interval, unless it is already as long as it may go
+	 *
+	 * @return true if the render interval was raised
+	 */
+	private boolean raiseRenderInterval() {
+		if (Universe.renderInterval >= MAX_RENDER_INTERVAL)
+			return false;
+		record(RENDER_INTERVAL, Universe.renderInterval);
+		Universe.renderInterval = Math.min(Universe.renderInterval * 2,
+				MAX_RENDER_INTERVAL);
+		return true;
+	}
+
+	/**
+	 * Adds a change to the given setting to the list of changes made, with
+	 * the value it had before. Its slowdown is filled in once the steps after
+	 * it have been timed.
+	 *
+	 * @param setting
+	 * @param value
+	 */
+	private void record(int setting, double value) {
+		if (changes == changed.length) {
+			changed = Arrays.copyOf(changed, changes * 2);
+			previous = Arrays.copyOf(previous, changes * 2);
+			slowdown = Arrays.copyOf(slowdown, changes * 2);
+		}
+		changed[changes] = setting;
+		previous[changes] = value;
+		slowdown[changes] = -1;
+		changes++;
+	}
+
+	/**
+	 * Undoes the last change the governor made
+	 */
+	private void undo() {
+		changes--;
+		if (changed[changes] == THETA)
+			Universe.theta = previous[changes];
+		else if (changed[changes] == LEAF_SIZE)
+			Universe.leafSize = (int) previous[changes];
+		else
+			Universe.renderInterval = (int) previous[changes];
+	}
+
+	/**
+	 * Drops the changes to any setting that has been changed by someone else
+	 * since the governor last left it, so that their value is kept
+	 */
+	private void forgetOthersChanges() {
+		boolean thetaTaken = Universe.theta != theta;
+		boolean leafSizeTaken = Universe.leafSize != leafSize;
+		boolean intervalTaken = Universe.renderInterval != renderInterval;
+		int kept = 0;
+		for (int i = 0; i < changes; i++) {
+			if ((changed[i] == THETA && thetaTaken)
+					|| (changed[i] == LEAF_SIZE && leafSizeTaken)
+					|| (changed[i] == RENDER_INTERVAL && intervalTaken)) {
+
+				// The last change can no longer be timed
+				if (i == changes - 1)
+					measuring = false;
+				continue;
+			}
+			changed[kept] = changed[i];
+			previous[kept] = previous[i];
+			slowdown[kept] = slowdown[i];
+			kept++;
+		}
+		changes = kept;
+		remember();
+	}
+
+	/**
+	 * Undoes every change the governor has made to theta or the leaf size,
+	 * leaving its changes to the render interval in place, so that a solver
+	 * that makes no use of them is not left with a coarsened theta. The earliest
+	 * change to each setting holds the value it started from.
+	 */
+	private void giveBackTreeChanges() {
+		int kept = 0;
+		for (int i = 0; i < changes; i++) {
+			if (changed[i] == RENDER_INTERVAL) {
+				changed[kept] = changed[i];
+				previous[kept] = previous[i];
+				slowdown[kept] = slowdown[i];
+				kept++;
+				continue;
+			}
+			if (i == changes - 1)
+				measuring = false;
+
+			// Once a setting is given back, it no longer matches the value
+			// the governor left it at, so its later changes are skipped
+			if (changed[i] == THETA && Universe.theta == theta)
+				Universe.theta = previous[i];
+			else if (changed[i] == LEAF_SIZE && Universe.leafSize == leafSize)
+				Universe.leafSize = (int) previous[i];
+		}
+
+		// The timings so far were taken under the changes just given back
+		if (kept < changes)
+			steps = 0;
+		changes = kept;
+		remember();
+	}
+
+	/**
+	 * Remembers the values the governor has left the settings at
+	 */
+	private void remember() {
+		theta = Universe.theta;
+		leafSize = Universe.leafSize;
+		renderInterval = Universe.renderInterval;
+	}
+
+	/**
+	 * Returns true if theta is the governor's to change. The theta tuner and
+	 * the relative opening criterion both have their own say over it.
+	 *
+	 * @return true if the governor may change theta
+	 */
+	private boolean tunesTheta() {
+		return !Universe.autoTheta && !Universe.relativeOpening;
+	}
+}
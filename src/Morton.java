@@ -0,0 +1,209 @@
+import java.util.Arrays;
+
+/**
+ * The Morton class holds the arithmetic for Morton codes, which order points
+ * along a Z-order curve. A point's code is made by quantizing its coordinates
+ * and interleaving their bits, so points whose codes share a prefix lie in the
+ * same quadrant (or octant) of the tree. Sorting particles by their codes
+ * therefore lists the particles of every node together, and particles that are
+ * close in space end up close together in the list.
+ *
+ * @author Christopher Glasz
+ */
+public class Morton {
+
+	/**
+	 * The number of bits per coordinate in a two dimensional code
+	 */
+	public static final int BITS_2D = 31;
+
+	/**
+	 * The number of bits per coordinate in a three dimensional code
+	 */
+	public static final int BITS_3D = 21;
+
+	/**
+	 * The number of bits sorted on in each pass of the radix sort
+	 */
+	private static final int RADIX_BITS = 8;
+
+	/**
+	 * The number of buckets in each pass of the radix sort
+	 */
+	private static final int RADIX = 1 << RADIX_BITS;
+
+	/**
+	 * The class only holds static methods, so it is never instantiated
+	 */
+	private Morton() {
+	}
+
+	/**
+	 * Quantizes a coordinate to a cell of a grid with 2^bits cells along the
+	 * side of a box starting at the given corner
+	 *
+	 * @param value
+	 * @param corner
+	 * @param scale
+	 *            the number of cells per unit of length
+	 * @param bits
+	 * @return the index of the cell holding the coordinate
+	 */
+	public static int quantize(double value, double corner, double scale,
+			int bits) {
+		long cell = (long) ((value - corner) * scale);
+		long max = (1L << bits) - 1;
+		if (cell < 0)
+			return 0;
+		if (cell > max)
+			return (int) max;
+		return (int) cell;
+	}
+
+	/**
+	 * Spreads the low 32 bits of the value out so there is a zero bit between
+	 * each of them
+	 *
+	 * @param value
+	 * @return the spread out bits
+	 */
+	public static long spread2(int value) {
+		long v = value & 0xFFFFFFFFL;
+		v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+		v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+		v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		v = (v | (v << 2)) & 0x3333333333333333L;
+		v = (v | (v << 1)) & 0x5555555555555555L;
+		return v;
+	}
+
+	/**
+	 * Spreads the low 21 bits of the value out so there are two zero bits
+	 * between each of them
+	 *
+	 * @param value
+	 * @return the spread out bits
+	 */
+	public static long spread3(int value) {
+		long v = value & 0x1FFFFFL;
+		v = (v | (v << 32)) & 0x001F00000000FFFFL;
+		v = (v | (v << 16)) & 0x001F0000FF0000FFL;
+		v = (v | (v << 8)) & 0x100F00F00F00F00FL;
+		v = (v | (v << 4)) & 0x10C30C30C30C30C3L;
+		v = (v | (v << 2)) & 0x1249249249249249L;
+		return v;
+	}
+
+	/**
+	 * Returns the two dimensional code of the given grid cell. The x bit of
+	 * each level comes first, matching the order of a node's children.
+	 *
+	 * @param x
+	 * @param y
+	 * @return the Morton code of the cell
+	 */
+	public static long encode(int x, int y) {
+		return spread2(x) | (spread2(y) << 1);
+	}
+
+	/**
+	 * Returns the three dimensional code of the given grid cell
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return the Morton code of the cell
+	 */
+	public static long encode(int x, int y, int z) {
+		return spread3(x) | (spread3(y) << 1) | (spread3(z) << 2);
+	}
+
+	/**
+	 * Sorts the first n keys, carrying the values along with them. This is a
+	 * least significant digit radix sort, so keys that are equal keep their
+	 * order. Passes over digits that every key shares are skipped. The scratch
+	 * arrays must be at least n long; the sorted keys and values end up in the
+	 * original arrays.
+	 *
+	 * @param keys
+	 * @param values
+	 * @param n
+	 * @param keyScratch
+	 * @param valueScratch
+	 * @param bits
+	 *            the number of low bits the keys use
+	 */
+	public static void sort(long[] keys, int[] values, int n,
+			long[] keyScratch, int[] valueScratch, int bits) {
+		sort(keys, values, 0, n, keyScratch, valueScratch, bits);
+	}
+
+	/**
+	 * Sorts the keys between the given positions, carrying the values along
+	 * with them, using the same positions of the scratch arrays. Only the
+	 * given number of low bits of the keys are sorted on, so keys that differ
+	 * only above them keep their order.
+	 *
+	 * @param keys
+	 * @param values
+	 * @param start
+	 * @param end
+	 * @param keyScratch
+	 * @param valueScratch
+	 * @param bits
+	 *            the number of low bits to sort on
+	 */
+	public static void sort(long[] keys, int[] values, int start, int end,
+			long[] keyScratch, int[] valueScratch, int bits) {
+		if (end - start < 2)
+			return;
+		int n = end - start;
+		int[] counts = new int[RADIX];
+		long[] fromKeys = keys, toKeys = keyScratch;
+		int[] fromValues = values, toValues = valueScratch;
+
+		for (int shift = 0; shift < bits; shift += RADIX_BITS) {
+
+			// The last pass may only have a few bits left to sort on
+			int mask = (1 << Math.min(RADIX_BITS, bits - shift)) - 1;
+
+			// Count how many keys fall in each bucket
+			Arrays.fill(counts, 0);
+			for (int i = start; i < end; i++)
+				counts[(int) (fromKeys[i] >>> shift) & mask]++;
+
+			// If every key is in the same bucket, this pass changes nothing
+			if (counts[(int) (fromKeys[start] >>> shift) & mask] == n)
+				continue;
+
+			// Turn the counts into starting positions
+			int total = start;
+			for (int b = 0; b < RADIX; b++) {
+				int c = counts[b];
+				counts[b] = total;
+				total += c;
+			}
+
+			// Deal the keys out into their buckets
+			for (int i = start; i < end; i++) {
+				int b = (int) (fromKeys[i] >>> shift) & mask;
+				int to = counts[b]++;
+				toKeys[to] = fromKeys[i];
+				toValues[to] = fromValues[i];
+			}
+
+			long[] swapKeys = fromKeys;
+			fromKeys = toKeys;
+			toKeys = swapKeys;
+			int[] swapValues = fromValues;
+			fromValues = toValues;
+			toValues = swapValues;
+		}
+
+		// Make sure the result is in the arrays we were given
+		if (fromKeys != keys) {
+			System.arraycopy(fromKeys, start, keys, start, n);
+			System.arraycopy(fromValues, start, values, start, n);
+		}
+	}
+}
@@ -1,15 +1,45 @@
-import java.awt.Graphics;
+import java.util.Arrays;
 
 /**
  * The Octree class defines a three dimensional binary tree. Each node
  * references a octant. The root node references a octant that encompasses all
  * other sub-octants.
- * 
+ *
+ * The nodes are kept in arrays the same way as in the Quadtree class, with
+ * eight children per node and the third dimension in arrays of its own.
+ *
  * @author Christopher Glasz
- * 
+ *
  */
 public class Octree extends Quadtree {
 
+	/**
+	 * The z coordinate of the top upper left corner of each node's octant
+	 */
+	protected double[] cornerZ;
+
+	/**
+	 * The z coordinate of the center of mass of each node's octant
+	 */
+	protected double[] comZ;
+
+	/**
+	 * The z component of the speed of the center of mass of each node's
+	 * octant
+	 */
+	protected double[] comZSpeed;
+
+	/**
+	 * The second moments of the mass in each node's octant that involve the z
+	 * axis
+	 */
+	protected double[] quadXZ, quadYZ, quadZZ;
+
+	/**
+	 * The z coordinate of each particle, in the tree's order
+	 */
+	protected double[] bodyZ;
+
 	/**
 	 * Default constructor should never be used
 	 */
@@ -17,181 +47,702 @@ public class Octree extends Quadtree {
 	}
 
 	/**
-	 * Constructor defines a octant, of which all other octants will be a part
-	 * of
-	 * 
-	 * @param oct
+	 * Constructor creates an empty tree that will be populated with the given
+	 * particles
+	 *
+	 * @param particles
+	 */
+	public Octree(ParticleStore particles) {
+		super(particles);
+		cornerZ = new double[firstChild.length];
+		comZ = new double[firstChild.length];
+		comZSpeed = new double[firstChild.length];
+		quadXZ = new double[firstChild.length];
+		quadYZ = new double[firstChild.length];
+		quadZZ = new double[firstChild.length];
+		bodyZ = new double[0];
+	}
+
+	/**
+	 * Empties the tree, leaving only a root octant with the given top upper
+	 * left corner and width
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param width
+	 */
+	public void reset(double x, double y, double z, double width) {
+		super.reset(x, y, width);
+		cornerZ[ROOT] = z;
+	}
+
+	/**
+	 * Returns the number of children each node has
+	 *
+	 * @return the number of children each node has
+	 */
+	public int getChildCount() {
+		return 8;
+	}
+
+	/**
+	 * Makes sure there is room for at least the given number of nodes
+	 *
+	 * @param capacity
+	 */
+	protected void ensureCapacity(int capacity) {
+		super.ensureCapacity(capacity);
+		if (cornerZ.length < firstChild.length) {
+			cornerZ = Arrays.copyOf(cornerZ, firstChild.length);
+			comZ = Arrays.copyOf(comZ, firstChild.length);
+			comZSpeed = Arrays.copyOf(comZSpeed, firstChild.length);
+			quadXZ = Arrays.copyOf(quadXZ, firstChild.length);
+			quadYZ = Arrays.copyOf(quadYZ, firstChild.length);
+			quadZZ = Arrays.copyOf(quadZZ, firstChild.length);
+		}
+	}
+
+	/**
+	 * Makes sure there is room to list at least the given number of particles
+	 *
+	 * @param capacity
+	 */
+	protected void ensureParticleCapacity(int capacity) {
+		super.ensureParticleCapacity(capacity);
+		if (bodyZ.length < order.length)
+			bodyZ = new double[order.length];
+	}
+
+	/**
+	 * Sets up the given node as an empty leaf covering the given octant
+	 *
+	 * @param node
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param width
 	 */
-	public Octree(Octant oct) {
-		root = new TreeNode3D(oct);
+	protected void initNode(int node, double x, double y, double z,
+			double width) {
+		cornerZ[node] = z;
+		initNode(node, x, y, width);
 	}
 
 	/**
-	 * Returns the size (number of octants) of the tree
-	 * 
-	 * @return the size (number of octants) of the tree
+	 * Empties the given node of particles
+	 *
+	 * @param node
 	 */
-	public int size() {
-		return size((TreeNode3D) root);
+	protected void empty(int node) {
+		super.empty(node);
+		comZ[node] = 0;
+		comZSpeed[node] = 0;
 	}
 
 	/**
-	 * Returns the size (number of octants) of the tree
-	 * 
-	 * @param root
-	 * @return the size (number of octants) of the tree
+	 * Returns true if the root octant contains the given coordinates
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return true if the root octant contains the given coordinates
 	 */
-	private int size(TreeNode3D root) {
-		if (root.isInternal())
-			return size(root.getI()) + size(root.getII()) + size(root.getIII())
-					+ size(root.getIV()) + size(root.getV())
-					+ size(root.getVI()) + size(root.getVII())
-					+ size(root.getVIII());
-		else
-			return 1;
+	public boolean contains(double x, double y, double z) {
+		return contains(x, y) && z >= cornerZ[ROOT]
+				&& z < cornerZ[ROOT] + width[ROOT];
 	}
 
 	/**
-	 * Returns the population (number of particles) of the tree
-	 * 
-	 * @return the population (number of particles) of the tree
+	 * Returns true if the root octant contains the particle with the given
+	 * index
+	 *
+	 * @param particle
+	 * @return true if the root octant contains the particle
 	 */
-	public int population() {
-		return population((TreeNode3D) root);
+	public boolean contains(int particle) {
+		return contains(particles.x[particle], particles.y[particle],
+				particles.z[particle]);
 	}
 
 	/**
-	 * Returns the population (number of particles) of the tree
-	 * 
-	 * @param root
-	 * @return the population (number of particles) of the tree
+	 * Returns true if the given node's octant contains the particle with the
+	 * given index
+	 *
+	 * @param node
+	 * @param particle
+	 * @return true if the octant contains the particle
 	 */
-	private int population(TreeNode3D root) {
-		if (root.isInternal())
-			return population(root.getI()) + population(root.getII())
-					+ population(root.getIII()) + population(root.getIV())
-					+ population(root.getV()) + population(root.getVI())
-					+ population(root.getVII()) + population(root.getVII());
-		else {
-			if (root.getOct().isFull())
-				return 1;
-			else
-				return 0;
+	protected boolean holds(int node, int particle) {
+		double z = particles.z[particle];
+		return super.holds(node, particle) && z >= cornerZ[node]
+				&& z < cornerZ[node] + width[node];
+	}
+
+	/**
+	 * Subdivides the node, putting its eight octants at the given index on
+	 *
+	 * @param node
+	 * @param first
+	 */
+	protected void subdivide(int node, int first) {
+		// For explanation, see comments in the Quadtree class. Bit 2 is set
+		// for the back half of the octant
+		firstChild[node] = first;
+
+		double half = width[node] / 2.0;
+		for (int i = 0; i < 8; i++) {
+			initNode(first + i, cornerX[node] + (i & 1) * half, cornerY[node]
+					+ ((i >> 1) & 1) * half, cornerZ[node] + ((i >> 2) & 1)
+					* half, half);
 		}
 	}
 
 	/**
-	 * Inserts the passed particle into the correct octant
-	 * 
+	 * Returns the child of the given internal node whose octant contains the
+	 * given particle
+	 *
+	 * @param node
 	 * @param particle
+	 * @return the child containing the particle
+	 */
+	protected int childContaining(int node, int particle) {
+		double half = width[node] / 2.0;
+		int i = 0;
+		if (particles.x[particle] >= cornerX[node] + half)
+			i |= 1;
+		if (particles.y[particle] >= cornerY[node] + half)
+			i |= 2;
+		if (particles.z[particle] >= cornerZ[node] + half)
+			i |= 4;
+		return firstChild[node] + i;
+	}
+
+	/**
+	 * Copies the locations of the particles between the given positions in
+	 * the tree's order next to each other
+	 *
+	 * @param start
+	 * @param end
 	 */
-	public void insertParticle(Particle3D particle) {
-		insertParticle((TreeNode3D) root, particle);
+	protected void gatherBodies(int start, int end) {
+		super.gatherBodies(start, end);
+		for (int k = start; k < end; k++)
+			bodyZ[k] = particles.z[order[k]];
 	}
 
 	/**
-	 * Inserts the passed particle into the correct octant
-	 * 
-	 * @param root
+	 * Returns the number of levels the Morton codes can tell apart
+	 *
+	 * @return the number of bits per coordinate in a Morton code
+	 */
+	protected int getLevels() {
+		return Morton.BITS_3D;
+	}
+
+	/**
+	 * Returns the number of Morton code bits that pick a child at each level
+	 *
+	 * @return the number of Morton code bits per level
+	 */
+	protected int getLevelBits() {
+		return 3;
+	}
+
+	/**
+	 * Computes the Morton code of each particle between the given indices,
+	 * relative to the root octant, and lists the particles in their original
+	 * order
+	 *
+	 * @param start
+	 * @param end
+	 */
+	protected void computeKeys(int start, int end) {
+		double scale = (1L << Morton.BITS_3D) / width[ROOT];
+		for (int i = start; i < end; i++) {
+			int qx = Morton.quantize(particles.x[i], cornerX[ROOT], scale,
+					Morton.BITS_3D);
+			int qy = Morton.quantize(particles.y[i], cornerY[ROOT], scale,
+					Morton.BITS_3D);
+			int qz = Morton.quantize(particles.z[i], cornerZ[ROOT], scale,
+					Morton.BITS_3D);
+			keys[i] = Morton.encode(qx, qy, qz);
+			order[i] = i;
+		}
+	}
+
+	/**
+	 * Sets the given leaf's mass and center of mass from the particles it
+	 * holds
+	 *
+	 * @param node
+	 */
+	protected void sumLeaf(int node) {
+		super.sumLeaf(node);
+		int start = rangeStart[node];
+		int count = rangeCount[node];
+		if (count == 0)
+			return;
+		double z = 0, zSpeed = 0;
+		for (int k = start; k < start + count; k++) {
+			z += bodyZ[k];
+			zSpeed += particles.zSpeed[order[k]];
+		}
+		comZ[node] = z / count;
+		comZSpeed[node] = zSpeed / count;
+	}
+
+	/**
+	 * Sets the given internal node's mass and center of mass from those of its
+	 * children
+	 *
+	 * @param node
+	 */
+	protected void sumChildren(int node) {
+		super.sumChildren(node);
+		double z = 0, zSpeed = 0;
+		int first = firstChild[node];
+		for (int child = first; child < first + 8; child++) {
+			z += totalMass[child] * comZ[child];
+			zSpeed += totalMass[child] * comZSpeed[child];
+		}
+		if (totalMass[node] > 0) {
+			comZ[node] = z / totalMass[node];
+			comZSpeed[node] = zSpeed / totalMass[node];
+		}
+	}
+
+	/**
+	 * Sets the given leaf's second moments from the particles it holds
+	 *
+	 * @param node
+	 */
+	protected void sumLeafMoments(int node) {
+		super.sumLeafMoments(node);
+		double xz = 0, yz = 0, zz = 0;
+		int start = rangeStart[node];
+		int end = start + rangeCount[node];
+		for (int k = start; k < end; k++) {
+			double dx = bodyX[k] - comX[node];
+			double dy = bodyY[k] - comY[node];
+			double dz = bodyZ[k] - comZ[node];
+			xz += dx * dz;
+			yz += dy * dz;
+			zz += dz * dz;
+		}
+		quadXZ[node] = Particle.mass * xz;
+		quadYZ[node] = Particle.mass * yz;
+		quadZZ[node] = Particle.mass * zz;
+	}
+
+	/**
+	 * Sets the given internal node's second moments from those of its
+	 * children
+	 *
+	 * @param node
+	 */
+	protected void sumChildMoments(int node) {
+		super.sumChildMoments(node);
+		double xz = 0, yz = 0, zz = 0;
+		int first = firstChild[node];
+		for (int child = first; child < first + 8; child++) {
+			double m = totalMass[child];
+			if (m == 0)
+				continue;
+			double dx = comX[child] - comX[node];
+			double dy = comY[child] - comY[node];
+			double dz = comZ[child] - comZ[node];
+			xz += quadXZ[child] + m * dx * dz;
+			yz += quadYZ[child] + m * dy * dz;
+			zz += quadZZ[child] + m * dz * dz;
+		}
+		quadXZ[node] = xz;
+		quadYZ[node] = yz;
+		quadZZ[node] = zz;
+	}
+
+	/**
+	 * Computes the net force the particle with the passed index experiences as
+	 * a result of the other particles populating the tree, and stores it with
+	 * the particle, with the given theta outside the region of interest
+	 *
 	 * @param particle
+	 * @param baseTheta
 	 */
-	private void insertParticle(TreeNode3D root, Particle3D particle) {
-		if (!root.isInternal()) {	
-			if (root.getOct().isFull()) { 
-				
-				// If the octant is full, we need to split it up
-				Particle3D preExisting = root.getOct().getParticle();
-				
-				if (!(preExisting.getX() == particle.getX()
-						&& preExisting.getY() == particle.getY() && preExisting
-							.getZ() == particle.getZ())) {
-					
-					// Empty the octant
-					root.getOct().empty();
-					
-					// Divide it
-					subdivide(root);
-					
-					// Distribute the two particles into the new sub-octants
-					insertParticle(root, preExisting);
-					insertParticle(root, particle);
-					
-				} else {
-					
-					// Overlaps are practically impossible
-					System.out.println("Somehow overlapped");
-					System.out.println("\t" + population()
-							+ " particles distributed through " + size()
-							+ " octants.");
+	public void computeForce(int particle, double baseTheta) {
+		// For explanation, see comments in the Quadtree class
+		double x = particles.x[particle];
+		double y = particles.y[particle];
+		double z = particles.z[particle];
+		double threshold = openingThreshold(particle);
+		double theta = openingTheta(x, x, y, y, z, z, baseTheta);
+		particles.xNetForce[particle] = 0;
+		particles.yNetForce[particle] = 0;
+		particles.zNetForce[particle] = 0;
 
-				}
-			} else {
-				try {
-					root.getOct().insertParticle(particle);
-				} catch (Exception e) {
-					System.out.println(e.getMessage());
+		ForceKernel kernel = kernels.get();
+		kernel.clear();
+		gatherSources(ROOT, particle, x, y, z, threshold, theta, kernel);
+		kernel.apply(x, y, z);
+		particles.xNetForce[particle] += kernel.xForce;
+		particles.yNetForce[particle] += kernel.yForce;
+		particles.zNetForce[particle] += kernel.zForce;
+		particles.interactions[particle] = kernel.interactions;
+	}
+
+	/**
+	 * Recursively adds the sources of force within the passed node to the
+	 * kernel's batch, for the particle with the passed index, which is at the
+	 * given location
+	 *
+	 * @param node
+	 * @param particle
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param threshold
+	 * @param theta
+	 * @param kernel
+	 */
+	private void gatherSources(int node, int particle, double x, double y,
+			double z, double threshold, double theta, ForceKernel kernel) {
+		// For explanation, see comments in the Quadtree class
+		if (totalMass[node] == 0)
+			return;
+		int first = firstChild[node];
+		if (first == NONE) {
+			int start = rangeStart[node];
+			kernel.sum(bodyX, bodyY, bodyZ, start, start + rangeCount[node],
+					Particle.mass, x, y, z);
+			return;
+		}
+		double dx = comX[node] - x;
+		double dy = comY[node] - y;
+		double dz = comZ[node] - z;
+		double distSquared = dx * dx + dy * dy + dz * dz;
+		if (isFarEnough(node, distSquared, threshold, theta)
+				&& (threshold == 0 || !touches(node, x, x, y, y, z, z))) {
+			kernel.add(comX[node], comY[node], comZ[node], totalMass[node],
+					node);
+			if (Universe.quadrupole)
+				accumulateQuadrupoleForce(node, particle, -dx, -dy, -dz,
+						distSquared, Math.sqrt(distSquared));
+		} else {
+			for (int child = first; child < first + 8; child++)
+				gatherSources(child, particle, x, y, z, threshold, theta,
+						kernel);
+		}
+	}
+
+	/**
+	 * Computes the net force on every particle of the group with the given
+	 * index, and stores it with the particle, with the given theta outside
+	 * the region of interest
+	 *
+	 * @param group
+	 * @param baseTheta
+	 */
+	public void computeGroupForces(int group, double baseTheta) {
+		// For explanation, see comments in the Quadtree class
+		int node = groups[group];
+		int start = rangeStart[node];
+		int end = start + rangeCount[node];
+
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		double minZ = Double.POSITIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+		double threshold = Double.POSITIVE_INFINITY;
+		for (int k = start; k < end; k++) {
+			minX = Math.min(minX, bodyX[k]);
+			maxX = Math.max(maxX, bodyX[k]);
+			minY = Math.min(minY, bodyY[k]);
+			maxY = Math.max(maxY, bodyY[k]);
+			minZ = Math.min(minZ, bodyZ[k]);
+			maxZ = Math.max(maxZ, bodyZ[k]);
+			threshold = Math.min(threshold, openingThreshold(order[k]));
+		}
+		double theta = openingTheta(minX, maxX, minY, maxY, minZ, maxZ,
+				baseTheta);
+
+		ForceKernel kernel = kernels.get();
+		kernel.clear();
+		gatherGroupSources(ROOT, minX, maxX, minY, maxY, minZ, maxZ,
+				threshold, theta, kernel);
+
+		for (int k = start; k < end; k++) {
+			int particle = order[k];
+			double x = bodyX[k];
+			double y = bodyY[k];
+			double z = bodyZ[k];
+			kernel.clearForce();
+			kernel.apply(x, y, z);
+			kernel.sumRanges(bodyX, bodyY, bodyZ, Particle.mass, x, y, z);
+			particles.xNetForce[particle] = kernel.xForce;
+			particles.yNetForce[particle] = kernel.yForce;
+			particles.zNetForce[particle] = kernel.zForce;
+			particles.interactions[particle] = kernel.interactions;
+			if (Universe.quadrupole) {
+				for (int j = 0; j < kernel.count; j++) {
+					int source = kernel.node[j];
+					double rx = x - comX[source];
+					double ry = y - comY[source];
+					double rz = z - comZ[source];
+					double distSquared = rx * rx + ry * ry + rz * rz;
+					accumulateQuadrupoleForce(source, particle, rx, ry, rz,
+							distSquared, Math.sqrt(distSquared));
 				}
 			}
+		}
+	}
+
+	/**
+	 * Recursively adds the sources of force within the passed node to the
+	 * kernel's batch, for a group of particles inside the given box
+	 *
+	 * @param node
+	 * @param minX
+	 * @param maxX
+	 * @param minY
+	 * @param maxY
+	 * @param minZ
+	 * @param maxZ
+	 * @param threshold
+	 * @param theta
+	 * @param kernel
+	 */
+	private void gatherGroupSources(int node, double minX, double maxX,
+			double minY, double maxY, double minZ, double maxZ,
+			double threshold, double theta, ForceKernel kernel) {
+		if (totalMass[node] == 0)
+			return;
+		int first = firstChild[node];
+		if (first == NONE) {
+			kernel.addRange(rangeStart[node], rangeStart[node]
+					+ rangeCount[node]);
+			return;
+		}
+
+		double dx = Math.max(Math.max(minX - comX[node], comX[node] - maxX), 0);
+		double dy = Math.max(Math.max(minY - comY[node], comY[node] - maxY), 0);
+		double dz = Math.max(Math.max(minZ - comZ[node], comZ[node] - maxZ), 0);
+		double distSquared = dx * dx + dy * dy + dz * dz;
+		if (isFarEnough(node, distSquared, threshold, theta)
+				&& (threshold == 0 || !touches(node, minX, maxX, minY, maxY,
+						minZ, maxZ))) {
+			kernel.add(comX[node], comY[node], comZ[node], totalMass[node],
+					node);
 		} else {
-			// Update the center of mass
-			root.getOct().updateCom(particle);
-			
-			// Insert into the appropriate octant
-			if (root.getI().getOct().contains(particle))
-				insertParticle(root.getI(), particle);
-			else if (root.getII().getOct().contains(particle))
-				insertParticle(root.getII(), particle);
-			else if (root.getIII().getOct().contains(particle))
-				insertParticle(root.getIII(), particle);
-			else if (root.getIV().getOct().contains(particle))
-				insertParticle(root.getIV(), particle);
-			else if (root.getV().getOct().contains(particle))
-				insertParticle(root.getV(), particle);
-			else if (root.getVI().getOct().contains(particle))
-				insertParticle(root.getVI(), particle);
-			else if (root.getVII().getOct().contains(particle))
-				insertParticle(root.getVII(), particle);
-			else if (root.getVIII().getOct().contains(particle))
-				insertParticle(root.getVIII(), particle);
-			else {
-				// We should never have reached this octant...
-				System.out.print("\nSomething went wrong: ");
-				System.out.println("\t" + population()
-						+ " particles distributed through " + size()
-						+ " octants.");
-			}
+			for (int child = first; child < first + 8; child++)
+				gatherGroupSources(child, minX, maxX, minY, maxY, minZ, maxZ,
+						threshold, theta, kernel);
 		}
 	}
 
 	/**
-	 * Paints the tree
-	 * 
-	 * @param pane
+	 * Returns the theta of the geometric opening criterion for particles
+	 * inside the given box
+	 *
+	 * @param minX
+	 * @param maxX
+	 * @param minY
+	 * @param maxY
+	 * @param minZ
+	 * @param maxZ
+	 * @param baseTheta
+	 * @return the theta for the box
 	 */
-	public void paint(Graphics pane) {
-		paintTree((TreeNode3D) root, pane);
+	private double openingTheta(double minX, double maxX, double minY,
+			double maxY, double minZ, double maxZ, double baseTheta) {
+		// For explanation, see comments in the Quadtree class
+		if (maxZ < Universe.regionMinZ || minZ > Universe.regionMaxZ)
+			return baseTheta;
+		return openingTheta(minX, maxX, minY, maxY, baseTheta);
 	}
 
 	/**
-	 * Paints the tree
-	 * 
-	 * @param root
-	 * @param pane
+	 * Returns true if the given box reaches into the node's cube grown by a
+	 * tenth of its width on every side
+	 *
+	 * @param node
+	 * @param minX
+	 * @param maxX
+	 * @param minY
+	 * @param maxY
+	 * @param minZ
+	 * @param maxZ
+	 * @return true if the box reaches into the node
 	 */
-	private void paintTree(TreeNode3D root, Graphics pane) {
-		if (root != null) {
-			root.getOct().paintBounds(pane);
-			if (root.isInternal()) {
-				paintTree(root.getI(), pane);
-				paintTree(root.getII(), pane);
-				paintTree(root.getIII(), pane);
-				paintTree(root.getIV(), pane);
-				paintTree(root.getV(), pane);
-				paintTree(root.getVI(), pane);
-				paintTree(root.getVII(), pane);
-				paintTree(root.getVIII(), pane);
+	private boolean touches(int node, double minX, double maxX, double minY,
+			double maxY, double minZ, double maxZ) {
+		// For explanation, see comments in the Quadtree class
+		double margin = 0.1 * width[node];
+		double reach = width[node] + margin;
+		return maxX > cornerX[node] - margin && minX < cornerX[node] + reach
+				&& maxY > cornerY[node] - margin
+				&& minY < cornerY[node] + reach
+				&& maxZ > cornerZ[node] - margin
+				&& minZ < cornerZ[node] + reach;
+	}
+
+	/**
+	 * Adds the short range part of the force the particle with the passed
+	 * index experiences to the force already stored with the particle, for
+	 * the TreePM solver
+	 *
+	 * @param particle
+	 * @param split
+	 */
+	public void computeShortRangeForce(int particle, ForceSplit split) {
+		// For explanation, see comments in the Quadtree class
+		double cutoff = split.getCutoff();
+		double w = width[ROOT];
+		double xForce = 0, yForce = 0, zForce = 0;
+		int interactions = 0;
+		double theta = openingTheta(particles.x[particle],
+				particles.x[particle], particles.y[particle],
+				particles.y[particle], particles.z[particle],
+				particles.z[particle], Universe.theta);
+		ForceKernel kernel = kernels.get();
+
+		for (int i = -1; i <= 1; i++) {
+			double x = particles.x[particle] + i * w;
+			if (Math.max(cornerX[ROOT] - x, x - cornerX[ROOT] - w) > cutoff)
+				continue;
+			for (int j = -1; j <= 1; j++) {
+				double y = particles.y[particle] + j * w;
+				if (Math.max(cornerY[ROOT] - y, y - cornerY[ROOT] - w) > cutoff)
+					continue;
+				for (int k = -1; k <= 1; k++) {
+					double z = particles.z[particle] + k * w;
+					if (Math.max(cornerZ[ROOT] - z, z - cornerZ[ROOT] - w)
+							> cutoff)
+						continue;
+
+					kernel.clear();
+					gatherShortRangeSources(ROOT, x, y, z, cutoff * cutoff,
+							theta, kernel);
+					kernel.applyShortRange(x, y, z, split);
+					kernel.sumRangesShortRange(bodyX, bodyY, bodyZ,
+							Particle.mass, x, y, z, split);
+					xForce += kernel.xForce;
+					yForce += kernel.yForce;
+					zForce += kernel.zForce;
+					interactions += kernel.interactions;
+				}
 			}
 		}
+		particles.xNetForce[particle] += xForce;
+		particles.yNetForce[particle] += yForce;
+		particles.zNetForce[particle] += zForce;
+		particles.interactions[particle] = interactions;
+	}
+
+	/**
+	 * Recursively adds the sources of force within the passed node to the
+	 * kernel's batch, for a particle at the given location, leaving out
+	 * every node whose cube lies farther away than the cutoff
+	 *
+	 * @param node
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param cutoffSquared
+	 * @param theta
+	 * @param kernel
+	 */
+	private void gatherShortRangeSources(int node, double x, double y,
+			double z, double cutoffSquared, double theta, ForceKernel kernel) {
+		// For explanation, see comments in the Quadtree class
+		if (totalMass[node] == 0)
+			return;
+
+		double w = width[node];
+		double nx = Math.max(Math.max(cornerX[node] - x, x - cornerX[node] - w),
+				0);
+		double ny = Math.max(Math.max(cornerY[node] - y, y - cornerY[node] - w),
+				0);
+		double nz = Math.max(Math.max(cornerZ[node] - z, z - cornerZ[node] - w),
+				0);
+		if (nx * nx + ny * ny + nz * nz > cutoffSquared)
+			return;
+
+		int first = firstChild[node];
+		if (first == NONE) {
+			kernel.addRange(rangeStart[node], rangeStart[node]
+					+ rangeCount[node]);
+			return;
+		}
+
+		double dx = comX[node] - x;
+		double dy = comY[node] - y;
+		double dz = comZ[node] - z;
+		double distSquared = dx * dx + dy * dy + dz * dz;
+		if (w * w < theta * theta * distSquared) {
+			kernel.add(comX[node], comY[node], comZ[node], totalMass[node],
+					node);
+		} else {
+			for (int child = first; child < first + 8; child++)
+				gatherShortRangeSources(child, x, y, z, cutoffSquared, theta,
+						kernel);
+		}
+	}
+
+	/**
+	 * Adds the quadrupole correction of the given node to the net force acting
+	 * on the particle with the passed index, which sits at the given offset
+	 * from the node's center of mass
+	 *
+	 * @param node
+	 * @param particle
+	 * @param rx
+	 * @param ry
+	 * @param rz
+	 * @param distSquared
+	 * @param dist
+	 */
+	private void accumulateQuadrupoleForce(int node, int particle, double rx,
+			double ry, double rz, double distSquared, double dist) {
+		// For explanation, see comments in the Quadtree class
+		double softened = distSquared + Universe.epsilon;
+		double c = (Universe.G * Particle.mass)
+				/ (softened * softened * distSquared * dist);
+		double a = 3 * distSquared + Universe.epsilon;
+		double b = 3 - a * (2 / softened + 1.5 / distSquared);
+
+		double xx = quadXX[node], xy = quadXY[node], yy = quadYY[node];
+		double xz = quadXZ[node], yz = quadYZ[node], zz = quadZZ[node];
+		double trace = xx + yy + zz;
+		double irx = xx * rx + xy * ry + xz * rz;
+		double iry = xy * rx + yy * ry + yz * rz;
+		double irz = xz * rx + yz * ry + zz * rz;
+		double rir = rx * irx + ry * iry + rz * irz;
+
+		particles.xNetForce[particle] += c
+				* (0.5 * a * (rx * trace + 2 * irx) + b * rir * rx);
+		particles.yNetForce[particle] += c
+				* (0.5 * a * (ry * trace + 2 * iry) + b * rir * ry);
+		particles.zNetForce[particle] += c
+				* (0.5 * a * (rz * trace + 2 * irz) + b * rir * rz);
+	}
+
+	/**
+	 * Returns the z value of the given node's center of mass
+	 *
+	 * @param node
+	 * @return the z value of the node's center of mass
+	 */
+	public double getComZ(int node) {
+		return comZ[node];
+	}
+
+	/**
+	 * Returns the z component of the speed of the given node's center of mass
+	 *
+	 * @param node
+	 * @return the z component of the speed of the node's center of mass
+	 */
+	public double getComZSpeed(int node) {
+		return comZSpeed[node];
 	}
 
 }
@@ -1,9 +1,8 @@
-import java.awt.Color;
-import java.awt.Graphics;
-
 /**
- * The Particle class defines a particle, with a mass, a location, a speed, a
- * net force, and a color.
+ * The Particle class defines a particle, with a mass, a location, and a speed.
+ * It is used to describe particles before they are added to a system; once
+ * added, the system keeps their state in a ParticleStore. The mass and radius
+ * are shared by every particle.
  * 
  * @author Christopher Glasz
  */
@@ -19,16 +18,6 @@ public class Particle {
 	 */
 	protected double xSpeed, ySpeed;
 
-	/**
-	 * The x component of the current net force acting on the particle
-	 */
-	protected double xNetForce;
-
-	/**
-	 * The y component of the current net force acting on the particle
-	 */
-	protected double yNetForce;
-
 	/**
 	 * The mass of the particle
 	 */
@@ -39,11 +28,6 @@ public class Particle {
 	 */
 	protected static int radius;
 
-	/**
-	 * The color of the particle
-	 */
-	protected Color color;
-
 	/**
 	 * The constructor creates a particle at the given location with a speed of
 	 * zero and the standard mass
@@ -56,177 +40,6 @@ public class Particle {
 		this.y = y;
 		this.xSpeed = 0;
 		this.ySpeed = 0;
-		this.color = Color.BLACK;
-	}
-
-	/**
-	 * Computes the net force the particle experiences as a result of other
-	 * particles populating the passed quadtree
-	 * 
-	 * @param tree
-	 */
-	public void computeForce(Quadtree tree) {
-		xNetForce = computeXForce(tree.getRoot());
-		yNetForce = computeYForce(tree.getRoot());
-	}
-
-	/**
-	 * Computes the magnitude of the net force acting on the particle
-	 * 
-	 * @param node
-	 * @return the magnitude of the net force on the particle
-	 */
-	private double computeForceMagnitude(TreeNode node) {
-		
-		// Start at zero net force
-		double netForce = 0;
-
-		// Get the distance between the two nodes
-		double dist = computeDistance(node);
-
-		// If the distance is zero, we are looking at ourself: we exert no force
-		// on ourselves, so we are skipped.
-		if (dist > 0) {
-
-			// If the node has no subquadrants, treat it like a particle and
-			// calculate the force
-			if (!node.isInternal()) {
-				double m1 = mass;
-				double m2 = node.getQuad().getTotalMass();
-				double r = dist;
-				netForce += (Universe.G * m1 * m2) / (r * r + Universe.epsilon);
-			} else {
-				
-				// The width of the quadrant
-				double s = node.getQuad().getWidth();
-				
-				// The distance to the node
-				double d = dist;
-
-				// If the node is sufficiently far away, just treat the whole
-				// quadrant like a particle. Otherwise, keep delving deeper into
-				// the tree
-				if ((s / d) < Universe.theta) {
-					double m1 = mass;
-					double m2 = node.getQuad().getTotalMass();
-					double r = dist;
-					netForce += (Universe.G * m1 * m2)
-							/ (r * r + Universe.epsilon);
-				} else {
-					netForce += computeForceMagnitude(node.getI());
-					netForce += computeForceMagnitude(node.getII());
-					netForce += computeForceMagnitude(node.getIII());
-					netForce += computeForceMagnitude(node.getIV());
-				}
-			}
-		}
-		return netForce;
-	}
-
-	/**
-	 * Recursively computes the net force acting on the particle in the x
-	 * direction
-	 * 
-	 * @param node
-	 * @return the x component of the net force acting on the particle
-	 */
-	protected double computeXForce(TreeNode node) {
-		
-		// Start at zero net force
-		double xForce = 0;
-		
-		// Compute the distance between the two nodes
-		double dist = computeDistance(node);
-		
-		// If the distance is zero, we are looking at ourself: we exert no force
-		// on ourselves, so we are skipped.
-		if (dist > 0) {
-			
-			// If the node has no subquadrants, treat it like a particle and
-			// calculate the force
-			if (!node.isInternal()) {
-				double m1 = mass;
-				double m2 = node.getQuad().getTotalMass();
-				double r = dist;
-				xForce += computeNormalizedX(node)
-						* ((Universe.G * m1 * m2) / (r * r + Universe.epsilon));
-			} else {
-
-				// The width of the quadrant
-				double s = node.getQuad().getWidth();
-
-				// The distance to the node
-				double d = dist;
-
-				// If the node is sufficiently far away, just treat the whole
-				// quadrant like a particle. Otherwise, keep delving deeper into
-				// the tree
-				if ((s / d) < Universe.theta) {
-					double m1 = mass;
-					double m2 = node.getQuad().getTotalMass();
-					double r = dist;
-					xForce += computeNormalizedX(node) * (Universe.G * m1 * m2)
-							/ (r * r + Universe.epsilon);
-				} else {
-					xForce += computeXForce(node.getI());
-					xForce += computeXForce(node.getII());
-					xForce += computeXForce(node.getIII());
-					xForce += computeXForce(node.getIV());
-				}
-			}
-		}
-		return xForce;
-	}
-
-	/**
-	 * Recursively computes the net force acting on the particle in the y
-	 * direction
-	 * 
-	 * @param node
-	 * @return the y component of the net force acting on the particle
-	 */
-	protected double computeYForce(TreeNode node) {
-		// For explanation, refer to the computeXForce method
-		double yForce = 0;
-		double dist = computeDistance(node);
-		if (dist > 0) {
-			if (!node.isInternal()) {
-				double m1 = mass;
-				double m2 = node.getQuad().getTotalMass();
-				double r = dist;
-				yForce += computeNormalizedY(node) * (Universe.G * m1 * m2)
-						/ (r * r + Universe.epsilon);
-			} else {
-				double s = node.getQuad().getWidth();
-				double d = dist;
-				if ((s / d) < Universe.theta) {
-					double m1 = mass;
-					double m2 = node.getQuad().getTotalMass();
-					double r = dist;
-					yForce += computeNormalizedY(node) * (Universe.G * m1 * m2)
-							/ (r * r + Universe.epsilon);
-				} else {
-					yForce += computeYForce(node.getI());
-					yForce += computeYForce(node.getII());
-					yForce += computeYForce(node.getIII());
-					yForce += computeYForce(node.getIV());
-				}
-			}
-		}
-		return yForce;
-	}
-
-	/**
-	 * Computes the distance between the particle and the particle the passed in
-	 * node points to
-	 * 
-	 * @param node
-	 * @return the distance between the particle and the particle the passed in
-	 *         node points to
-	 */
-	protected double computeDistance(TreeNode node) {
-		return computeDistance(node.getQuad().getComX(), node.getQuad()
-				.getComY());
 	}
 
 	/**
@@ -242,34 +55,6 @@ public class Particle {
 		return Math.sqrt(dx * dx + dy * dy);
 	}
 
-	/**
-	 * Computes the x component of the unit vector pointing from the particle to
-	 * the particle pointed to by the passed node
-	 * 
-	 * @param node
-	 * @return the x component of the unit vector pointing from the particle to
-	 *         the particle pointed to by the passed node
-	 */
-	protected double computeNormalizedX(TreeNode node) {
-		double dist = computeDistance(node);
-		double dx = node.getQuad().getComX() - x;
-		return dx / dist;
-	}
-
-	/**
-	 * Computes the y component of the unit vector pointing from the particle to
-	 * the particle pointed to by the passed node
-	 * 
-	 * @param node
-	 * @return the y component of the unit vector pointing from the particle to
-	 *         the particle pointed to by the passed node
-	 */
-	protected double computeNormalizedY(TreeNode node) {
-		double dist = computeDistance(node);
-		double dy = node.getQuad().getComY() - y;
-		return dy / dist;
-	}
-
 	/**
 	 * Computes the x component of the unit vector pointing from the particle to
 	 * the passed in coordinates
@@ -346,40 +131,6 @@ public class Particle {
 		ySpeed = (dyNormal * orbitalVelocity);
 	}
 
-	/**
-	 * Moves the particle according to its current position, speed, and the net
-	 * force acting on it
-	 */
-	public void advance() {
-		double xAcceleration = xNetForce / mass;
-		double yAcceleration = yNetForce / mass;
-
-		xSpeed += xAcceleration;
-		ySpeed += yAcceleration;
-
-		x += xSpeed;
-		y += ySpeed;
-	}
-
-	/**
-	 * Paints the particle
-	 * 
-	 * @param pane
-	 */
-	public void paint(Graphics pane) {
-		pane.setColor(color);
-		pane.fillOval((int) (x - radius / 2), (int) (y - radius / 2), radius,
-				radius);
-	}
-
-	/**
-	 * @param quad
-	 * @return True if particle is within the quadrant. False otherwise.
-	 */
-	public boolean isInside(Quadrant quad) {
-		return quad.contains(this);
-	}
-
 	/**
 	 * @return the x
 	 */
@@ -439,40 +190,4 @@ public class Particle {
 	public void setXSpeed(double xSpeed) {
 		this.xSpeed = xSpeed;
 	}
-
-	/**
-	 * @param color
-	 *            the color to set
-	 */
-	public void setColor(Color color) {
-		this.color = color;
-	}
-
-	/**
-	 * Sets the particles color according to the net force acting on it. The
-	 * larger the net force, the warmer the color. particles with low net force
-	 * are a subdued blue.
-	 */
-	public void colorByForce() {
-		
-		// Take the shortcut to finding net force
-		double netForce = Math.sqrt(xNetForce * xNetForce + yNetForce
-				* yNetForce);
-		
-		// An arbitrary number that results in a reasonable force range
-		double S = 3e10;
-		double L = netForce / S;
-
-		// Red, green, blue
-		double R, G, B;
-
-		// More arbitrary numbers that color particles between dull blue to
-		// bright yellow
-		R = Math.min(60 + L * 115, 255);
-		G = Math.min(90 + L * 35, 255);
-		B = Math.max(125 - L * 45, 80);
-
-		// Set to that color
-		color = new Color((int) R, (int) G, (int) B, 255);
-	}
 }
@@ -0,0 +1,433 @@
+import java.util.Arrays;
+
+/**
+ * The ParticleMesh class computes the forces between the particles of a
+ * periodic box with the particle-mesh method. Rather than working out the
+ * forces between particles, it works out the field of the whole box on a
+ * regular mesh of cells:
+ *
+ * Each particle's mass is shared out between the cells nearest to it, in
+ * proportion to how much a cell-sized cloud around the particle overlaps each
+ * of them. The density of the mesh is then taken through a fast Fourier
+ * transform, where the potential is just the density times the transform of
+ * the force law, and brought back. The slope of the potential between
+ * neighbouring cells gives the field on the mesh, which is handed back to the
+ * particles from the same cells their mass was shared out to.
+ *
+ * The Fourier transform treats the mesh as one tile of an endless pattern, so
+ * every particle feels the images of every other particle in the boxes
+ * around it, as in a box with periodic boundaries. The mesh itself smooths
+ * the force over about a cell, so on its own epsilon plays no part.
+ *
+ * The cost of a step grows with the number of particles and the number of
+ * cells, but not with how they are spread out, which makes the method far
+ * cheaper than a tree for large, fairly even systems.
+ *
+ * The mesh can also be given a ForceSplit, in which case it only works out
+ * the long range part of the softened force, and the tree is left to add the
+ * rest. The split mesh also undoes the smoothing that sharing the mass out
+ * and handing the field back brings, so that the two parts add up to the
+ * whole force.
+ *
+ * @author Christopher Glasz
+ */
+public class ParticleMesh {
+
+	/**
+	 * The particles the forces are computed for
+	 */
+	private ParticleStore particles;
+
+	/**
+	 * The number of dimensions of the system, either 2 or 3
+	 */
+	private int dimensions;
+
+	/**
+	 * The number of cells along each side of the mesh
+	 */
+	private int size;
+
+	/**
+	 * The total number of cells in the mesh
+	 */
+	private int cells;
+
+	/**
+	 * The location of the corner of the box with the lowest x, y and z values
+	 */
+	private double originX, originY, originZ;
+
+	/**
+	 * The width of the box
+	 */
+	private double width;
+
+	/**
+	 * The width of a cell
+	 */
+	private double cellWidth;
+
+	/**
+	 * The scale of the split between the long and short range forces, in
+	 * cells, or zero if the mesh works out the whole force
+	 */
+	private double splitScale;
+
+	/**
+	 * The softening the mesh was made for
+	 */
+	private double epsilon;
+
+	/**
+	 * The split between the long and short range forces, or null if the mesh
+	 * works out the whole force
+	 */
+	private ForceSplit split;
+
+	/**
+	 * The density of each cell, and later its potential, as a complex number
+	 * so it can be transformed in place
+	 */
+	private double[] re, im;
+
+	/**
+	 * The transform of the force law's potential at each cell of the
+	 * transformed mesh
+	 */
+	private double[] greens;
+
+	/**
+	 * The field at each cell, as the force on a unit of mass
+	 */
+	private double[] fieldX, fieldY, fieldZ;
+
+	/**
+	 * The transform run over each line of cells
+	 */
+	private FourierTransform transform;
+
+	/**
+	 * Scratch space for a line of cells
+	 */
+	private double[] lineRe, lineIm;
+
+	/**
+	 * The cells nearest to the particle last located
+	 */
+	private int[] cornerCell;
+
+	/**
+	 * The share of the particle last located each of the nearest cells gets
+	 */
+	private double[] cornerWeight;
+
+	/**
+	 * Default constructor should never be used
+	 */
+	public ParticleMesh() {
+	}
+
+	/**
+	 * Constructor sets up the method for the given particles, in a box of the
+	 * given width with its lowest corner at the given location. The number of
+	 * cells along each side of the mesh is rounded up to a power of two.
+	 *
+	 * @param particles
+	 * @param dimensions
+	 *            either 2 or 3
+	 * @param size
+	 *            the number of cells along each side of the mesh
+	 * @param originX
+	 * @param originY
+	 * @param originZ
+	 * @param width
+	 * @param splitScale
+	 *            the scale of the split between the long and short range
+	 *            forces, in cells, or zero to work out the whole force. The
+	 *            split is made for the current epsilon.
+	 */
+	public ParticleMesh(ParticleStore particles, int dimensions, int size,
+			double originX, double originY, double originZ, double width,
+			double splitScale) {
+		this.particles = particles;
+		this.dimensions = dimensions == 3 ? 3 : 2;
+		this.size = roundSize(size);
+		this.originX = originX;
+		this.originY = originY;
+		this.originZ = originZ;
+		this.width = width;
+		cellWidth = width / this.size;
+		this.splitScale = splitScale;
+		epsilon = Universe.epsilon;
+		split = splitScale > 0 ? new ForceSplit(splitScale * cellWidth,
+				epsilon, this.dimensions) : null;
+		cells = this.size * this.size * (this.dimensions == 3 ? this.size : 1);
+
+		re = new double[cells];
+		im = new double[cells];
+		fieldX = new double[cells];
+		fieldY = new double[cells];
+		fieldZ = new double[this.dimensions == 3 ? cells : 0];
+		transform = new FourierTransform(this.size);
+		lineRe = new double[this.size];
+		lineIm = new double[this.size];
+		cornerCell = new int[1 << this.dimensions];
+		cornerWeight = new double[1 << this.dimensions];
+		makeGreens();
+	}
+
+	/**
+	 * Returns the number of cells along each side of the mesh
+	 *
+	 * @return the number of cells along each side of the mesh
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the given number of cells rounded up to a power of two
+	 *
+	 * @param size
+	 * @return the number of cells along each side of a mesh
+	 */
+	private static int roundSize(int size) {
+		return Integer.highestOneBit(Math.max(size, 2) * 2 - 1);
+	}
+
+	/**
+	 * Returns true if the mesh is the one that would be made with the given
+	 * number of cells, split and softening. The softening only matters to a
+	 * split mesh.
+	 *
+	 * @param size
+	 * @param splitScale
+	 * @param epsilon
+	 * @return true if the mesh matches the given settings
+	 */
+	public boolean matches(int size, double splitScale, double epsilon) {
+		return this.size == roundSize(size) && this.splitScale == splitScale
+				&& (split == null || this.epsilon == epsilon);
+	}
+
+	/**
+	 * Returns the split between the long and short range forces
+	 *
+	 * @return the split, or null if the mesh works out the whole force
+	 */
+	public ForceSplit getSplit() {
+		return split;
+	}
+
+	/**
+	 * Computes the net force acting on every particle, and stores it with the
+	 * particle
+	 */
+	public void computeForces() {
+		deposit();
+		transformMesh(false);
+		for (int c = 0; c < cells; c++) {
+			re[c] *= greens[c];
+			im[c] *= greens[c];
+		}
+		transformMesh(true);
+		differentiate();
+		interpolate();
+	}
+
+	/**
+	 * Works out the transform of the force law's potential at every cell of
+	 * the transformed mesh. The potential of a mass m is -G m / r, whose
+	 * transform is -4 pi G m / k^2 in three dimensions and -2 pi G m / k on
+	 * the plane, where k is the wavenumber of the cell. The cell with no
+	 * wavenumber stands for the mean density of the box, which pulls evenly
+	 * in every direction, so it is left out. The inverse transform is not
+	 * divided by the number of cells, so that is done here. If the force is
+	 * split, only the long range part of each cell is kept, and it is divided
+	 * by the smoothing of the cloud-in-cell sharing in each direction.
+	 */
+	private void makeGreens() {
+		greens = new double[cells];
+		double scale = 2 * Math.PI / width;
+		int depth = dimensions == 3 ? size : 1;
+		for (int k = 0; k < depth; k++) {
+			double kz = scale * (k <= size / 2 ? k : k - size);
+			for (int j = 0; j < size; j++) {
+				double ky = scale * (j <= size / 2 ? j : j - size);
+				for (int i = 0; i < size; i++) {
+					double kx = scale * (i <= size / 2 ? i : i - size);
+					double kSquared = kx * kx + ky * ky + kz * kz;
+					int cell = (k * size + j) * size + i;
+					if (kSquared == 0)
+						greens[cell] = 0;
+					else if (dimensions == 3)
+						greens[cell] = -4 * Math.PI * Universe.G / kSquared
+								/ cells;
+					else
+						greens[cell] = -2 * Math.PI * Universe.G
+								/ Math.sqrt(kSquared) / cells;
+					if (split != null)
+						greens[cell] *= split.longRange(Math.sqrt(kSquared))
+								/ assignment(kx) / assignment(ky)
+								/ (dimensions == 3 ? assignment(kz) : 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns how much sharing a particle's mass out to the cells, and
+	 * handing the field back from them, weakens a wave with the given
+	 * wavenumber along one direction. Each of the two steps smooths it by
+	 * sinc^2(k h / 2), where h is the width of a cell.
+	 *
+	 * @param k
+	 * @return the factor the wave is weakened by
+	 */
+	private double assignment(double k) {
+		double x = k * cellWidth / 2;
+		if (x == 0)
+			return 1;
+		double sinc = Math.sin(x) / x;
+		return sinc * sinc * sinc * sinc;
+	}
+
+	/**
+	 * Shares out the mass of every particle between the cells nearest to it,
+	 * leaving the density of each cell in the mesh
+	 */
+	private void deposit() {
+		Arrays.fill(re, 0);
+		Arrays.fill(im, 0);
+		double density = Particle.mass / Math.pow(cellWidth, dimensions);
+		int corners = 1 << dimensions;
+		for (int i = 0; i < particles.size(); i++) {
+			locate(i);
+			for (int c = 0; c < corners; c++)
+				re[cornerCell[c]] += density * cornerWeight[c];
+		}
+	}
+
+	/**
+	 * Finds the cells nearest to the particle with the given index, and the
+	 * share of the particle each of them gets. The cells are wrapped around
+	 * the edges of the box.
+	 *
+	 * @param particle
+	 */
+	private void locate(int particle) {
+		// The particle's location in cells, measured from the middle of the
+		// first cell
+		double gx = (particles.x[particle] - originX) / cellWidth - 0.5;
+		double gy = (particles.y[particle] - originY) / cellWidth - 0.5;
+		double gz = dimensions == 3 ? (particles.z[particle] - originZ)
+				/ cellWidth - 0.5 : 0;
+		int ix = (int) Math.floor(gx);
+		int iy = (int) Math.floor(gy);
+		int iz = (int) Math.floor(gz);
+		double fx = gx - ix, fy = gy - iy, fz = gz - iz;
+
+		int mask = size - 1;
+		for (int c = 0; c < cornerCell.length; c++) {
+			int dx = c & 1, dy = (c >> 1) & 1, dz = (c >> 2) & 1;
+			cornerCell[c] = ((((iz + dz) & mask) * size + ((iy + dy) & mask))
+					* size + ((ix + dx) & mask));
+			cornerWeight[c] = (dx == 0 ? 1 - fx : fx) * (dy == 0 ? 1 - fy : fy)
+					* (dz == 0 ? 1 - fz : fz);
+		}
+	}
+
+	/**
+	 * Runs the Fourier transform along every line of cells in each direction
+	 * in turn
+	 *
+	 * @param inverse
+	 *            true to run the inverse transform
+	 */
+	private void transformMesh(boolean inverse) {
+		int lines = cells / size;
+		for (int axis = 0; axis < dimensions; axis++) {
+			int stride = axis == 0 ? 1 : axis == 1 ? size : size * size;
+			for (int line = 0; line < lines; line++) {
+
+				// The first cell of the line: the line number counts through
+				// the cells of the other directions
+				int start = (line / stride) * stride * size + line % stride;
+				for (int k = 0; k < size; k++) {
+					lineRe[k] = re[start + k * stride];
+					lineIm[k] = im[start + k * stride];
+				}
+				transform.transform(lineRe, lineIm, inverse);
+				for (int k = 0; k < size; k++) {
+					re[start + k * stride] = lineRe[k];
+					im[start + k * stride] = lineIm[k];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Works out the field at every cell from the slope of the potential
+	 * across its two nearest neighbours on each side, downhill. Using the
+	 * second neighbours as well as the first keeps the slope of waves a few
+	 * cells long to within a couple of percent.
+	 */
+	private void differentiate() {
+		int mask = size - 1;
+		double near = -8 / (12 * cellWidth);
+		double far = 1 / (12 * cellWidth);
+		int depth = dimensions == 3 ? size : 1;
+		int plane = size * size;
+		for (int k = 0; k < depth; k++) {
+			for (int j = 0; j < size; j++) {
+				int row = (k * size + j) * size;
+				int up = (k * size + ((j + 1) & mask)) * size;
+				int down = (k * size + ((j - 1) & mask)) * size;
+				int up2 = (k * size + ((j + 2) & mask)) * size;
+				int down2 = (k * size + ((j - 2) & mask)) * size;
+				int front = ((k + 1) & mask) * plane + j * size;
+				int back = ((k - 1) & mask) * plane + j * size;
+				int front2 = ((k + 2) & mask) * plane + j * size;
+				int back2 = ((k - 2) & mask) * plane + j * size;
+				for (int i = 0; i < size; i++) {
+					int cell = row + i;
+					fieldX[cell] = near
+							* (re[row + ((i + 1) & mask)] - re[row
+									+ ((i - 1) & mask)])
+							+ far
+							* (re[row + ((i + 2) & mask)] - re[row
+									+ ((i - 2) & mask)]);
+					fieldY[cell] = near * (re[up + i] - re[down + i]) + far
+							* (re[up2 + i] - re[down2 + i]);
+					if (dimensions == 3)
+						fieldZ[cell] = near * (re[front + i] - re[back + i])
+								+ far * (re[front2 + i] - re[back2 + i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands the field back to every particle from the same cells its mass was
+	 * shared out to, and stores the force with the particle
+	 */
+	private void interpolate() {
+		int corners = 1 << dimensions;
+		for (int i = 0; i < particles.size(); i++) {
+			locate(i);
+			double x = 0, y = 0, z = 0;
+			for (int c = 0; c < corners; c++) {
+				int cell = cornerCell[c];
+				double w = cornerWeight[c];
+				x += w * fieldX[cell];
+				y += w * fieldY[cell];
+				if (dimensions == 3)
+					z += w * fieldZ[cell];
+			}
+			particles.xNetForce[i] = Particle.mass * x;
+			particles.yNetForce[i] = Particle.mass * y;
+			particles.zNetForce[i] = Particle.mass * z;
+		}
+	}
+}
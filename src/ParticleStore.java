@@ -0,0 +1,288 @@
+import java.util.Arrays;
+
+/**
+ * The ParticleStore class holds the state of every particle in a system in
+ * plain arrays, one array per property, so that each phase of the simulation
+ * can sweep through a property without chasing references around the heap. A
+ * particle is identified by its index in the arrays. Particles are removed by
+ * moving the last particle into the freed slot, so indices are not stable
+ * across removals. The particles can also be put in a new order, so that
+ * particles close together in space sit close together in the arrays.
+ *
+ * @author Christopher Glasz
+ */
+public class ParticleStore {
+
+	/**
+	 * The number of particles the store starts out with room for
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * The number of particles in the store
+	 */
+	protected int count;
+
+	/**
+	 * The location of each particle
+	 */
+	protected double[] x, y, z;
+
+	/**
+	 * The current speed of each particle
+	 */
+	protected double[] xSpeed, ySpeed, zSpeed;
+
+	/**
+	 * The current net force acting on each particle
+	 */
+	protected double[] xNetForce, yNetForce, zNetForce;
+
+	/**
+	 * The index of each particle's color in the system's palette
+	 */
+	protected int[] color;
+
+	/**
+	 * The number of sources that acted on each particle the last time its
+	 * force was computed from the tree, which is what its force costs
+	 */
+	protected int[] interactions;
+
+	/**
+	 * The number of times particles have been added to or removed from the
+	 * store. An index only stands for the same particle while this stays the
+	 * same.
+	 */
+	private int changes;
+
+	/**
+	 * An array the particles are copied into when they are put in a new
+	 * order, swapped with each property's array in turn
+	 */
+	private double[] spare;
+
+	/**
+	 * An array the colors and interactions are copied into when the particles
+	 * are put in a new order
+	 */
+	private int[] spareInts;
+
+	/**
+	 * The constructor creates an empty store
+	 */
+	public ParticleStore() {
+		this(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * The constructor creates an empty store with room for the given number of
+	 * particles
+	 *
+	 * @param capacity
+	 */
+	public ParticleStore(int capacity) {
+		count = 0;
+		x = new double[capacity];
+		y = new double[capacity];
+		z = new double[capacity];
+		xSpeed = new double[capacity];
+		ySpeed = new double[capacity];
+		zSpeed = new double[capacity];
+		xNetForce = new double[capacity];
+		yNetForce = new double[capacity];
+		zNetForce = new double[capacity];
+		color = new int[capacity];
+		interactions = new int[capacity];
+	}
+
+	/**
+	 * Makes sure the store has room for at least the given number of
+	 * particles, growing every array at once if it doesn't
+	 *
+	 * @param capacity
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity > x.length) {
+			int newCapacity = Math.max(capacity, x.length + (x.length >> 1));
+			x = Arrays.copyOf(x, newCapacity);
+			y = Arrays.copyOf(y, newCapacity);
+			z = Arrays.copyOf(z, newCapacity);
+			xSpeed = Arrays.copyOf(xSpeed, newCapacity);
+			ySpeed = Arrays.copyOf(ySpeed, newCapacity);
+			zSpeed = Arrays.copyOf(zSpeed, newCapacity);
+			xNetForce = Arrays.copyOf(xNetForce, newCapacity);
+			yNetForce = Arrays.copyOf(yNetForce, newCapacity);
+			zNetForce = Arrays.copyOf(zNetForce, newCapacity);
+			color = Arrays.copyOf(color, newCapacity);
+			interactions = Arrays.copyOf(interactions, newCapacity);
+		}
+	}
+
+	/**
+	 * Adds a particle with the given location and speed to the end of the
+	 * store, with no net force acting on it
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param xSpeed
+	 * @param ySpeed
+	 * @param zSpeed
+	 * @param color
+	 * @return the index of the new particle
+	 */
+	public int add(double x, double y, double z, double xSpeed,
+			double ySpeed, double zSpeed, int color) {
+		ensureCapacity(count + 1);
+		this.x[count] = x;
+		this.y[count] = y;
+		this.z[count] = z;
+		this.xSpeed[count] = xSpeed;
+		this.ySpeed[count] = ySpeed;
+		this.zSpeed[count] = zSpeed;
+		this.xNetForce[count] = 0;
+		this.yNetForce[count] = 0;
+		this.zNetForce[count] = 0;
+		this.color[count] = color;
+		this.interactions[count] = 0;
+		changes++;
+		return count++;
+	}
+
+	/**
+	 * Removes the particle at the given index by moving the last particle in
+	 * the store into its place
+	 *
+	 * @param i
+	 */
+	public void remove(int i) {
+		changes++;
+		int last = --count;
+		if (i != last) {
+			x[i] = x[last];
+			y[i] = y[last];
+			z[i] = z[last];
+			xSpeed[i] = xSpeed[last];
+			ySpeed[i] = ySpeed[last];
+			zSpeed[i] = zSpeed[last];
+			xNetForce[i] = xNetForce[last];
+			yNetForce[i] = yNetForce[last];
+			zNetForce[i] = zNetForce[last];
+			color[i] = color[last];
+			interactions[i] = interactions[last];
+		}
+	}
+
+	/**
+	 * Puts the particles in the given order, so the particle at each index is
+	 * the one that was at the index listed there. Every index then stands for
+	 * a different particle, so this counts as a change to the store.
+	 *
+	 * @param order
+	 *            a list of every index in the store
+	 */
+	public void reorder(int[] order) {
+		changes++;
+		x = reorder(x, order);
+		y = reorder(y, order);
+		z = reorder(z, order);
+		xSpeed = reorder(xSpeed, order);
+		ySpeed = reorder(ySpeed, order);
+		zSpeed = reorder(zSpeed, order);
+		xNetForce = reorder(xNetForce, order);
+		yNetForce = reorder(yNetForce, order);
+		zNetForce = reorder(zNetForce, order);
+		color = reorder(color, order);
+		interactions = reorder(interactions, order);
+	}
+
+	/**
+	 * Copies the given property into the spare array in the given order, and
+	 * keeps the property's old array as the spare
+	 *
+	 * @param values
+	 * @param order
+	 * @return the property in the new order
+	 */
+	private double[] reorder(double[] values, int[] order) {
+		if (spare == null || spare.length != values.length)
+			spare = new double[values.length];
+		double[] sorted = spare;
+		for (int k = 0; k < count; k++)
+			sorted[k] = values[order[k]];
+		spare = values;
+		return sorted;
+	}
+
+	/**
+	 * Copies the given property into the spare array of whole numbers in the
+	 * given order, and keeps the property's old array as the spare
+	 *
+	 * @param values
+	 * @param order
+	 * @return the property in the new order
+	 */
+	private int[] reorder(int[] values, int[] order) {
+		if (spareInts == null || spareInts.length != values.length)
+			spareInts = new int[values.length];
+		int[] sorted = spareInts;
+		for (int k = 0; k < count; k++)
+			sorted[k] = values[order[k]];
+		spareInts = values;
+		return sorted;
+	}
+
+	/**
+	 * Empties the store, keeping its arrays for reuse
+	 */
+	public void clear() {
+		changes++;
+		count = 0;
+	}
+
+	/**
+	 * Returns the number of times particles have been added to or removed
+	 * from the store
+	 *
+	 * @return the number of changes to the store
+	 */
+	public int getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Returns the number of particles in the store
+	 *
+	 * @return the number of particles in the store
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of particles the store has room for
+	 *
+	 * @return the number of particles the store has room for
+	 */
+	public int capacity() {
+		return x.length;
+	}
+
+	/**
+	 * Returns the index of the particle at the given location, or -1 if there
+	 * is no particle there
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return the index of the particle at the given location
+	 */
+	public int indexOf(double x, double y, double z) {
+		for (int i = 0; i < count; i++) {
+			if (this.x[i] == x && this.y[i] == y && this.z[i] == z)
+				return i;
+		}
+		return -1;
+	}
+}
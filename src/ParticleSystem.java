@@ -1,10 +1,18 @@
 import java.awt.Color;
 import java.awt.Graphics;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * The Particle System class defines a system of particles. It has a number of
  * particles, and a radius which describes the maximum lateral distance a
- * particle can reach from the center of the system before being removed.
+ * particle can reach from the center of the system before it may be removed,
+ * depending on the escape rule.
+ *
+ * The root of the tree normally covers the whole system, out to the system
+ * radius. If Universe.adaptiveBounds is set, the tree is instead fit snugly
+ * around the particles every time it is built, so a compact system is not
+ * spread thin over a box many times its size. Periodic systems and the mesh
+ * solvers always keep the system box, since their periods depend on it.
  * 
  * @author Christopher Glasz
  */
@@ -14,6 +22,85 @@ public class ParticleSystem {
 	 */
 	public static final double SYSTEM_RADIUS = Universe.WINDOW_WIDTH * 5;
 
+	/**
+	 * The solver that walks the tree once for each particle
+	 */
+	public static final int BARNES_HUT = 0;
+
+	/**
+	 * The solver that uses the fast multipole method. In three dimensions it
+	 * runs on the pool of threads and beats BARNES_HUT on large systems. In
+	 * two dimensions it runs on a single thread.
+	 */
+	public static final int FAST_MULTIPOLE = 1;
+
+	/**
+	 * The solver that sums up the force between every pair of particles
+	 */
+	public static final int DIRECT_SUM = 2;
+
+	/**
+	 * The solver that works out the field of a periodic box on a mesh
+	 */
+	public static final int PARTICLE_MESH = 3;
+
+	/**
+	 * The solver that adds the short range forces from the tree to the long
+	 * range forces from a mesh
+	 */
+	public static final int TREE_PM = 4;
+
+	/**
+	 * The escape rule that removes every particle that leaves the system's
+	 * box
+	 */
+	public static final int ESCAPE_BOX = 0;
+
+	/**
+	 * The escape rule that never removes a particle
+	 */
+	public static final int ESCAPE_NONE = 1;
+
+	/**
+	 * The escape rule that removes a particle outside the system's box only
+	 * if it is moving away from the center of mass fast enough to never come
+	 * back
+	 */
+	public static final int ESCAPE_UNBOUND = 2;
+
+	/**
+	 * The least the tree's root is padded by on each side, as a fraction of
+	 * its width, so the particles on the far edges still fall inside it
+	 */
+	private static final double MIN_PADDING = 1e-6;
+
+	/**
+	 * The number of values of a particle's property that fit in a cache line
+	 */
+	private static final int CACHE_LINE = 8;
+
+	/**
+	 * The number of colors a particle can be given according to the net force
+	 * acting on it
+	 */
+	protected static final int FORCE_COLORS = 256;
+
+	/**
+	 * The index of plain white in a palette
+	 */
+	protected static final int WHITE = FORCE_COLORS;
+
+	/**
+	 * An arbitrary number that results in a reasonable force range
+	 */
+	private static final double FORCE_SCALE = 3e10;
+
+	/**
+	 * The scaled force past which every component of a particle's color has
+	 * stopped changing
+	 */
+	private static final double MAX_FORCE_LEVEL = 165.0 / 35.0;
+
 	/**
 	 * A quadtree which is populated with particles and effectively summarizes
 	 * the system of particles for more efficient force calculations
@@ -21,97 +108,703 @@ public class ParticleSystem {
 	protected Quadtree myTree;
 
 	/**
-	 * The head of a list of particles
+	 * The particles of the system
+	 */
+	protected ParticleStore particles;
+
+	/**
+	 * The colors particles can be painted in. Each particle stores the index
+	 * of its color, so no colors are made while the system runs.
+	 */
+	protected Color[] palette;
+
+	/**
+	 * The solver used to compute forces, either BARNES_HUT, FAST_MULTIPOLE,
+	 * DIRECT_SUM, PARTICLE_MESH or TREE_PM
+	 */
+	protected int solver;
+
+	/**
+	 * The fast multipole solver, made the first time it is needed
+	 */
+	private ComplexMultipole multipole;
+
+	/**
+	 * The direct summation solver, made the first time it is needed
+	 */
+	private DirectSum directSum;
+
+	/**
+	 * The mesh of the particle-mesh solvers, made the first time it is needed
+	 */
+	private ParticleMesh mesh;
+
+	/**
+	 * The tuner that picks theta, made the first time it is needed
+	 */
+	private ThetaTuner tuner;
+
+	/**
+	 * The number of steps since theta was last tuned
+	 */
+	private int stepsSinceTuning;
+
+	/**
+	 * The number of steps since the particles were last put in the tree's
+	 * order
+	 */
+	private int stepsSinceSorting;
+
+	/**
+	 * True if the particles were put in order this step
 	 */
-	protected Node head;
+	private boolean sorted;
 
 	/**
-	 * The number of particles in the system
+	 * The fraction of the particles out of order the last time they were put
+	 * in order
 	 */
-	protected int particleCount;
+	private double sortScatter;
 
 	/**
-	 * The constructor instantiates an empty list of particles
+	 * The particles per second the forces were computed for on the steps
+	 * just before and just after the particles were last put in order
+	 */
+	private double unsortedRate, sortedRate;
+
+	/**
+	 * The running total of the cost of the force work, handed to the tasks
+	 * that split it between threads
+	 */
+	private long[] costs;
+
+	/**
+	 * The time each thread spent computing forces on the last step that used
+	 * the pool, made again only when the number of threads changes
+	 */
+	private BusyTimes busy;
+
+	/**
+	 * The time, in nanoseconds, the last step took to build the tree, to
+	 * compute the forces, and to color and move the particles
+	 */
+	private long buildTime, forceTime, moveTime;
+
+	/**
+	 * The time, in nanoseconds, the system last took to be painted. It is
+	 * painted on a different thread from the one that steps it.
+	 */
+	private volatile long paintTime;
+
+	/**
+	 * The pool of threads that computes the forces. It is shared by every
+	 * system and rebuilt whenever the number of threads changes.
+	 */
+	private static ForkJoinPool pool;
+
+	/**
+	 * The constructor instantiates an empty store of particles
 	 */
 	public ParticleSystem() {
-		head = null;
-		particleCount = 0;
+		particles = new ParticleStore();
+		myTree = new Quadtree(particles);
+		palette = makePalette(255);
+		solver = Universe.solver;
 	}
 
 	/**
 	 * Simulates the system at the next time step
 	 */
 	public void simulate() {
+		long start = System.nanoTime();
+
 		// First, we make a quadtree and fill it with particles
 		populateTree();
+
+		// Every so often, we put the particles in the tree's order
+		sortParticles();
+		long built = System.nanoTime();
 		
 		// Then we calculate the forces acting on all the particles
 		simulatePhysics();
+
+		// Every so often, we check whether theta is buying more accuracy
+		// than we need
+		tuneTheta();
+		long forced = System.nanoTime();
 		
 		// Then we color the particles
 		colorParticles();
 		
 		// Finally, we move everything
 		moveParticles();
+		long moved = System.nanoTime();
+
+		buildTime = built - start;
+		forceTime = forced - built;
+		moveTime = moved - forced;
+		if (sorted) {
+			sortedRate = forceRate();
+			sorted = false;
+		}
+	}
+
+	/**
+	 * Puts the particles in the tree's order once every Universe.sortInterval
+	 * steps. The particles come in random order, and drift out of order as
+	 * they move, so one after another they walk through unrelated parts of
+	 * the tree. In the tree's order, each particle walks nearly the same
+	 * nodes as the one before it, which are then still in the cache.
+	 */
+	protected void sortParticles() {
+		if (Universe.sortInterval <= 0 || isEmpty())
+			return;
+		if (++stepsSinceSorting < Universe.sortInterval)
+			return;
+		stepsSinceSorting = 0;
+
+		// Note how out of order the particles were, and how fast the forces
+		// were computed on the last step, before putting them in order. A
+		// particle is out of order if it is not on the same cache line as
+		// the one before it in the tree's order.
+		int[] order = myTree.order;
+		int scattered = 0;
+		for (int k = 1; k < particles.size(); k++) {
+			if (Math.abs(order[k] - order[k - 1]) >= CACHE_LINE)
+				scattered++;
+		}
+		sortScatter = (double) scattered / particles.size();
+		unsortedRate = forceRate();
+		myTree.sortStore();
+		sorted = true;
+	}
+
+	/**
+	 * Returns the number of particles the forces were computed for per
+	 * second on the last step
+	 *
+	 * @return the particles per second of the last step's forces
+	 */
+	private double forceRate() {
+		return forceTime > 0 ? particles.size() * 1e9 / forceTime : 0;
+	}
+
+	/**
+	 * Returns the fraction of the particles that were not near the particle
+	 * before them in the tree's order, the last time the particles were put
+	 * in order
+	 *
+	 * @return the fraction of the particles out of order
+	 */
+	public double getSortScatter() {
+		return sortScatter;
+	}
+
+	/**
+	 * Returns the particles per second the forces were computed for on the
+	 * step before the particles were last put in order
+	 *
+	 * @return the particles per second before sorting
+	 */
+	public double getUnsortedRate() {
+		return unsortedRate;
+	}
+
+	/**
+	 * Returns the particles per second the forces were computed for on the
+	 * step the particles were last put in order
+	 *
+	 * @return the particles per second after sorting
+	 */
+	public double getSortedRate() {
+		return sortedRate;
 	}
 
 	/**
 	 * Populates the quadtree with the particles of the system.
 	 */
 	protected void populateTree() {
-		// A quadtree to start with. It is one hundred times the size of the
-		// viewing window
-		myTree = new Quadtree(new Quadrant((Universe.WINDOW_WIDTH / 2)
-				- SYSTEM_RADIUS, (Universe.WINDOW_HEIGHT / 2) - SYSTEM_RADIUS,
-				SYSTEM_RADIUS * 2, SYSTEM_RADIUS * 2));
-		
+		// In a periodic box, particles that leave one side come back in on
+		// the other
+		if (Universe.periodic)
+			wrapParticles();
+
 		// Go through each particle in the system
-		for (Node current = head; current != null; current = current.getNext()) {
+		for (int i = 0; i < particles.size();) {
 			
-			// If it's in the bounds, throw it in
-			if (myTree.getRoot().getQuad().contains(current.getParticle()))
-				myTree.insertParticle(current.getParticle());
+			// If it hasn't escaped, keep it
+			if (!escaped(i))
+				i++;
 			
-			// Otherwise, get rid of it
-			else {
-				Node placeHolder = current;
-				try {
-					remove(current);
-				} catch (ParticleSystemException e) {
-					e.printStackTrace();
-				}
-				current = placeHolder;
-			}
+			// Otherwise, get rid of it. The last particle takes its place, so
+			// we look at the same index again
+			else
+				particles.remove(i);
+		}
+
+		// The particles have only moved a little since the last step, so the
+		// tree may just need to be refit. If any were removed, the refit
+		// fails and the tree is built again.
+		if (refitTree())
+			return;
+
+		// Empty the quadtree, and fit it around the particles that are left
+		resetTree();
+
+		// Throw everything that's left in
+		fillTree();
+	}
+
+	/**
+	 * Returns true if the particle with the given index has escaped the
+	 * system under the escape rule. The tree's root is only fit around the
+	 * particles if adaptive bounds are on, so otherwise a particle that has
+	 * left the system's box has escaped whatever the rule.
+	 *
+	 * @param particle
+	 * @return true if the particle should be removed
+	 */
+	protected boolean escaped(int particle) {
+		if (inSystemBox(particle))
+			return false;
+		if (!adaptiveBounds() || Universe.escapeRule == ESCAPE_BOX)
+			return true;
+		return Universe.escapeRule == ESCAPE_UNBOUND && unbound(particle);
+	}
+
+	/**
+	 * Returns true if the particle with the given index is inside the
+	 * system's box, which is centered on the window and twice SYSTEM_RADIUS
+	 * wide
+	 *
+	 * @param particle
+	 * @return true if the particle is inside the system's box
+	 */
+	protected boolean inSystemBox(int particle) {
+		double x = particles.x[particle] - (Universe.WINDOW_WIDTH / 2);
+		double y = particles.y[particle] - (Universe.WINDOW_HEIGHT / 2);
+		return Math.abs(x) < SYSTEM_RADIUS && Math.abs(y) < SYSTEM_RADIUS;
+	}
+
+	/**
+	 * Returns true if the particle with the given index is moving away from
+	 * the center of mass of the system faster than the speed needed to
+	 * escape it. The center of mass is the one the tree found last.
+	 *
+	 * @param particle
+	 * @return true if the particle will never come back
+	 */
+	protected boolean unbound(int particle) {
+		double dx = particles.x[particle] - myTree.getComX(Quadtree.ROOT);
+		double dy = particles.y[particle] - myTree.getComY(Quadtree.ROOT);
+		double vx = particles.xSpeed[particle]
+				- myTree.getComXSpeed(Quadtree.ROOT);
+		double vy = particles.ySpeed[particle]
+				- myTree.getComYSpeed(Quadtree.ROOT);
+		return unbound(dx * dx + dy * dy, dx * vx + dy * vy, vx * vx + vy
+				* vy);
+	}
+
+	/**
+	 * Returns true if a particle at the given squared distance from the
+	 * center of mass, moving at the given squared speed relative to it, is
+	 * moving away and has more energy than the system's pull can take back,
+	 * meaning its squared speed is more than 2 G M / r
+	 *
+	 * @param distSquared
+	 * @param outward
+	 *            the dot product of the particle's offset and its speed
+	 * @param speedSquared
+	 * @return true if the particle will never come back
+	 */
+	protected boolean unbound(double distSquared, double outward,
+			double speedSquared) {
+		double mass = myTree.getTotalMass(Quadtree.ROOT);
+		return outward > 0
+				&& speedSquared * Math.sqrt(distSquared) > 2 * Universe.G
+						* mass;
+	}
+
+	/**
+	 * Returns true if the tree's root is fit around the particles rather
+	 * than covering the system's box. A periodic box always keeps its own
+	 * bounds, since the particles are wrapped back into it, and so do the
+	 * mesh solvers: the mesh covers the system's box, and the TreePM walk
+	 * takes the root's width as the distance between a particle's images.
+	 *
+	 * @return true if the tree's root is fit around the particles
+	 */
+	protected boolean adaptiveBounds() {
+		return Universe.adaptiveBounds && !Universe.periodic
+				&& solver != PARTICLE_MESH && solver != TREE_PM && !isEmpty();
+	}
+
+	/**
+	 * Empties the tree, with its root either fit around the particles or
+	 * covering the system's box
+	 */
+	protected void resetTree() {
+		if (!adaptiveBounds()) {
+			myTree.reset((Universe.WINDOW_WIDTH / 2) - SYSTEM_RADIUS,
+					(Universe.WINDOW_HEIGHT / 2) - SYSTEM_RADIUS,
+					SYSTEM_RADIUS * 2);
+			return;
 		}
+		BoundsTask bounds = findBounds();
+		double width = rootWidth(Math.max(bounds.getMaxX() - bounds.getMinX(),
+				bounds.getMaxY() - bounds.getMinY()));
+		myTree.reset((bounds.getMinX() + bounds.getMaxX() - width) / 2,
+				(bounds.getMinY() + bounds.getMaxY() - width) / 2, width);
+	}
+
+	/**
+	 * Finds the smallest box holding every particle, on the pool if there is
+	 * more than one thread
+	 *
+	 * @return the task holding the box
+	 */
+	protected BoundsTask findBounds() {
+		BoundsTask bounds = new BoundsTask(particles, 0, particles.size());
+		if (Universe.threads > 1)
+			getPool().invoke(bounds);
+		else
+			bounds.measure();
+		return bounds;
+	}
+
+	/**
+	 * Returns the width of a root that fits around particles spread over the
+	 * given width, padded on each side
+	 *
+	 * @param extent
+	 * @return the width of the root
+	 */
+	protected static double rootWidth(double extent) {
+		double padding = Math.max(Universe.boundsPadding, MIN_PADDING);
+		return Math.max(extent, 1) * (1 + 2 * padding);
+	}
+
+	/**
+	 * Refits the tree to where the particles have moved, if refitting is on
+	 * and the tree still fits them well enough, then computes the quadrupole
+	 * moments if they are in use
+	 *
+	 * @return true if the tree was refit, or false if it has to be built
+	 */
+	protected boolean refitTree() {
+		if (!Universe.refitTree || !myTree.refit(Universe.refitLimit))
+			return false;
+		if (Universe.quadrupole)
+			myTree.computeQuadrupoles();
+		return true;
+	}
+
+	/**
+	 * Moves every particle that has left the system's box back in through the
+	 * opposite side
+	 */
+	protected void wrapParticles() {
+		double x = (Universe.WINDOW_WIDTH / 2) - SYSTEM_RADIUS;
+		double y = (Universe.WINDOW_HEIGHT / 2) - SYSTEM_RADIUS;
+		for (int i = 0; i < particles.size(); i++) {
+			particles.x[i] = wrap(particles.x[i], x, SYSTEM_RADIUS * 2);
+			particles.y[i] = wrap(particles.y[i], y, SYSTEM_RADIUS * 2);
+		}
+	}
+
+	/**
+	 * Returns the given value moved by a whole number of widths into the
+	 * range that starts at the given value and is the given width wide
+	 *
+	 * @param value
+	 * @param start
+	 * @param width
+	 * @return the value, moved into the range
+	 */
+	protected static double wrap(double value, double start, double width) {
+		double offset = (value - start) % width;
+		if (offset < 0)
+			offset += width;
+
+		// Rounding can land a value just below the start on the far end
+		if (offset >= width)
+			offset = 0;
+		return start + offset;
+	}
+
+	/**
+	 * Fills the emptied tree with every particle in the system, either by
+	 * sorting them along a Z-order curve or by inserting them one at a time,
+	 * then computes the quadrupole moments if they are in use
+	 */
+	protected void fillTree() {
+		ForkJoinPool pool = Universe.threads > 1 ? getPool() : null;
+		if (Universe.sortedBuild)
+			myTree.buildSorted(pool);
+		else
+			myTree.insertAll(pool);
+		if (Universe.quadrupole)
+			myTree.computeQuadrupoles();
 	}
 
 	/**
 	 * Simulates physics. Specifically, it applies the force acting on each
-	 * particle.
+	 * particle. The tree is not changed while the forces are computed, so the
+	 * particles are split into chunks and handed out to a pool of threads.
 	 */
 	protected void simulatePhysics() {
-		for (Node current = head; current != null; current = current.getNext()) {
-			current.getParticle().computeForce(myTree);
+		if (solver == PARTICLE_MESH) {
+			getMesh(0).computeForces();
+		} else if (solver == TREE_PM) {
+
+			// The mesh works out the long range part of the force, and the
+			// tree adds the short range part
+			ParticleMesh mesh = getMesh(Universe.splitScale);
+			mesh.computeForces();
+			ForceSplit split = mesh.getSplit();
+			if (Universe.threads > 1) {
+				runForceTask(false, split, particles.size());
+			} else {
+				for (int i = 0; i < particles.size(); i++)
+					myTree.computeShortRangeForce(i, split);
+			}
+		} else if (usesDirectSum()) {
+			computeDirectSum();
+		} else if (solver == FAST_MULTIPOLE) {
+			if (multipole == null
+					|| multipole.getOrder() != Universe.multipoleOrder)
+				multipole = new ComplexMultipole(myTree, particles,
+						Universe.multipoleOrder);
+			multipole.computeForces();
+		} else if (Universe.groupSize > 1) {
+
+			// Particles that are close together walk the tree as a group
+			int groups = myTree.findGroups(Universe.groupSize);
+			if (Universe.threads > 1) {
+				runForceTask(true, null, groups);
+			} else {
+				for (int g = 0; g < groups; g++)
+					myTree.computeGroupForces(g);
+			}
+		} else if (Universe.threads > 1) {
+			runForceTask(false, null, particles.size());
+		} else {
+			for (int i = 0; i < particles.size(); i++)
+				myTree.computeForce(i);
+		}
+	}
+
+	/**
+	 * Computes the forces of the tree walk on the pool, split into chunks of
+	 * equal cost if load balancing is on, and notes how long each thread
+	 * spent on them
+	 *
+	 * @param groups
+	 *            true if the particles walk the tree in groups
+	 * @param split
+	 *            the split of the TreePM solver, or null
+	 * @param items
+	 *            the number of particles or groups
+	 */
+	private void runForceTask(boolean groups, ForceSplit split, int items) {
+		long[] taskCosts = null;
+		if (Universe.balanceLoad) {
+			if (costs == null || costs.length < items + 1)
+				costs = new long[items + 1 + (items >> 1)];
+			myTree.sumCosts(costs, items, groups);
+			taskCosts = costs;
+		}
+		if (busy == null || busy.getThreads() != Universe.threads)
+			busy = new BusyTimes(Universe.threads);
+		busy.reset();
+		getPool().invoke(new ForceTask(myTree, groups, split, taskCosts,
+				busy, 0, items));
+	}
+
+	/**
+	 * Returns the time, in nanoseconds, each thread spent computing the
+	 * tree's forces on the last step that used the pool, including the
+	 * thread that started the work if it took some of it on
+	 *
+	 * @return the busy time of each thread, or an empty array
+	 */
+	public long[] getBusyTimes() {
+		BusyTimes times = busy;
+		return times == null ? new long[0] : times.getTimes();
+	}
+
+	/**
+	 * Returns how evenly the force work was spread over the threads on the
+	 * last step that used the pool
+	 *
+	 * @return the load balance, from 0 to 1, or 0 if nothing was timed
+	 */
+	public double getLoadBalance() {
+		BusyTimes times = busy;
+		return times == null ? 0 : times.getLoadBalance();
+	}
+
+	/**
+	 * Tunes theta if automatic tuning is on, the tree walk is in use, and
+	 * enough steps have gone by since it was last tuned. The relative opening
+	 * criterion makes no use of theta, so there is nothing to tune then.
+	 */
+	protected void tuneTheta() {
+		if (!Universe.autoTheta || solver != BARNES_HUT || usesDirectSum()
+				|| Universe.relativeOpening)
+			return;
+		if (++stepsSinceTuning < Universe.tuneInterval)
+			return;
+		stepsSinceTuning = 0;
+		if (tuner == null)
+			tuner = new ThetaTuner(myTree, particles);
+		tuner.tune(Universe.tuneSample, Universe.thetaTarget);
+	}
+
+	/**
+	 * Returns the sampled force error of the theta picked the last time theta
+	 * was tuned
+	 *
+	 * @return the sampled force error, or NaN if theta has not been tuned
+	 */
+	public double getThetaError() {
+		return tuner == null ? Double.NaN : tuner.getError();
+	}
+
+	/**
+	 * Returns true if the forces should be summed up directly, either because
+	 * that solver has been chosen or because there are too few particles for
+	 * the tree to pay for itself. The particle-mesh solvers are never swapped
+	 * out, since summing up directly would miss the periodic images.
+	 *
+	 * @return true if the forces should be summed up directly
+	 */
+	protected boolean usesDirectSum() {
+		return solver == DIRECT_SUM
+				|| (solver != PARTICLE_MESH && solver != TREE_PM
+						&& particles.size() <= Universe.directSumLimit);
+	}
+
+	/**
+	 * Returns true if the forces are computed by walking the tree, so that
+	 * theta and the leaf size bear on what they cost. The particle-mesh
+	 * solver and direct summation only use the tree for the center of mass.
+	 * The TreePM solver walks the tree for the short range part of the force.
+	 *
+	 * @return true if the forces come from walking the tree
+	 */
+	public boolean walksTree() {
+		return solver != PARTICLE_MESH && !usesDirectSum();
+	}
+
+	/**
+	 * Returns the mesh of the particle-mesh solvers, making a new one if the
+	 * settings have changed
+	 *
+	 * @param splitScale
+	 *            the scale of the split between the long and short range
+	 *            forces, in cells, or zero for the whole force
+	 * @return the mesh
+	 */
+	protected ParticleMesh getMesh(double splitScale) {
+		if (mesh == null || !mesh.matches(Universe.meshSize, splitScale,
+				Universe.epsilon))
+			mesh = makeMesh(splitScale);
+		return mesh;
+	}
+
+	/**
+	 * Makes a mesh covering the system's box
+	 *
+	 * @param splitScale
+	 * @return the mesh
+	 */
+	protected ParticleMesh makeMesh(double splitScale) {
+		return new ParticleMesh(particles, 2, Universe.meshSize,
+				(Universe.WINDOW_WIDTH / 2) - SYSTEM_RADIUS,
+				(Universe.WINDOW_HEIGHT / 2) - SYSTEM_RADIUS, 0,
+				SYSTEM_RADIUS * 2, splitScale);
+	}
+
+	/**
+	 * Computes the forces by summing up the force between every pair of
+	 * particles
+	 */
+	protected void computeDirectSum() {
+		if (directSum == null)
+			directSum = new DirectSum(particles);
+		directSum.computeForces(Universe.threads > 1 ? getPool() : null);
+	}
+
+	/**
+	 * Returns the pool of threads used to compute forces, making a new one if
+	 * the number of threads has changed
+	 * 
+	 * @return the pool of threads used to compute forces
+	 */
+	protected static synchronized ForkJoinPool getPool() {
+		if (pool == null || pool.getParallelism() != Universe.threads) {
+			if (pool != null)
+				pool.shutdown();
+			pool = new ForkJoinPool(Universe.threads);
 		}
+		return pool;
 	}
 
 	/**
-	 * Colors each particle according to the net force acting on it
+	 * Colors each particle according to the net force acting on it. The
+	 * larger the net force, the warmer the color.
 	 */
 	protected void colorParticles() {
 		if (Universe.colorByForce) {
-			for (Node current = head; current != null; current = current
-					.getNext()) {
-				current.getParticle().colorByForce();
+			for (int i = 0; i < particles.size(); i++) {
+				
+				// Take the shortcut to finding net force
+				double netForce = Math.sqrt(particles.xNetForce[i]
+						* particles.xNetForce[i] + particles.yNetForce[i]
+						* particles.yNetForce[i] + particles.zNetForce[i]
+						* particles.zNetForce[i]);
+				
+				// Find the matching color in the palette
+				double level = netForce / FORCE_SCALE;
+				particles.color[i] = (int) Math.min(level / MAX_FORCE_LEVEL
+						* (FORCE_COLORS - 1), FORCE_COLORS - 1);
 			}
 		} else {
-			for (Node current = head; current != null; current = current
-					.getNext()) {
-				current.getParticle().setColor(Color.WHITE);
+			for (int i = 0; i < particles.size(); i++) {
+				particles.color[i] = WHITE;
 			}
 		}
 	}
 
+	/**
+	 * Makes the palette of colors particles are painted in. Particles with low
+	 * net force are a subdued blue, and the larger the force, the closer to
+	 * bright yellow they get.
+	 * 
+	 * @param alpha
+	 * @return the palette
+	 */
+	protected static Color[] makePalette(int alpha) {
+		Color[] palette = new Color[FORCE_COLORS + 1];
+		for (int i = 0; i < FORCE_COLORS; i++) {
+			double L = MAX_FORCE_LEVEL * i / (FORCE_COLORS - 1);
+
+			// Red, green, blue
+			double R, G, B;
+
+			// More arbitrary numbers that color particles between dull blue to
+			// bright yellow
+			R = Math.min(60 + L * 115, 255);
+			G = Math.min(90 + L * 35, 255);
+			B = Math.max(125 - L * 45, 80);
+
+			palette[i] = new Color((int) R, (int) G, (int) B, alpha);
+		}
+		palette[WHITE] = Color.WHITE;
+		return palette;
+	}
+
 	/**
 	 * Moves each particle according to its current speed and the net force
 	 * acting on it
@@ -119,12 +812,12 @@ public class ParticleSystem {
 	protected void moveParticles() {
 		
 		// In case we want to center our view on the center of mass
-		double xMassCenter = myTree.getRoot().getQuad().getComX();
-		double yMassCenter = myTree.getRoot().getQuad().getComY();
+		double xMassCenter = myTree.getComX(Quadtree.ROOT);
+		double yMassCenter = myTree.getComY(Quadtree.ROOT);
 
 		// To accomodate for center of mass wandering
-		double xMassCenterSpeed = myTree.getRoot().getQuad().getComXSpeed();
-		double yMassCenterSpeed = myTree.getRoot().getQuad().getComYSpeed();
+		double xMassCenterSpeed = myTree.getComXSpeed(Quadtree.ROOT);
+		double yMassCenterSpeed = myTree.getComYSpeed(Quadtree.ROOT);
 
 		// The center of our window
 		double xWindowCenter = Universe.WINDOW_WIDTH / 2.0;
@@ -135,20 +828,20 @@ public class ParticleSystem {
 		double addToY = Math.round((yWindowCenter - yMassCenter));
 
 		// Go through each particle in the system and move it
-		for (Node current = head; current != null; current = current.getNext()) {
-			current.getParticle().advance();
+		for (int i = 0; i < particles.size(); i++) {
+			particles.xSpeed[i] += particles.xNetForce[i] / Particle.mass;
+			particles.ySpeed[i] += particles.yNetForce[i] / Particle.mass;
+
+			particles.x[i] += particles.xSpeed[i];
+			particles.y[i] += particles.ySpeed[i];
 			
 			// If the user wants us to, recenter the view on the center of mass
 			if (Universe.followCenter) {
-				current.getParticle().setX(
-						current.getParticle().getX() + addToX);
-				current.getParticle().setY(
-						current.getParticle().getY() + addToY);
-
-				current.getParticle().setXSpeed(
-						current.getParticle().getXSpeed() - xMassCenterSpeed);
-				current.getParticle().setYSpeed(
-						current.getParticle().getYSpeed() - yMassCenterSpeed);
+				particles.x[i] += addToX;
+				particles.y[i] += addToY;
+
+				particles.xSpeed[i] -= xMassCenterSpeed;
+				particles.ySpeed[i] -= yMassCenterSpeed;
 			}
 		}
 	}
@@ -159,68 +852,119 @@ public class ParticleSystem {
 	 * @param particle
 	 */
 	public void add(Particle particle) {
-		Node newNode = new Node();
-		newNode.setParticle(particle);
-		if (head != null)
-			head.setPrevious(newNode);
-		newNode.setNext(head);
-		head = newNode;
-		particleCount++;
+		particles.add(particle.getX(), particle.getY(), 0,
+				particle.getXSpeed(), particle.getYSpeed(), 0, WHITE);
+	}
+
+	/**
+	 * Adds all the given particles to the system at once
+	 * 
+	 * @param newParticles
+	 */
+	public void add(Particle[] newParticles) {
+		particles.ensureCapacity(particles.size() + newParticles.length);
+		for (int i = 0; i < newParticles.length; i++)
+			add(newParticles[i]);
 	}
 
 	/**
-	 * Removes the given particle from the system
+	 * Removes the particle at the given particle's location from the system
 	 * 
 	 * @param particle
 	 * @throws ParticleSystemException
 	 */
 	public void remove(Particle particle) throws ParticleSystemException {
-		remove(findParticle(particle));
+		remove(findParticle(particle.getX(), particle.getY(), 0));
 	}
 
 	/**
-	 * Removes the given node from the system
+	 * Removes the particle with the given index from the system
 	 * 
-	 * @param node
+	 * @param index
 	 * @throws ParticleSystemException
 	 */
-	protected void remove(Node node) throws ParticleSystemException {
+	protected void remove(int index) throws ParticleSystemException {
 		if (isEmpty())
 			throw new ParticleSystemException();
-		if (node.getNext() != null)
-			node.getNext().setPrevious(node.getPrevious());
-		if (node.getPrevious() != null)
-			node.getPrevious().setNext(node.getNext());
-		if (node == head)
-			head = head.getNext();
-		particleCount--;
+		particles.remove(index);
 	}
 
 	/**
-	 * Finds the given particle in the system and returns the node pointing to
-	 * it. If the particle is not found, an exception is thrown.
+	 * Finds the particle at the given location in the system and returns its
+	 * index. If the particle is not found, an exception is thrown.
 	 * 
-	 * @param particle
-	 * @return the node pointing to the given particle
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return the index of the particle at the given location
 	 * @throws ParticleSystemException
 	 */
-	private Node findParticle(Particle particle) throws ParticleSystemException {
+	protected int findParticle(double x, double y, double z)
+			throws ParticleSystemException {
 		if (isEmpty())
 			throw new ParticleSystemException("Empty list");
-		Node node = null;
-		Node current = head;
-		boolean found = false;
-		while (!found) {
-			if (current.getParticle().equals(particle)) {
-				node = current;
-				found = true;
-			} else {
-				current = current.getNext();
-			}
-		}
-		if (node == null)
+		int index = particles.indexOf(x, y, z);
+		if (index == -1)
 			throw new ParticleSystemException("Particle not found");
-		return node;
+		return index;
+	}
+
+	/**
+	 * Returns the solver used to compute forces
+	 *
+	 * @return the solver used to compute forces
+	 */
+	public int getSolver() {
+		return solver;
+	}
+
+	/**
+	 * Sets the solver used to compute forces
+	 *
+	 * @param solver
+	 *            either BARNES_HUT, FAST_MULTIPOLE, DIRECT_SUM,
+	 *            PARTICLE_MESH or TREE_PM
+	 */
+	public void setSolver(int solver) {
+		this.solver = solver;
+	}
+
+	/**
+	 * Returns the time, in nanoseconds, the last step took to build the tree
+	 *
+	 * @return the time taken to build the tree
+	 */
+	public long getBuildTime() {
+		return buildTime;
+	}
+
+	/**
+	 * Returns the time, in nanoseconds, the last step took to compute the
+	 * forces
+	 *
+	 * @return the time taken to compute the forces
+	 */
+	public long getForceTime() {
+		return forceTime;
+	}
+
+	/**
+	 * Returns the time, in nanoseconds, the last step took to color and move
+	 * the particles
+	 *
+	 * @return the time taken to move the particles
+	 */
+	public long getMoveTime() {
+		return moveTime;
+	}
+
+	/**
+	 * Returns the time, in nanoseconds, the system last took to be painted
+	 *
+	 * @return the time taken to paint the system
+	 */
+	public long getPaintTime() {
+		return paintTime;
 	}
 
 	/**
@@ -229,7 +973,7 @@ public class ParticleSystem {
 	 * @return true if the system has no particles
 	 */
 	public boolean isEmpty() {
-		return head == null;
+		return particles.size() == 0;
 	}
 
 	/**
@@ -238,13 +982,17 @@ public class ParticleSystem {
 	 * @param pane
 	 */
 	public void paint(Graphics pane) {
+		long start = System.nanoTime();
 		if (Universe.showTree && myTree != null) {
 			pane.setColor(Color.WHITE);
 			myTree.paint(pane);
 		} else {
-			for (Node current = head; current != null; current = current
-					.getNext())
-				current.getParticle().paint(pane);
+			int radius = Particle.radius;
+			for (int i = 0; i < particles.size(); i++) {
+				pane.setColor(palette[particles.color[i]]);
+				pane.fillOval((int) (particles.x[i] - radius / 2),
+						(int) (particles.y[i] - radius / 2), radius, radius);
+			}
 		}
 		
 		// Now we give some useful information about the system
@@ -262,7 +1010,31 @@ public class ParticleSystem {
 		y -= pane.getFontMetrics().getHeight();
 
 		// The number of particles in the system
-		pane.drawString(particleCount + " Particles", 10, y);
+		pane.drawString(particles.size() + " Particles", 10, y);
+
+		// The theta the tuner picked, and how far off it lets the forces be
+		if (Universe.autoTheta && tuner != null) {
+			y -= pane.getFontMetrics().getHeight();
+			pane.drawString(String.format(
+					"Theta %.2f, %.3f%% Sampled Force Error", Universe.theta,
+					100 * getThetaError()), 10, y);
+		}
+
+		// How evenly the force work was spread over the threads
+		if (Universe.threads > 1 && busy != null) {
+			y -= pane.getFontMetrics().getHeight();
+			pane.drawString(String.format("%.0f%% Load Balance",
+					100 * getLoadBalance()), 10, y);
+		}
+
+		// How out of order the particles got, and what sorting them bought
+		if (Universe.sortInterval > 0 && sortedRate > 0) {
+			y -= pane.getFontMetrics().getHeight();
+			pane.drawString(String.format(
+					"%.0f%% Out of Order, %.0f to %.0f Forces per Second",
+					100 * sortScatter, unsortedRate, sortedRate), 10, y);
+		}
+		paintTime = System.nanoTime() - start;
 	}
 
 	/**
@@ -1,92 +1,138 @@
-import java.awt.Color;
-import java.awt.Graphics;
-
 /**
  * The Particle System class defines a system of particles. It has a number of
  * particles, and a radius which describes the maximum lateral distance a
- * particle can reach from the center of the system before being removed.
- * 
+ * particle can reach from the center of the system before it may be removed,
+ * depending on the escape rule.
+ *
  * @author Christopher Glasz
  */
 public class ParticleSystem3D extends ParticleSystem {
 
 	/**
-	 * The constructor instantiates an empty list of particles
+	 * The fast multipole solver, made the first time it is needed
+	 */
+	private FastMultipole multipole;
+
+	/**
+	 * The constructor instantiates an empty store of particles
 	 */
 	public ParticleSystem3D() {
 		super();
+		myTree = new Octree(particles);
+		palette = makePalette(150);
 	}
 
 	/**
-	 * Populates the octree with the particles of the system.
+	 * Returns true if the particle with the given index is inside the
+	 * system's cube
+	 *
+	 * @param particle
+	 * @return true if the particle is inside the system's cube
 	 */
-	protected void populateTree() {
-		// For explanation, see comments in the ParticleSystem class
-		myTree = new Octree(new Octant((Universe.WINDOW_WIDTH / 2)
-				- SYSTEM_RADIUS, (Universe.WINDOW_HEIGHT / 2) - SYSTEM_RADIUS,
-				(Universe.WINDOW_HEIGHT / 2) - SYSTEM_RADIUS,
-				SYSTEM_RADIUS * 2, SYSTEM_RADIUS * 2, SYSTEM_RADIUS * 2));
-
-		for (Node current = head; current != null; current = current.getNext()) {
-			if ((((TreeNode3D) (myTree.getRoot())).getOct()
-					.contains(((Particle3D) current.getParticle()))))
-				((Octree) myTree).insertParticle(((Particle3D) current
-						.getParticle()));
-			else {
-				Node placeHolder = current;
-				try {
-					remove(current);
-				} catch (ParticleSystemException e) {
-					e.printStackTrace();
-				}
-				current = placeHolder;
-			}
-		}
+	protected boolean inSystemBox(int particle) {
+		double z = particles.z[particle] - (Universe.WINDOW_HEIGHT / 2);
+		return super.inSystemBox(particle) && Math.abs(z) < SYSTEM_RADIUS;
 	}
 
 	/**
-	 * Simulates physics. Specifically, it applies the force acting on each
-	 * particle.
+	 * Returns true if the particle with the given index is moving away from
+	 * the center of mass of the system faster than the speed needed to
+	 * escape it
+	 *
+	 * @param particle
+	 * @return true if the particle will never come back
 	 */
-	protected void simulatePhysics() {
-		for (Node current = head; current != null; current = current.getNext()) {
-			((Particle3D) current.getParticle()).computeForce((Octree) myTree);
+	protected boolean unbound(int particle) {
+		Octree tree = (Octree) myTree;
+		double dx = particles.x[particle] - tree.getComX(Quadtree.ROOT);
+		double dy = particles.y[particle] - tree.getComY(Quadtree.ROOT);
+		double dz = particles.z[particle] - tree.getComZ(Quadtree.ROOT);
+		double vx = particles.xSpeed[particle]
+				- tree.getComXSpeed(Quadtree.ROOT);
+		double vy = particles.ySpeed[particle]
+				- tree.getComYSpeed(Quadtree.ROOT);
+		double vz = particles.zSpeed[particle]
+				- tree.getComZSpeed(Quadtree.ROOT);
+		return unbound(dx * dx + dy * dy + dz * dz, dx * vx + dy * vy + dz
+				* vz, vx * vx + vy * vy + vz * vz);
+	}
+
+	/**
+	 * Empties the octree, with its root either fit around the particles or
+	 * covering the system's cube
+	 */
+	protected void resetTree() {
+		Octree tree = (Octree) myTree;
+		if (!adaptiveBounds()) {
+			tree.reset((Universe.WINDOW_WIDTH / 2) - SYSTEM_RADIUS,
+					(Universe.WINDOW_HEIGHT / 2) - SYSTEM_RADIUS,
+					(Universe.WINDOW_HEIGHT / 2) - SYSTEM_RADIUS,
+					SYSTEM_RADIUS * 2);
+			return;
 		}
+		BoundsTask bounds = findBounds();
+		double width = rootWidth(Math.max(Math.max(bounds.getMaxX()
+				- bounds.getMinX(), bounds.getMaxY() - bounds.getMinY()),
+				bounds.getMaxZ() - bounds.getMinZ()));
+		tree.reset((bounds.getMinX() + bounds.getMaxX() - width) / 2,
+				(bounds.getMinY() + bounds.getMaxY() - width) / 2,
+				(bounds.getMinZ() + bounds.getMaxZ() - width) / 2, width);
 	}
 
 	/**
-	 * Colors each particle according to the net force acting on it
+	 * Moves every particle that has left the system's box back in through the
+	 * opposite side
 	 */
-	protected void colorParticles() {
-		if (Universe.colorByForce) {
-			for (Node current = head; current != null; current = current
-					.getNext()) {
-				((Particle3D) current.getParticle()).colorByForce();
-			}
+	protected void wrapParticles() {
+		super.wrapParticles();
+		double z = (Universe.WINDOW_HEIGHT / 2) - SYSTEM_RADIUS;
+		for (int i = 0; i < particles.size(); i++)
+			particles.z[i] = wrap(particles.z[i], z, SYSTEM_RADIUS * 2);
+	}
+
+	/**
+	 * Simulates physics with whichever solver has been chosen
+	 */
+	protected void simulatePhysics() {
+		if (solver == FAST_MULTIPOLE && !usesDirectSum()) {
+			if (multipole == null
+					|| multipole.getOrder() != Universe.multipoleOrder)
+				multipole = new FastMultipole((Octree) myTree, particles,
+						Universe.multipoleOrder);
+			multipole.computeForces(Universe.threads > 1 ? getPool() : null);
 		} else {
-			for (Node current = head; current != null; current = current
-					.getNext()) {
-				((Particle3D) current.getParticle()).setColor(Color.WHITE);
-			}
+			super.simulatePhysics();
 		}
 	}
 
+	/**
+	 * Makes a mesh covering the system's box
+	 *
+	 * @param splitScale
+	 * @return the mesh
+	 */
+	protected ParticleMesh makeMesh(double splitScale) {
+		return new ParticleMesh(particles, 3, Universe.meshSize,
+				(Universe.WINDOW_WIDTH / 2) - SYSTEM_RADIUS,
+				(Universe.WINDOW_HEIGHT / 2) - SYSTEM_RADIUS,
+				(Universe.WINDOW_HEIGHT / 2) - SYSTEM_RADIUS,
+				SYSTEM_RADIUS * 2, splitScale);
+	}
+
 	/**
 	 * Moves each particle according to its current speed and the net force
 	 * acting on it
 	 */
 	protected void moveParticles() {
 		// For explanation, see comments in the ParticleSystem class
-		double xMassCenter = ((TreeNode3D) myTree.getRoot()).getOct().getComX();
-		double yMassCenter = ((TreeNode3D) myTree.getRoot()).getOct().getComY();
-		double zMassCenter = ((TreeNode3D) myTree.getRoot()).getOct().getComZ();
+		Octree tree = (Octree) myTree;
+		double xMassCenter = tree.getComX(Quadtree.ROOT);
+		double yMassCenter = tree.getComY(Quadtree.ROOT);
+		double zMassCenter = tree.getComZ(Quadtree.ROOT);
 
-		double xMassCenterSpeed = ((TreeNode3D) myTree.getRoot()).getOct()
-				.getComXSpeed();
-		double yMassCenterSpeed = ((TreeNode3D) myTree.getRoot()).getOct()
-				.getComYSpeed();
-		double zMassCenterSpeed = ((TreeNode3D) myTree.getRoot()).getOct()
-				.getComZSpeed();
+		double xMassCenterSpeed = tree.getComXSpeed(Quadtree.ROOT);
+		double yMassCenterSpeed = tree.getComYSpeed(Quadtree.ROOT);
+		double zMassCenterSpeed = tree.getComZSpeed(Quadtree.ROOT);
 
 		double xWindowCenter = Universe.WINDOW_WIDTH / 2.0;
 		double yWindowCenter = Universe.WINDOW_HEIGHT / 2.0;
@@ -98,58 +144,50 @@ public class ParticleSystem3D extends ParticleSystem {
 		addToY = Math.round((yWindowCenter - yMassCenter));
 		addToZ = Math.round((zWindowCenter - zMassCenter));
 
-		for (Node current = head; current != null; current = current.getNext()) {
-			((Particle3D) current.getParticle()).advance();
+		for (int i = 0; i < particles.size(); i++) {
+			particles.xSpeed[i] += particles.xNetForce[i] / Particle.mass;
+			particles.ySpeed[i] += particles.yNetForce[i] / Particle.mass;
+			particles.zSpeed[i] += particles.zNetForce[i] / Particle.mass;
+
+			particles.x[i] += particles.xSpeed[i];
+			particles.y[i] += particles.ySpeed[i];
+			particles.z[i] += particles.zSpeed[i];
+
 			if (Universe.followCenter) {
-				((Particle3D) current.getParticle()).setX(((Particle3D) current
-						.getParticle()).getX() + addToX);
-				((Particle3D) current.getParticle()).setY(((Particle3D) current
-						.getParticle()).getY() + addToY);
-				((Particle3D) current.getParticle()).setZ(((Particle3D) current
-						.getParticle()).getZ() + addToZ);
-
-				((Particle3D) current.getParticle())
-						.setXSpeed(((Particle3D) current.getParticle())
-								.getXSpeed() - xMassCenterSpeed);
-				((Particle3D) current.getParticle())
-						.setYSpeed(((Particle3D) current.getParticle())
-								.getYSpeed() - yMassCenterSpeed);
-				((Particle3D) current.getParticle())
-						.setZSpeed(((Particle3D) current.getParticle())
-								.getZSpeed() - zMassCenterSpeed);
+				particles.x[i] += addToX;
+				particles.y[i] += addToY;
+				particles.z[i] += addToZ;
+
+				particles.xSpeed[i] -= xMassCenterSpeed;
+				particles.ySpeed[i] -= yMassCenterSpeed;
+				particles.zSpeed[i] -= zMassCenterSpeed;
 			}
 		}
 	}
 
 	/**
-	 * Displays the system of particles (or, if indicated, the quadtree)
-	 * 
-	 * @param pane
+	 * Adds the given particle, which must be a Particle3D, to the system
+	 *
+	 * @param particle
 	 */
-	public void paint(Graphics pane) {
-		// For explanation, see comments in the ParticleSystem class
-		if (Universe.showTree && myTree != null) {
-			pane.setColor(Color.WHITE);
-			myTree.paint(pane);
-		} else {
-			for (Node current = head; current != null; current = current
-					.getNext())
-				((Particle3D) current.getParticle()).paint(pane);
-		}
-		pane.setColor(Color.white);
-		int y = Simulation.WINDOW_HEIGHT;
-		y -= pane.getFontMetrics().getHeight();
-
-		pane.drawString(String.format("%.3f Physics Calculations per Second",
-				Universe.calcsPS), 10, y);
-
-		y -= pane.getFontMetrics().getHeight();
-
-		pane.drawString(Universe.timesteps + " Time Steps", 10, y);
-
-		y -= pane.getFontMetrics().getHeight();
+	public void add(Particle particle) {
+		Particle3D particle3D = (Particle3D) particle;
+		particles.add(particle3D.getX(), particle3D.getY(), particle3D.getZ(),
+				particle3D.getXSpeed(), particle3D.getYSpeed(),
+				particle3D.getZSpeed(), WHITE);
+	}
 
-		pane.drawString(particleCount + " Particles", 10, y);
+	/**
+	 * Removes the particle at the given particle's location, which must be a
+	 * Particle3D, from the system
+	 *
+	 * @param particle
+	 * @throws ParticleSystemException
+	 */
+	public void remove(Particle particle) throws ParticleSystemException {
+		Particle3D particle3D = (Particle3D) particle;
+		remove(findParticle(particle3D.getX(), particle3D.getY(),
+				particle3D.getZ()));
 	}
 
 }
@@ -1,19 +1,231 @@
+import java.awt.Color;
 import java.awt.Graphics;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * The Quadtree class defines a two dimensional binary tree. Each node
  * references a quadrant. The root node references a quadrant that encompasses
  * all other sub-quadrants.
- * 
+ *
+ * The nodes are kept in plain arrays, one array per property, and are
+ * identified by their index. The four children of a node sit next to each
+ * other in the arrays, so a node only needs to know where its first child is.
+ * The tree is emptied and refilled every time step, and only allocates when it
+ * needs more nodes than it has ever needed before.
+ *
+ * Once built, the tree also lists the particles in its own order, in which the
+ * particles under any one node sit together. A node then only needs to know
+ * where its particles start in the list and how many there are. The tree can
+ * be built either by inserting particles one at a time from the root, or by
+ * sorting the particles along a Z-order curve and splitting the sorted list,
+ * which can be shared out between threads. Either way, the masses of the
+ * nodes are summed up from the leaves once the shape of the tree is done.
+ * Between builds, the tree can also be refit to where the particles have
+ * moved, keeping its quadrants as they are.
+ *
+ * A leaf holds up to Universe.leafSize particles before it is split, and no
+ * node is split below Universe.maxDepth, so particles that are very close
+ * together (or on top of each other) simply share a leaf.
+ *
  * @author Christopher Glasz
- * 
+ *
  */
 public class Quadtree {
 
 	/**
-	 * The root of the tree
+	 * The index of the root node
 	 */
-	protected TreeNode root;
+	public static final int ROOT = 0;
+
+	/**
+	 * The index used to say a node has no children or no particle
+	 */
+	public static final int NONE = -1;
+
+	/**
+	 * The number of nodes the tree starts out with room for
+	 */
+	protected static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * The fewest particles worth building the tree on more than one thread
+	 * for
+	 */
+	protected static final int PARALLEL_BUILD = 16384;
+
+	/**
+	 * The steps of a build on more than one thread
+	 */
+	private static final int KEYS = 0, DEAL = 1, SORT = 2, COUNT = 3,
+			BUILD = 4, SUM = 5;
+
+	/**
+	 * The particles the tree is populated with
+	 */
+	protected ParticleStore particles;
+
+	/**
+	 * The number of nodes in use
+	 */
+	protected int nodeCount;
+
+	/**
+	 * The index of each node's first child, or NONE if the node is a leaf
+	 */
+	protected int[] firstChild;
+
+	/**
+	 * The index of the last particle inserted into each leaf, or NONE if it
+	 * holds none. The rest of the leaf's particles are chained through
+	 * nextInLeaf. This is only used while particles are inserted one at a
+	 * time.
+	 */
+	protected int[] particle;
+
+	/**
+	 * For each particle, the index of the particle inserted into the same leaf
+	 * before it, or NONE if it was the first
+	 */
+	protected int[] nextInLeaf;
+
+	/**
+	 * The coordinates of the upper left corner of each node's quadrant
+	 */
+	protected double[] cornerX, cornerY;
+
+	/**
+	 * The width of each node's quadrant. Quadrants are always square.
+	 */
+	protected double[] width;
+
+	/**
+	 * The total mass within each node's quadrant
+	 */
+	protected double[] totalMass;
+
+	/**
+	 * The center of mass of each node's quadrant
+	 */
+	protected double[] comX, comY;
+
+	/**
+	 * The speed of the center of mass of each node's quadrant
+	 */
+	protected double[] comXSpeed, comYSpeed;
+
+	/**
+	 * The second moments of the mass in each node's quadrant about its center
+	 * of mass. These are only filled in when quadrupoles are computed.
+	 */
+	protected double[] quadXX, quadXY, quadYY;
+
+	/**
+	 * The position in the particle order of the first particle under each
+	 * node
+	 */
+	protected int[] rangeStart;
+
+	/**
+	 * The number of particles under each node
+	 */
+	protected int[] rangeCount;
+
+	/**
+	 * The indices of the particles, in the tree's order
+	 */
+	protected int[] order;
+
+	/**
+	 * The location of each particle, in the tree's order, so the particles of
+	 * a leaf sit next to each other in memory
+	 */
+	protected double[] bodyX, bodyY;
+
+	/**
+	 * The Morton code of each particle, used when building from sorted codes
+	 */
+	protected long[] keys;
+
+	/**
+	 * Scratch space for sorting the Morton codes
+	 */
+	protected long[] keyScratch;
+
+	/**
+	 * Scratch space for sorting the particle order
+	 */
+	protected int[] orderScratch;
+
+	/**
+	 * For each chunk of particles in a build on more than one thread, how
+	 * many of them fall in each bucket, and later where the first of them in
+	 * each bucket goes
+	 */
+	private int[][] bucketCounts;
+
+	/**
+	 * Where each bucket's particles start in the sorted list, and where the
+	 * last one ends
+	 */
+	private int[] bucketStart;
+
+	/**
+	 * The number of particles in each chunk, the number of levels the buckets
+	 * stand for, and the position of the Morton code bits that pick a bucket
+	 */
+	private int chunkLength, bucketLevels, bucketShift;
+
+	/**
+	 * The nodes whose subtrees are built on their own threads, and the first
+	 * node of the block set aside for each subtree's descendants
+	 */
+	private int[] subtreeNode, subtreeBlock;
+
+	/**
+	 * The number of subtrees built on their own threads
+	 */
+	private int subtreeCount;
+
+	/**
+	 * The leaf each particle is in, kept while the tree is being refit
+	 */
+	protected int[] leafOf;
+
+	/**
+	 * Boolean to keep track of whether the tree holds every particle and
+	 * knows which leaf each is in, so it can be refit
+	 */
+	private boolean built;
+
+	/**
+	 * The store's count of changes, the leaf size, and the deepest level the
+	 * tree was last built with
+	 */
+	private int builtChanges, builtLeafSize, builtMaxDepth;
+
+	/**
+	 * The number of times particles have changed leaves in refits since the
+	 * tree was last built
+	 */
+	private int moves;
+
+	/**
+	 * The nodes whose particles walk the tree together, as found by the last
+	 * call to findGroups
+	 */
+	protected int[] groups;
+
+	/**
+	 * The number of groups found by the last call to findGroups
+	 */
+	protected int groupCount;
+
+	/**
+	 * The kernel each thread gathers its sources of force into
+	 */
+	protected ThreadLocal<ForceKernel> kernels;
 
 	/**
 	 * Default constructor should never be used
@@ -22,190 +234,1778 @@ public class Quadtree {
 	}
 
 	/**
-	 * Constructor defines a quadrant, of which all other quadrants will be a
-	 * part of
-	 * 
-	 * @param quad
+	 * Constructor creates an empty tree that will be populated with the given
+	 * particles
+	 *
+	 * @param particles
+	 */
+	public Quadtree(ParticleStore particles) {
+		this.particles = particles;
+		nodeCount = 0;
+		firstChild = new int[INITIAL_CAPACITY];
+		particle = new int[INITIAL_CAPACITY];
+		cornerX = new double[INITIAL_CAPACITY];
+		cornerY = new double[INITIAL_CAPACITY];
+		width = new double[INITIAL_CAPACITY];
+		totalMass = new double[INITIAL_CAPACITY];
+		comX = new double[INITIAL_CAPACITY];
+		comY = new double[INITIAL_CAPACITY];
+		comXSpeed = new double[INITIAL_CAPACITY];
+		comYSpeed = new double[INITIAL_CAPACITY];
+		quadXX = new double[INITIAL_CAPACITY];
+		quadXY = new double[INITIAL_CAPACITY];
+		quadYY = new double[INITIAL_CAPACITY];
+		rangeStart = new int[INITIAL_CAPACITY];
+		rangeCount = new int[INITIAL_CAPACITY];
+		order = new int[0];
+		nextInLeaf = new int[0];
+		bodyX = new double[0];
+		bodyY = new double[0];
+		keys = new long[0];
+		keyScratch = new long[0];
+		orderScratch = new int[0];
+		leafOf = new int[0];
+		groups = new int[0];
+		kernels = new ThreadLocal<ForceKernel>() {
+			protected ForceKernel initialValue() {
+				return ForceKernel.create();
+			}
+		};
+	}
+
+	/**
+	 * Empties the tree, leaving only a root quadrant with the given upper left
+	 * corner and width
+	 *
+	 * @param x
+	 * @param y
+	 * @param width
 	 */
-	public Quadtree(Quadrant quad) {
-		root = new TreeNode(quad);
+	public void reset(double x, double y, double width) {
+		built = false;
+		nodeCount = 1;
+		initNode(ROOT, x, y, width);
+	}
+
+	/**
+	 * Returns the number of children each node has
+	 *
+	 * @return the number of children each node has
+	 */
+	public int getChildCount() {
+		return 4;
+	}
+
+	/**
+	 * Makes sure there is room for at least the given number of nodes
+	 *
+	 * @param capacity
+	 */
+	protected void ensureCapacity(int capacity) {
+		if (capacity > firstChild.length) {
+			int newCapacity = Math.max(capacity, firstChild.length * 2);
+			firstChild = Arrays.copyOf(firstChild, newCapacity);
+			particle = Arrays.copyOf(particle, newCapacity);
+			cornerX = Arrays.copyOf(cornerX, newCapacity);
+			cornerY = Arrays.copyOf(cornerY, newCapacity);
+			width = Arrays.copyOf(width, newCapacity);
+			totalMass = Arrays.copyOf(totalMass, newCapacity);
+			comX = Arrays.copyOf(comX, newCapacity);
+			comY = Arrays.copyOf(comY, newCapacity);
+			comXSpeed = Arrays.copyOf(comXSpeed, newCapacity);
+			comYSpeed = Arrays.copyOf(comYSpeed, newCapacity);
+			quadXX = Arrays.copyOf(quadXX, newCapacity);
+			quadXY = Arrays.copyOf(quadXY, newCapacity);
+			quadYY = Arrays.copyOf(quadYY, newCapacity);
+			rangeStart = Arrays.copyOf(rangeStart, newCapacity);
+			rangeCount = Arrays.copyOf(rangeCount, newCapacity);
+		}
+	}
+
+	/**
+	 * Makes sure there is room to list at least the given number of particles.
+	 * The lists are refilled every build, so nothing is copied over, except
+	 * for the leaf chains, which particles may be added to one at a time.
+	 *
+	 * @param capacity
+	 */
+	protected void ensureParticleCapacity(int capacity) {
+		if (capacity > order.length) {
+			int newCapacity = Math.max(capacity, order.length + (order.length >> 1));
+			order = new int[newCapacity];
+			nextInLeaf = Arrays.copyOf(nextInLeaf, newCapacity);
+			bodyX = new double[newCapacity];
+			bodyY = new double[newCapacity];
+			keys = new long[newCapacity];
+			keyScratch = new long[newCapacity];
+			orderScratch = new int[newCapacity];
+			leafOf = new int[newCapacity];
+		}
+	}
+
+	/**
+	 * Sets up the given node as an empty leaf covering the given quadrant
+	 *
+	 * @param node
+	 * @param x
+	 * @param y
+	 * @param width
+	 */
+	protected void initNode(int node, double x, double y, double width) {
+		firstChild[node] = NONE;
+		particle[node] = NONE;
+		cornerX[node] = x;
+		cornerY[node] = y;
+		this.width[node] = width;
+		rangeStart[node] = 0;
+		rangeCount[node] = 0;
+		empty(node);
+	}
+
+	/**
+	 * Empties the given node of particles
+	 *
+	 * @param node
+	 */
+	protected void empty(int node) {
+		particle[node] = NONE;
+		totalMass[node] = 0;
+		comX[node] = 0;
+		comY[node] = 0;
+		comXSpeed[node] = 0;
+		comYSpeed[node] = 0;
 	}
 
 	/**
 	 * Returns true if Quadtree is empty
-	 * 
+	 *
 	 * @return true if Quadtree is empty
 	 */
 	public boolean isEmpty() {
-		return root == null;
+		return nodeCount == 0;
 	}
 
 	/**
-	 * Returns the size (number of quadrants) of the tree
-	 * 
-	 * @return size
+	 * Returns true if the given node is internal. Internal nodes have
+	 * sub-quadrants; external nodes do not
+	 *
+	 * @param node
+	 * @return true if the node is internal
 	 */
-	public int size() {
-		return size(root);
+	public boolean isInternal(int node) {
+		return firstChild[node] != NONE;
 	}
 
 	/**
 	 * Returns the size (number of quadrants) of the tree
-	 * 
-	 * @param root
+	 *
 	 * @return size
 	 */
-	private int size(TreeNode root) {
-		if (root.isInternal())
-			return size(root.getI()) + size(root.getII()) + size(root.getIII())
-					+ size(root.getIV());
-		else
-			return 1;
+	public int size() {
+		return nodeCount;
 	}
 
 	/**
 	 * Returns the population (number of particles) of the tree
-	 * 
+	 *
 	 * @return population
 	 */
 	public int population() {
-		return population(root);
+		int population = 0;
+		for (int node = 0; node < nodeCount; node++) {
+			if (!isInternal(node))
+				population += Math.round(totalMass[node] / Particle.mass);
+		}
+		return population;
 	}
 
 	/**
-	 * Returns the population (number of particles) of the tree
-	 * 
-	 * @param root
-	 * @return population
+	 * Returns true if the root quadrant contains the given coordinates
+	 *
+	 * @param x
+	 * @param y
+	 * @return true if the root quadrant contains the given coordinates
 	 */
-	private int population(TreeNode root) {
-		if (root.isInternal())
-			return population(root.getI()) + population(root.getII())
-					+ population(root.getIII()) + population(root.getIV());
-		else {
-			if (root.getQuad().isFull())
-				return 1;
+	public boolean contains(double x, double y) {
+		return x >= cornerX[ROOT] && y >= cornerY[ROOT]
+				&& x < cornerX[ROOT] + width[ROOT]
+				&& y < cornerY[ROOT] + width[ROOT];
+	}
+
+	/**
+	 * Returns true if the root quadrant contains the particle with the given
+	 * index
+	 *
+	 * @param particle
+	 * @return true if the root quadrant contains the particle
+	 */
+	public boolean contains(int particle) {
+		return contains(particles.x[particle], particles.y[particle]);
+	}
+
+	/**
+	 * Subdivides the node (adds four quadrants to the node)
+	 *
+	 * @param node
+	 */
+	protected void subdivide(int node) {
+		int children = getChildCount();
+		ensureCapacity(nodeCount + children);
+		int first = nodeCount;
+		nodeCount += children;
+		subdivide(node, first);
+	}
+
+	/**
+	 * Subdivides the node, putting its quadrants at the given index on. There
+	 * must already be room for them.
+	 *
+	 * @param node
+	 * @param first
+	 */
+	protected void subdivide(int node, int first) {
+		firstChild[node] = first;
+
+		// Each child's position among its siblings says which half of the
+		// quadrant it covers: bit 0 is set for the east half, bit 1 for the
+		// south half
+		double half = width[node] / 2.0;
+		for (int i = 0; i < 4; i++) {
+			initNode(first + i, cornerX[node] + (i & 1) * half, cornerY[node]
+					+ ((i >> 1) & 1) * half, half);
+		}
+	}
+
+	/**
+	 * Returns the child of the given internal node whose quadrant contains the
+	 * given particle
+	 *
+	 * @param node
+	 * @param particle
+	 * @return the child containing the particle
+	 */
+	protected int childContaining(int node, int particle) {
+		double half = width[node] / 2.0;
+		int i = 0;
+		if (particles.x[particle] >= cornerX[node] + half)
+			i |= 1;
+		if (particles.y[particle] >= cornerY[node] + half)
+			i |= 2;
+		return firstChild[node] + i;
+	}
+
+	/**
+	 * Inserts the particle with the passed index into the correct quadrant.
+	 * Only the shape of the tree is built; the masses and centers of mass are
+	 * summed up by indexParticles once every particle is in.
+	 *
+	 * @param particle
+	 */
+	public void insertParticle(int particle) {
+		ensureParticleCapacity(particle + 1);
+		insertParticle(ROOT, 0, particle);
+	}
+
+	/**
+	 * Inserts the particle with the passed index into the correct quadrant
+	 * below the given node, which is at the given depth
+	 *
+	 * @param node
+	 * @param depth
+	 * @param particle
+	 */
+	private void insertParticle(int node, int depth, int particle) {
+		while (isInternal(node)) {
+
+			// Move on to the appropriate quadrant
+			node = childContaining(node, particle);
+			depth++;
+		}
+
+		// If the leaf is full, and we're allowed to go deeper, we need to
+		// split it up and distribute its particles into the new sub-quadrants
+		if (rangeCount[node] >= Universe.leafSize && depth < getMaxDepth()) {
+			int preExisting = this.particle[node];
+			empty(node);
+			rangeCount[node] = 0;
+			subdivide(node);
+			while (preExisting != NONE) {
+				int next = nextInLeaf[preExisting];
+				insertParticle(node, depth, preExisting);
+				preExisting = next;
+			}
+			insertParticle(node, depth, particle);
+			return;
+		}
+
+		// Otherwise the leaf can simply take the particle
+		nextInLeaf[particle] = this.particle[node];
+		this.particle[node] = particle;
+		rangeCount[node]++;
+	}
+
+	/**
+	 * Returns the deepest level a node can be split to
+	 *
+	 * @return the deepest level a node can be split to
+	 */
+	protected int getMaxDepth() {
+		return Math.min(Universe.maxDepth, getLevels());
+	}
+
+	/**
+	 * Populates the tree by inserting every particle in the store, one at a
+	 * time, then lists them in the tree's order and sums up the nodes
+	 *
+	 * @param pool
+	 *            the pool to sum up the nodes on, or null to use this thread
+	 */
+	public void insertAll(ForkJoinPool pool) {
+		ensureParticleCapacity(particles.size());
+		for (int i = 0; i < particles.size(); i++)
+			insertParticle(i);
+		indexParticles(pool);
+		recordBuild();
+	}
+
+	/**
+	 * Lists the particles in the tree's order, records where each node's
+	 * particles are in the list, and sums up the mass of every node. This has
+	 * to be done once particles have been inserted one at a time, before
+	 * forces are computed.
+	 *
+	 * @param pool
+	 *            the pool to sum up the nodes on, or null to use this thread
+	 */
+	public void indexParticles(ForkJoinPool pool) {
+		ensureParticleCapacity(particles.size());
+		int count = indexParticles(ROOT, 0);
+		gatherBodies(0, count);
+		sumNodes(pool);
+	}
+
+	/**
+	 * Sets the mass, center of mass and speed of the center of mass of every
+	 * node, each leaf from the particles it holds and each internal node from
+	 * its children once they are done. That is one pass over the nodes, with
+	 * no dividing until the sums are complete. If a pool is given, the
+	 * subtrees below the top few levels are summed up on its threads, since
+	 * they share no nodes, and the top levels are summed up last.
+	 *
+	 * @param pool
+	 *            the pool to run on, or null to use this thread
+	 */
+	public void sumNodes(ForkJoinPool pool) {
+		if (pool == null || pool.getParallelism() < 2
+				|| particles.size() < PARALLEL_BUILD) {
+			sumNodes(ROOT, 0, -1);
+			return;
+		}
+		int levels = getSplitLevels();
+		prepareSubtrees(1 << (levels * getLevelBits()));
+		findSubtrees(ROOT, 0, levels);
+		pool.invoke(new BuildTask(SUM, 0, subtreeCount));
+		sumNodes(ROOT, 0, levels);
+	}
+
+	/**
+	 * Sums up the given node, at the given level, and everything below it.
+	 * Nodes at the given level are left alone, as they have been summed up
+	 * on their own.
+	 *
+	 * @param node
+	 * @param level
+	 * @param stop
+	 *            the level to stop at, or -1 to sum up the whole subtree
+	 */
+	private void sumNodes(int node, int level, int stop) {
+		if (level == stop)
+			return;
+		if (isInternal(node)) {
+			int first = firstChild[node];
+			for (int child = first; child < first + getChildCount(); child++)
+				sumNodes(child, level + 1, stop);
+			sumChildren(node);
+		} else {
+			empty(node);
+			sumLeaf(node);
+		}
+	}
+
+	/**
+	 * Lists the nodes at the given level below the given node, which is at
+	 * the given level, as subtrees to be worked on by their own threads
+	 *
+	 * @param node
+	 * @param level
+	 * @param stop
+	 */
+	private void findSubtrees(int node, int level, int stop) {
+		if (level == stop) {
+			subtreeNode[subtreeCount++] = node;
+		} else if (isInternal(node)) {
+			int first = firstChild[node];
+			for (int child = first; child < first + getChildCount(); child++)
+				findSubtrees(child, level + 1, stop);
+		}
+	}
+
+	/**
+	 * Lists the particles under the given node, starting at the given
+	 * position in the list
+	 *
+	 * @param node
+	 * @param position
+	 * @return the position after the node's last particle
+	 */
+	private int indexParticles(int node, int position) {
+		rangeStart[node] = position;
+		if (isInternal(node)) {
+			int first = firstChild[node];
+			for (int child = first; child < first + getChildCount(); child++)
+				position = indexParticles(child, position);
+		} else {
+			for (int i = particle[node]; i != NONE; i = nextInLeaf[i])
+				order[position++] = i;
+		}
+		rangeCount[node] = position - rangeStart[node];
+		return position;
+	}
+
+	/**
+	 * Copies the locations of the particles between the given positions in
+	 * the tree's order next to each other
+	 *
+	 * @param start
+	 * @param end
+	 */
+	protected void gatherBodies(int start, int end) {
+		for (int k = start; k < end; k++) {
+			int i = order[k];
+			bodyX[k] = particles.x[i];
+			bodyY[k] = particles.y[i];
+		}
+	}
+
+	/**
+	 * Returns the number of levels the Morton codes can tell apart
+	 *
+	 * @return the number of bits per coordinate in a Morton code
+	 */
+	protected int getLevels() {
+		return Morton.BITS_2D;
+	}
+
+	/**
+	 * Returns the number of Morton code bits that pick a child at each level
+	 *
+	 * @return the number of Morton code bits per level
+	 */
+	protected int getLevelBits() {
+		return 2;
+	}
+
+	/**
+	 * Computes the Morton code of each particle between the given indices,
+	 * relative to the root quadrant, and lists the particles in their
+	 * original order
+	 *
+	 * @param start
+	 * @param end
+	 */
+	protected void computeKeys(int start, int end) {
+		double scale = (1L << Morton.BITS_2D) / width[ROOT];
+		for (int i = start; i < end; i++) {
+			int qx = Morton.quantize(particles.x[i], cornerX[ROOT], scale,
+					Morton.BITS_2D);
+			int qy = Morton.quantize(particles.y[i], cornerY[ROOT], scale,
+					Morton.BITS_2D);
+			keys[i] = Morton.encode(qx, qy);
+			order[i] = i;
+		}
+	}
+
+	/**
+	 * Populates the tree from the particles sorted by Morton code. The
+	 * particles under any node have codes starting with the same bits, so each
+	 * node's particles are a run of the sorted list, and its children split
+	 * that run by the next bits of the code. The centers of mass are then
+	 * built up from the leaves.
+	 */
+	public void buildSorted() {
+		int n = particles.size();
+		ensureParticleCapacity(n);
+		computeKeys(0, n);
+		Morton.sort(keys, order, n, keyScratch, orderScratch, getLevels()
+				* getLevelBits());
+		gatherBodies(0, n);
+		nodeCount = buildNode(ROOT, 0, n, 0, nodeCount, -1);
+		recordBuild();
+	}
+
+	/**
+	 * Populates the tree from the particles sorted by Morton code, as
+	 * buildSorted() does, sharing the work out between the threads of the
+	 * given pool.
+	 *
+	 * The particles are first dealt out into buckets by the top bits of their
+	 * codes, which sorts them by the node they fall in a few levels down,
+	 * each chunk of particles on its own thread. Each bucket is then sorted
+	 * on the rest of the bits on its own. The top few levels of the tree are
+	 * built on this thread, and the subtree below each node at the bottom of
+	 * them on its own, into a block of nodes set aside for it once the
+	 * number of nodes each subtree needs has been counted. No two threads
+	 * ever write to the same node or the same place in a list, so nothing
+	 * has to be locked. Small systems are built on this thread alone.
+	 *
+	 * @param pool
+	 *            the pool to run on, or null to build on this thread
+	 */
+	public void buildSorted(ForkJoinPool pool) {
+		int n = particles.size();
+		if (pool == null || pool.getParallelism() < 2 || n < PARALLEL_BUILD) {
+			buildSorted();
+			return;
+		}
+		ensureParticleCapacity(n);
+
+		int levelBits = getLevelBits();
+		bucketLevels = getSplitLevels();
+		bucketShift = (getLevels() - bucketLevels) * levelBits;
+		int buckets = 1 << (bucketLevels * levelBits);
+		int chunks = 4 * pool.getParallelism();
+		chunkLength = (n + chunks - 1) / chunks;
+		if (bucketCounts == null || bucketCounts.length != chunks
+				|| bucketCounts[0].length != buckets) {
+			bucketCounts = new int[chunks][buckets];
+			bucketStart = new int[buckets + 1];
+		}
+		prepareSubtrees(buckets);
+
+		// Work out the codes, and deal them out into their buckets. Each
+		// chunk's particles in a bucket go after those of the chunks before.
+		pool.invoke(new BuildTask(KEYS, 0, chunks));
+		int total = 0;
+		for (int b = 0; b < buckets; b++) {
+			bucketStart[b] = total;
+			for (int c = 0; c < chunks; c++) {
+				int count = bucketCounts[c][b];
+				bucketCounts[c][b] = total;
+				total += count;
+			}
+		}
+		bucketStart[buckets] = total;
+		pool.invoke(new BuildTask(DEAL, 0, chunks));
+		pool.invoke(new BuildTask(SORT, 0, buckets));
+
+		// Build the top levels, then set aside a block of nodes for each
+		// subtree below them, and build the subtrees
+		int top = buildNode(ROOT, 0, n, 0, nodeCount, bucketLevels);
+		pool.invoke(new BuildTask(COUNT, 0, subtreeCount));
+		int next = top;
+		for (int s = 0; s < subtreeCount; s++) {
+			int size = subtreeBlock[s];
+			subtreeBlock[s] = next;
+			next += size;
+		}
+		ensureCapacity(next);
+		nodeCount = next;
+		pool.invoke(new BuildTask(BUILD, 0, subtreeCount));
+
+		// The top levels come before every block, and their children after
+		// them, so walking them backwards sums up every child first
+		for (int node = top - 1; node >= 0; node--) {
+			if (isInternal(node))
+				sumChildren(node);
+		}
+		recordBuild();
+	}
+
+	/**
+	 * Returns the number of levels at the top of the tree that are worked on
+	 * by one thread, enough for a few hundred subtrees below them
+	 *
+	 * @return the number of levels at the top of the tree
+	 */
+	private int getSplitLevels() {
+		int levelBits = getLevelBits();
+		return Math.min((8 + levelBits - 1) / levelBits, getMaxDepth());
+	}
+
+	/**
+	 * Empties the list of subtrees, making sure it has room for the given
+	 * number of them
+	 *
+	 * @param count
+	 */
+	private void prepareSubtrees(int count) {
+		if (subtreeNode == null || subtreeNode.length < count) {
+			subtreeNode = new int[count];
+			subtreeBlock = new int[count];
+		}
+		subtreeCount = 0;
+	}
+
+	/**
+	 * Runs one step of a build on more than one thread for the given chunk,
+	 * bucket or subtree
+	 *
+	 * @param step
+	 * @param item
+	 */
+	private void buildStep(int step, int item) {
+		int n = particles.size();
+		int start = Math.min(item * chunkLength, n);
+		int end = Math.min(start + chunkLength, n);
+		switch (step) {
+		case KEYS:
+			int[] counts = bucketCounts[item];
+			Arrays.fill(counts, 0);
+			computeKeys(start, end);
+			for (int i = start; i < end; i++)
+				counts[(int) (keys[i] >>> bucketShift)]++;
+			break;
+		case DEAL:
+			int[] next = bucketCounts[item];
+			for (int i = start; i < end; i++) {
+				int to = next[(int) (keys[i] >>> bucketShift)]++;
+				keyScratch[to] = keys[i];
+				orderScratch[to] = i;
+			}
+			break;
+		case SORT:
+			int from = bucketStart[item];
+			int to = bucketStart[item + 1];
+			System.arraycopy(keyScratch, from, keys, from, to - from);
+			System.arraycopy(orderScratch, from, order, from, to - from);
+			Morton.sort(keys, order, from, to, keyScratch, orderScratch,
+					bucketShift);
+			gatherBodies(from, to);
+			break;
+		case COUNT:
+			int node = subtreeNode[item];
+			subtreeBlock[item] = countNodes(rangeStart[node], rangeStart[node]
+					+ rangeCount[node], bucketLevels);
+			break;
+		case BUILD:
+			node = subtreeNode[item];
+			buildNode(node, rangeStart[node], rangeStart[node]
+					+ rangeCount[node], bucketLevels, subtreeBlock[item], -1);
+			break;
+		case SUM:
+			sumNodes(subtreeNode[item], 0, -1);
+			break;
+		}
+	}
+
+	/**
+	 * Builds the subtree below the given node out of the sorted particles
+	 * between the given positions, putting new nodes at the given index on.
+	 * Nodes at the given level are only set aside to be built later.
+	 *
+	 * @param node
+	 * @param start
+	 * @param end
+	 * @param level
+	 * @param next
+	 *            the index of the next free node
+	 * @param stop
+	 *            the level to stop at, or -1 to build the whole subtree
+	 * @return the index of the next free node once the subtree is built
+	 */
+	private int buildNode(int node, int start, int end, int level, int next,
+			int stop) {
+		rangeStart[node] = start;
+		rangeCount[node] = end - start;
+		if (level == stop) {
+			subtreeNode[subtreeCount++] = node;
+			return next;
+		}
+
+		// Few enough particles to fit in a leaf, or particles that are too
+		// close together to be worth splitting up, make a leaf
+		if (end - start <= Universe.leafSize || level >= getMaxDepth()) {
+			sumLeaf(node);
+			return next;
+		}
+
+		int children = getChildCount();
+		ensureCapacity(next + children);
+		subdivide(node, next);
+		int first = next;
+		next += children;
+		int shift = (getLevels() - 1 - level) * getLevelBits();
+		int from = start;
+		for (int child = 0; child < children; child++) {
+			int to = (child == children - 1) ? end : endOfChild(from, end,
+					shift, child);
+			next = buildNode(first + child, from, to, level + 1, next, stop);
+			from = to;
+		}
+
+		// The nodes set aside are summed up once they are built
+		if (stop < 0)
+			sumChildren(node);
+		return next;
+	}
+
+	/**
+	 * Counts the nodes buildNode would add below a node at the given level
+	 * holding the sorted particles between the given positions
+	 *
+	 * @param start
+	 * @param end
+	 * @param level
+	 * @return the number of nodes below the node
+	 */
+	private int countNodes(int start, int end, int level) {
+		if (end - start <= Universe.leafSize || level >= getMaxDepth())
+			return 0;
+		int children = getChildCount();
+		int shift = (getLevels() - 1 - level) * getLevelBits();
+		int count = children;
+		int from = start;
+		for (int child = 0; child < children; child++) {
+			int to = (child == children - 1) ? end : endOfChild(from, end,
+					shift, child);
+			count += countNodes(from, to, level + 1);
+			from = to;
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the first sorted particle between the given positions that belongs
+	 * to a later child than the given one
+	 *
+	 * @param from
+	 * @param to
+	 * @param shift
+	 *            the position of the bits that pick the child
+	 * @param child
+	 * @return the position after the child's last particle
+	 */
+	private int endOfChild(int from, int to, int shift, int child) {
+		int mask = getChildCount() - 1;
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (((int) (keys[middle] >>> shift) & mask) <= child)
+				from = middle + 1;
 			else
-				return 0;
+				to = middle;
 		}
+		return from;
+	}
+
+	/**
+	 * Remembers which leaf each particle went into, and what the tree was
+	 * built from, so a refit can tell when the tree no longer fits the
+	 * particles. There is nothing to remember unless refitting is on.
+	 */
+	private void recordBuild() {
+		built = Universe.refitTree;
+		if (!built)
+			return;
+		findLeaves();
+		builtLeafSize = Universe.leafSize;
+		builtMaxDepth = getMaxDepth();
+		moves = 0;
+	}
+
+	/**
+	 * Records which leaf each particle is in, for the refit
+	 */
+	private void findLeaves() {
+		for (int node = 0; node < nodeCount; node++) {
+			if (isInternal(node))
+				continue;
+			int start = rangeStart[node];
+			for (int k = start; k < start + rangeCount[node]; k++)
+				leafOf[order[k]] = node;
+		}
+		builtChanges = particles.getChanges();
+	}
+
+	/**
+	 * Puts the particles in the store in the tree's order. Afterwards the
+	 * particle at each place in the tree's list is the one with the same
+	 * index, so the particles of every node sit together in the store too,
+	 * and the tree can still be refit.
+	 */
+	public void sortStore() {
+		int n = particles.size();
+		particles.reorder(order);
+		for (int k = 0; k < n; k++)
+			order[k] = k;
+		if (built)
+			findLeaves();
 	}
 
 	/**
-	 * Subdivides the nodes (adds four quadrants to the node)
-	 * 
-	 * @param root
+	 * Refits the tree to where the particles have moved since it was built,
+	 * rather than building it again. The quadrants stay as they are:
+	 * particles that are still in their leaf stay there, those that have left
+	 * are moved to the leaf that holds them now, and the centers of mass are
+	 * summed up again from the leaves. The quadrupole moments are left to be
+	 * computed again afterwards.
+	 *
+	 * A tree that is only ever refit slowly loses its shape, with some leaves
+	 * filling up while others empty out, so false is returned, and the tree
+	 * has to be built from scratch, if particles have been added or removed,
+	 * a particle has left the root quadrant, the leaf size or depth has
+	 * changed, more than the given fraction of the particles have changed
+	 * leaves since the tree was built, or a leaf that could still be split
+	 * holds more than twice the leaf size.
+	 *
+	 * @param limit
+	 *            the fraction of the particles that may change leaves between
+	 *            builds
+	 * @return true if the tree was refit
 	 */
-	public void subdivide(TreeNode root) {
-		if (!root.isInternal()) {
-			root.subdivide();
+	public boolean refit(double limit) {
+		int n = particles.size();
+		if (!built || particles.getChanges() != builtChanges
+				|| Universe.leafSize != builtLeafSize
+				|| getMaxDepth() != builtMaxDepth)
+			return false;
+		built = false;
+
+		// Find the leaf each particle is in now, and count the particles each
+		// leaf holds. Most are still in the one they were in, which is quick
+		// to check. Once too many have moved, there is no point looking any
+		// further.
+		for (int node = 0; node < nodeCount; node++) {
+			if (!isInternal(node))
+				rangeCount[node] = 0;
+		}
+		int moved = 0;
+		double allowed = limit * n - moves;
+		for (int i = 0; i < n; i++) {
+			if (!holds(leafOf[i], i)) {
+				if (!contains(i) || ++moved > allowed)
+					return false;
+				leafOf[i] = findLeaf(i);
+			}
+			rangeCount[leafOf[i]]++;
+		}
+
+		// Leaves at the deepest level can't be split, so they are allowed to
+		// fill up
+		double deepest = Math.scalb(width[ROOT], -builtMaxDepth);
+		for (int node = 0; node < nodeCount; node++) {
+			if (!isInternal(node) && rangeCount[node] > 2 * Universe.leafSize
+					&& width[node] > 1.5 * deepest)
+				return false;
+		}
+
+		// Lay the leaves out in the list again, and hand each particle the
+		// next place in its leaf. The start of each leaf serves as its
+		// cursor, and is put back afterwards.
+		placeRanges(ROOT, 0);
+		for (int i = 0; i < n; i++)
+			order[rangeStart[leafOf[i]]++] = i;
+		for (int node = 0; node < nodeCount; node++) {
+			if (!isInternal(node))
+				rangeStart[node] -= rangeCount[node];
 		}
+		gatherBodies(0, n);
+
+		// Children are always stored after their parents, so walking the
+		// nodes backwards sums up every child before its parent
+		for (int node = nodeCount - 1; node >= 0; node--) {
+			if (isInternal(node)) {
+				sumChildren(node);
+			} else {
+				empty(node);
+				sumLeaf(node);
+			}
+		}
+		moves += moved;
+		built = true;
+		return true;
+	}
+
+	/**
+	 * Records where the particles under the given node start in the list,
+	 * from the given position on, given how many each leaf holds
+	 *
+	 * @param node
+	 * @param position
+	 * @return the position after the node's last particle
+	 */
+	private int placeRanges(int node, int position) {
+		rangeStart[node] = position;
+		if (!isInternal(node))
+			return position + rangeCount[node];
+		int first = firstChild[node];
+		for (int child = first; child < first + getChildCount(); child++)
+			position = placeRanges(child, position);
+		rangeCount[node] = position - rangeStart[node];
+		return position;
 	}
 
 	/**
-	 * Inserts the passed particle into the correct quadrant
-	 * 
+	 * Returns the leaf whose quadrant contains the particle with the given
+	 * index
+	 *
 	 * @param particle
+	 * @return the leaf containing the particle
 	 */
-	public void insertParticle(Particle particle) {
-		insertParticle(root, particle);
+	protected int findLeaf(int particle) {
+		int node = ROOT;
+		while (isInternal(node))
+			node = childContaining(node, particle);
+		return node;
 	}
 
 	/**
-	 * Inserts the passed particle into the correct quadrant
-	 * 
-	 * @param root
+	 * Returns true if the given node's quadrant contains the particle with
+	 * the given index
+	 *
+	 * @param node
 	 * @param particle
+	 * @return true if the quadrant contains the particle
 	 */
-	private void insertParticle(TreeNode root, Particle particle) {
-		if (!root.isInternal()) {
-			if (root.getQuad().isFull()) {
-
-				// If the quadrant is full, we need to split it up
-				Particle preExisting = root.getQuad().getParticle();
-				if (!(preExisting.getX() == particle.getX() && preExisting
-						.getY() == particle.getY())) {
-
-					// Empty the quadrant
-					root.getQuad().empty();
-					
-					// Split it up
-					subdivide(root);
-					
-					// Distribute the two particles into the new sub-quadrants
-					insertParticle(root, preExisting);
-					insertParticle(root, particle);
-				} else {
+	protected boolean holds(int node, int particle) {
+		double x = particles.x[particle];
+		double y = particles.y[particle];
+		return x >= cornerX[node] && y >= cornerY[node]
+				&& x < cornerX[node] + width[node]
+				&& y < cornerY[node] + width[node];
+	}
 
-					// Overlaps are practically impossible
-					System.out.println("Somehow overlapped");
-					System.out.println("\t" + population()
-							+ " particles distributed through " + size()
-							+ " quadrants.");
+	/**
+	 * Sets the given leaf's mass and center of mass from the particles it
+	 * holds
+	 *
+	 * @param node
+	 */
+	protected void sumLeaf(int node) {
+		int start = rangeStart[node];
+		int count = rangeCount[node];
+		if (count == 0)
+			return;
+		double x = 0, y = 0, xSpeed = 0, ySpeed = 0;
+		for (int k = start; k < start + count; k++) {
+			x += bodyX[k];
+			y += bodyY[k];
+			xSpeed += particles.xSpeed[order[k]];
+			ySpeed += particles.ySpeed[order[k]];
+		}
+		totalMass[node] = count * Particle.mass;
+		comX[node] = x / count;
+		comY[node] = y / count;
+		comXSpeed[node] = xSpeed / count;
+		comYSpeed[node] = ySpeed / count;
+	}
 
-				}
-			} else {
-				try {
-					root.getQuad().insertParticle(particle);
-				} catch (Exception e) {
-					System.out.println(e.getMessage());
+	/**
+	 * Sets the given internal node's mass and center of mass from those of its
+	 * children
+	 *
+	 * @param node
+	 */
+	protected void sumChildren(int node) {
+		double m = 0, x = 0, y = 0, xSpeed = 0, ySpeed = 0;
+		int first = firstChild[node];
+		for (int child = first; child < first + getChildCount(); child++) {
+			double childMass = totalMass[child];
+			m += childMass;
+			x += childMass * comX[child];
+			y += childMass * comY[child];
+			xSpeed += childMass * comXSpeed[child];
+			ySpeed += childMass * comYSpeed[child];
+		}
+		totalMass[node] = m;
+		if (m > 0) {
+			comX[node] = x / m;
+			comY[node] = y / m;
+			comXSpeed[node] = xSpeed / m;
+			comYSpeed[node] = ySpeed / m;
+		}
+	}
+
+	/**
+	 * Computes the second moments of every node about its center of mass, so
+	 * that the force walk can add a quadrupole correction to each node it
+	 * treats as a single particle. The centers of mass must already be known.
+	 * Children are always stored after their parents, so walking the nodes
+	 * backwards reaches every child before its parent.
+	 */
+	public void computeQuadrupoles() {
+		for (int node = nodeCount - 1; node >= 0; node--) {
+			if (isInternal(node))
+				sumChildMoments(node);
+			else
+				sumLeafMoments(node);
+		}
+	}
+
+	/**
+	 * Sets the given leaf's second moments from the particles it holds
+	 *
+	 * @param node
+	 */
+	protected void sumLeafMoments(int node) {
+		double xx = 0, xy = 0, yy = 0;
+		int start = rangeStart[node];
+		int end = start + rangeCount[node];
+		for (int k = start; k < end; k++) {
+			double dx = bodyX[k] - comX[node];
+			double dy = bodyY[k] - comY[node];
+			xx += dx * dx;
+			xy += dx * dy;
+			yy += dy * dy;
+		}
+		quadXX[node] = Particle.mass * xx;
+		quadXY[node] = Particle.mass * xy;
+		quadYY[node] = Particle.mass * yy;
+	}
+
+	/**
+	 * Sets the given internal node's second moments from those of its
+	 * children, shifting each child's moments over to the node's center of
+	 * mass
+	 *
+	 * @param node
+	 */
+	protected void sumChildMoments(int node) {
+		double xx = 0, xy = 0, yy = 0;
+		int first = firstChild[node];
+		for (int child = first; child < first + getChildCount(); child++) {
+			double m = totalMass[child];
+			if (m == 0)
+				continue;
+			double dx = comX[child] - comX[node];
+			double dy = comY[child] - comY[node];
+			xx += quadXX[child] + m * dx * dx;
+			xy += quadXY[child] + m * dx * dy;
+			yy += quadYY[child] + m * dy * dy;
+		}
+		quadXX[node] = xx;
+		quadXY[node] = xy;
+		quadYY[node] = yy;
+	}
+
+	/**
+	 * Computes the net force the particle with the passed index experiences as
+	 * a result of the other particles populating the tree, and stores it with
+	 * the particle. Only that particle's force is written, and each thread
+	 * gathers its sources into a kernel of its own, so different particles
+	 * can be worked on at the same time.
+	 *
+	 * @param particle
+	 */
+	public void computeForce(int particle) {
+		computeForce(particle, Universe.theta);
+	}
+
+	/**
+	 * Computes the net force on the particle with the passed index as
+	 * computeForce does, but with the given theta in place of Universe.theta
+	 * outside the region of interest
+	 *
+	 * @param particle
+	 * @param baseTheta
+	 */
+	public void computeForce(int particle, double baseTheta) {
+		double x = particles.x[particle];
+		double y = particles.y[particle];
+
+		// The threshold comes from the last step's force, so it has to be
+		// found before the force is cleared
+		double threshold = openingThreshold(particle);
+		double theta = openingTheta(x, x, y, y, baseTheta);
+		particles.xNetForce[particle] = 0;
+		particles.yNetForce[particle] = 0;
+
+		// Gather every node and particle that acts on this one, then work out
+		// their forces all at once
+		ForceKernel kernel = kernels.get();
+		kernel.clear();
+		gatherSources(ROOT, particle, x, y, threshold, theta, kernel);
+		kernel.apply(x, y);
+		particles.xNetForce[particle] += kernel.xForce;
+		particles.yNetForce[particle] += kernel.yForce;
+		particles.interactions[particle] = kernel.interactions;
+	}
+
+	/**
+	 * Recursively adds the sources of force within the passed node to the
+	 * kernel's batch, for the particle with the passed index, which is at the
+	 * given location
+	 *
+	 * @param node
+	 * @param particle
+	 * @param x
+	 * @param y
+	 * @param threshold
+	 *            the threshold of the relative opening criterion, or zero
+	 * @param theta
+	 *            the theta of the geometric opening criterion
+	 * @param kernel
+	 */
+	private void gatherSources(int node, int particle, double x, double y,
+			double threshold, double theta, ForceKernel kernel) {
+
+		// Empty quadrants exert no force
+		if (totalMass[node] == 0)
+			return;
+
+		// If the node has no subquadrants, each particle in it acts on its own
+		int first = firstChild[node];
+		if (first == NONE) {
+			int start = rangeStart[node];
+			kernel.sum(bodyX, bodyY, start, start + rangeCount[node],
+					Particle.mass, x, y);
+			return;
+		}
+
+		// The vector pointing from the particle to the node's center of mass
+		double dx = comX[node] - x;
+		double dy = comY[node] - y;
+		double distSquared = dx * dx + dy * dy;
+
+		// If the node is sufficiently far away, treat the whole quadrant like
+		// a particle. Otherwise, keep delving deeper into the tree.
+		if (isFarEnough(node, distSquared, threshold, theta)
+				&& (threshold == 0 || !touches(node, x, x, y, y))) {
+			kernel.add(comX[node], comY[node], 0, totalMass[node], node);
+			if (Universe.quadrupole)
+				accumulateQuadrupoleForce(node, particle, -dx, -dy,
+						distSquared, Math.sqrt(distSquared));
+		} else {
+			for (int child = first; child < first + 4; child++)
+				gatherSources(child, particle, x, y, threshold, theta,
+						kernel);
+		}
+	}
+
+	/**
+	 * Fills the given array with the running total of what the force work
+	 * costs, over the particles in the tree's order or over the groups. Each
+	 * particle costs the number of sources that acted on it on the last step,
+	 * and at least one, so the entry at each index is the cost of every
+	 * particle or group before it.
+	 *
+	 * @param costs
+	 *            an array with room for one more entry than there are items
+	 * @param items
+	 *            the number of particles or groups
+	 * @param grouped
+	 *            true to total the cost of the groups
+	 */
+	public void sumCosts(long[] costs, int items, boolean grouped) {
+		int[] interactions = particles.interactions;
+		costs[0] = 0;
+		for (int item = 0; item < items; item++) {
+			int start = item, end = item + 1;
+			if (grouped) {
+				start = rangeStart[groups[item]];
+				end = start + rangeCount[groups[item]];
+			}
+			long cost = 0;
+			for (int k = start; k < end; k++)
+				cost += Math.max(interactions[order[k]], 1);
+			costs[item + 1] = costs[item] + cost;
+		}
+	}
+
+	/**
+	 * Returns the index of the group holding the particle at the given place
+	 * in the tree's order. The groups are found in the tree's order, so they
+	 * can be searched by where their particles start.
+	 *
+	 * @param position
+	 * @return the index of the group
+	 */
+	public int groupAt(int position) {
+		int from = 0, to = groupCount - 1;
+		while (from < to) {
+			int middle = (from + to + 1) >>> 1;
+			if (rangeStart[groups[middle]] <= position)
+				from = middle;
+			else
+				to = middle - 1;
+		}
+		return from;
+	}
+
+	/**
+	 * Splits the particles into groups that walk the tree together. A group is
+	 * the particles of the highest node holding no more than the given number
+	 * of particles, or of a leaf holding more.
+	 *
+	 * @param groupSize
+	 * @return the number of groups
+	 */
+	public int findGroups(int groupSize) {
+		if (groups.length < nodeCount)
+			groups = new int[nodeCount];
+		groupCount = 0;
+		findGroups(ROOT, groupSize);
+		return groupCount;
+	}
+
+	/**
+	 * Adds the groups below the given node
+	 *
+	 * @param node
+	 * @param groupSize
+	 */
+	private void findGroups(int node, int groupSize) {
+		if (rangeCount[node] == 0)
+			return;
+		if (rangeCount[node] <= groupSize || !isInternal(node)) {
+			groups[groupCount++] = node;
+		} else {
+			int first = firstChild[node];
+			for (int child = first; child < first + getChildCount(); child++)
+				findGroups(child, groupSize);
+		}
+	}
+
+	/**
+	 * Computes the net force on every particle of the group with the given
+	 * index, and stores it with the particle. The group walks the tree once,
+	 * opening every node that is too close to any part of the group, and the
+	 * nodes and particles it gathers are then applied to each of its
+	 * particles in turn.
+	 *
+	 * @param group
+	 */
+	public void computeGroupForces(int group) {
+		computeGroupForces(group, Universe.theta);
+	}
+
+	/**
+	 * Computes the net force on every particle of the group with the given
+	 * index as computeGroupForces does, but with the given theta in place of
+	 * Universe.theta outside the region of interest
+	 *
+	 * @param group
+	 * @param baseTheta
+	 */
+	public void computeGroupForces(int group, double baseTheta) {
+		int node = groups[group];
+		int start = rangeStart[node];
+		int end = start + rangeCount[node];
+
+		// The box around the group's particles, and the opening threshold of
+		// the particle that needs the most care. The whole group takes the
+		// tighter theta if any part of it is in the region of interest.
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		double threshold = Double.POSITIVE_INFINITY;
+		for (int k = start; k < end; k++) {
+			minX = Math.min(minX, bodyX[k]);
+			maxX = Math.max(maxX, bodyX[k]);
+			minY = Math.min(minY, bodyY[k]);
+			maxY = Math.max(maxY, bodyY[k]);
+			threshold = Math.min(threshold, openingThreshold(order[k]));
+		}
+		double theta = openingTheta(minX, maxX, minY, maxY, baseTheta);
+
+		ForceKernel kernel = kernels.get();
+		kernel.clear();
+		gatherGroupSources(ROOT, minX, maxX, minY, maxY, threshold, theta,
+				kernel);
+
+		for (int k = start; k < end; k++) {
+			int particle = order[k];
+			double x = bodyX[k];
+			double y = bodyY[k];
+			kernel.clearForce();
+			kernel.apply(x, y);
+			kernel.sumRanges(bodyX, bodyY, Particle.mass, x, y);
+			particles.xNetForce[particle] = kernel.xForce;
+			particles.yNetForce[particle] = kernel.yForce;
+			particles.interactions[particle] = kernel.interactions;
+			if (Universe.quadrupole) {
+				for (int j = 0; j < kernel.count; j++) {
+					int source = kernel.node[j];
+					double rx = x - comX[source];
+					double ry = y - comY[source];
+					double distSquared = rx * rx + ry * ry;
+					accumulateQuadrupoleForce(source, particle, rx, ry,
+							distSquared, Math.sqrt(distSquared));
 				}
 			}
+		}
+	}
+
+	/**
+	 * Recursively adds the sources of force within the passed node to the
+	 * kernel's batch, for a group of particles inside the given box. A node
+	 * is only treated as a single particle if it is far enough away from the
+	 * nearest point of the box, so it is far enough away from every particle
+	 * in the group.
+	 *
+	 * @param node
+	 * @param minX
+	 * @param maxX
+	 * @param minY
+	 * @param maxY
+	 * @param threshold
+	 *            the threshold of the relative opening criterion, or zero
+	 * @param theta
+	 *            the theta of the geometric opening criterion
+	 * @param kernel
+	 */
+	private void gatherGroupSources(int node, double minX, double maxX,
+			double minY, double maxY, double threshold, double theta,
+			ForceKernel kernel) {
+		if (totalMass[node] == 0)
+			return;
+		int first = firstChild[node];
+		if (first == NONE) {
+			kernel.addRange(rangeStart[node], rangeStart[node]
+					+ rangeCount[node]);
+			return;
+		}
+
+		double dx = Math.max(Math.max(minX - comX[node], comX[node] - maxX), 0);
+		double dy = Math.max(Math.max(minY - comY[node], comY[node] - maxY), 0);
+		double distSquared = dx * dx + dy * dy;
+		if (isFarEnough(node, distSquared, threshold, theta)
+				&& (threshold == 0 || !touches(node, minX, maxX, minY, maxY))) {
+			kernel.add(comX[node], comY[node], 0, totalMass[node], node);
 		} else {
-			// Update the center of mass
-			root.getQuad().updateCom(particle);
-
-			// Insert into the appropriate quadrant
-			if (root.getI().getQuad().contains(particle))
-				insertParticle(root.getI(), particle);
-			else if (root.getII().getQuad().contains(particle))
-				insertParticle(root.getII(), particle);
-			else if (root.getIII().getQuad().contains(particle))
-				insertParticle(root.getIII(), particle);
-			else if (root.getIV().getQuad().contains(particle))
-				insertParticle(root.getIV(), particle);
-			else {
-				// We should never have reached this octant...
-				System.out.print("\nSomething went wrong: ");
-				System.out.println("\t" + population()
-						+ " particles distributed through " + size()
-						+ " quadrants.");
+			for (int child = first; child < first + 4; child++)
+				gatherGroupSources(child, minX, maxX, minY, maxY, threshold,
+						theta, kernel);
+		}
+	}
+
+	/**
+	 * Returns the threshold of the relative opening criterion for the
+	 * particle with the passed index, or zero if the geometric criterion is
+	 * to be used. The threshold is the largest error in the force from a node
+	 * that the particle can put up with, worked out from the net force it
+	 * felt in the last step, in units that save the walk a division. A
+	 * particle that felt no force, such as one that has just been added, has
+	 * nothing to measure against, so it falls back on the geometric test.
+	 *
+	 * @param particle
+	 * @return the opening threshold, or zero
+	 */
+	protected double openingThreshold(int particle) {
+		if (!Universe.relativeOpening)
+			return 0;
+		double xForce = particles.xNetForce[particle];
+		double yForce = particles.yNetForce[particle];
+		double zForce = particles.zNetForce[particle];
+		double force = Math.sqrt(xForce * xForce + yForce * yForce + zForce
+				* zForce);
+		return Universe.forceTolerance * force / (Universe.G * Particle.mass);
+	}
+
+	/**
+	 * Returns the theta of the geometric opening criterion for particles
+	 * inside the given box: Universe.regionTheta if the box reaches into the
+	 * region of interest, and the given theta otherwise. Forces in the region
+	 * can then be worked out more carefully than those outside it, where
+	 * nobody is looking.
+	 *
+	 * @param minX
+	 * @param maxX
+	 * @param minY
+	 * @param maxY
+	 * @param baseTheta
+	 *            the theta outside the region, usually Universe.theta
+	 * @return the theta for the box
+	 */
+	protected double openingTheta(double minX, double maxX, double minY,
+			double maxY, double baseTheta) {
+		if (Universe.regionOfInterest && maxX >= Universe.regionMinX
+				&& minX <= Universe.regionMaxX && maxY >= Universe.regionMinY
+				&& minY <= Universe.regionMaxY)
+			return Universe.regionTheta;
+		return baseTheta;
+	}
+
+	/**
+	 * Returns true if the given node is far enough away to be treated as a
+	 * single particle, at the given squared distance from its center of mass.
+	 *
+	 * The geometric criterion asks that the node's width over the distance be
+	 * less than theta. The relative criterion asks that the error of leaving
+	 * out everything but the node's mass, about G M w^2 / d^4 for each unit of
+	 * mass it pulls on, be small next to the force the particle felt in the
+	 * last step. Particles that feel strong forces can then take nodes that
+	 * are relatively close, and those that feel little open more of them.
+	 * Comparing the squares saves a square root.
+	 *
+	 * @param node
+	 * @param distSquared
+	 * @param threshold
+	 *            the threshold of the relative opening criterion, or zero
+	 * @param theta
+	 *            the theta of the geometric opening criterion
+	 * @return true if the node is far enough away
+	 */
+	protected boolean isFarEnough(int node, double distSquared,
+			double threshold, double theta) {
+		double w = width[node];
+		if (threshold > 0)
+			return totalMass[node] * w * w < threshold * distSquared
+					* distSquared;
+		return w * w < theta * theta * distSquared;
+	}
+
+	/**
+	 * Returns true if the given box reaches into the node's square grown by a
+	 * tenth of its width on every side. The relative criterion knows nothing
+	 * about where the node's particles lie, so a node is always opened for
+	 * particles that are in it, or just beside it.
+	 *
+	 * @param node
+	 * @param minX
+	 * @param maxX
+	 * @param minY
+	 * @param maxY
+	 * @return true if the box reaches into the node
+	 */
+	private boolean touches(int node, double minX, double maxX, double minY,
+			double maxY) {
+		double margin = 0.1 * width[node];
+		double reach = width[node] + margin;
+		return maxX > cornerX[node] - margin && minX < cornerX[node] + reach
+				&& maxY > cornerY[node] - margin
+				&& minY < cornerY[node] + reach;
+	}
+
+	/**
+	 * Adds the short range part of the force the particle with the passed
+	 * index experiences to the force already stored with the particle, for
+	 * the TreePM solver. The walk only reaches the nodes within the split's
+	 * cutoff. The mesh treats the tree's square as one tile of an endless
+	 * pattern, so a particle near one edge also feels the particles near the
+	 * opposite edge, as though they were just across it.
+	 *
+	 * @param particle
+	 * @param split
+	 */
+	public void computeShortRangeForce(int particle, ForceSplit split) {
+		double cutoff = split.getCutoff();
+		double w = width[ROOT];
+		double xForce = 0, yForce = 0;
+		int interactions = 0;
+		double theta = openingTheta(particles.x[particle],
+				particles.x[particle], particles.y[particle],
+				particles.y[particle], Universe.theta);
+		ForceKernel kernel = kernels.get();
+
+		// The particle itself, and each of its images that comes within the
+		// cutoff of the square
+		for (int i = -1; i <= 1; i++) {
+			double x = particles.x[particle] + i * w;
+			double outsideX = Math.max(cornerX[ROOT] - x, x - cornerX[ROOT] - w);
+			if (outsideX > cutoff)
+				continue;
+			for (int j = -1; j <= 1; j++) {
+				double y = particles.y[particle] + j * w;
+				double outsideY = Math.max(cornerY[ROOT] - y, y - cornerY[ROOT]
+						- w);
+				if (outsideY > cutoff)
+					continue;
+
+				kernel.clear();
+				gatherShortRangeSources(ROOT, x, y, cutoff * cutoff, theta,
+						kernel);
+				kernel.applyShortRange(x, y, split);
+				kernel.sumRangesShortRange(bodyX, bodyY, Particle.mass, x, y,
+						split);
+				xForce += kernel.xForce;
+				yForce += kernel.yForce;
+				interactions += kernel.interactions;
 			}
 		}
+		particles.xNetForce[particle] += xForce;
+		particles.yNetForce[particle] += yForce;
+		particles.interactions[particle] = interactions;
 	}
 
 	/**
-	 * Paints the tree
-	 * 
-	 * @param pane
+	 * Recursively adds the sources of force within the passed node to the
+	 * kernel's batch, for a particle at the given location, leaving out
+	 * every node whose square lies farther away than the cutoff. Quadrupole
+	 * moments are not used, since the short range force is not the plain
+	 * force law they are worked out for.
+	 *
+	 * @param node
+	 * @param x
+	 * @param y
+	 * @param cutoffSquared
+	 * @param theta
+	 * @param kernel
 	 */
-	public void paint(Graphics pane) {
-		paintTree(root, pane);
+	private void gatherShortRangeSources(int node, double x, double y,
+			double cutoffSquared, double theta, ForceKernel kernel) {
+		if (totalMass[node] == 0)
+			return;
+
+		// The distance from the particle to the nearest point of the square
+		double w = width[node];
+		double nx = Math.max(Math.max(cornerX[node] - x, x - cornerX[node] - w),
+				0);
+		double ny = Math.max(Math.max(cornerY[node] - y, y - cornerY[node] - w),
+				0);
+		if (nx * nx + ny * ny > cutoffSquared)
+			return;
+
+		int first = firstChild[node];
+		if (first == NONE) {
+			kernel.addRange(rangeStart[node], rangeStart[node]
+					+ rangeCount[node]);
+			return;
+		}
+
+		double dx = comX[node] - x;
+		double dy = comY[node] - y;
+		double distSquared = dx * dx + dy * dy;
+		if (w * w < theta * theta * distSquared) {
+			kernel.add(comX[node], comY[node], 0, totalMass[node], node);
+		} else {
+			for (int child = first; child < first + 4; child++)
+				gatherShortRangeSources(child, x, y, cutoffSquared, theta,
+						kernel);
+		}
+	}
+
+	/**
+	 * Adds the quadrupole correction of the given node to the net force acting
+	 * on the particle with the passed index, which sits at the given offset
+	 * from the node's center of mass.
+	 *
+	 * This is the next term, after the monopole, of the Taylor expansion of
+	 * the softened force about the center of mass. With the softened law
+	 * written as a potential phi(r), it works out to
+	 * -1/2 (g2 (r tr(I) + 2 I r) + g3 (r.I.r) r), where I is the node's
+	 * second moment tensor, g2 = phi''/r^2 - phi'/r^3 and g3 = g2'/r.
+	 *
+	 * @param node
+	 * @param particle
+	 * @param rx
+	 * @param ry
+	 * @param distSquared
+	 * @param dist
+	 */
+	private void accumulateQuadrupoleForce(int node, int particle, double rx,
+			double ry, double distSquared, double dist) {
+		double softened = distSquared + Universe.epsilon;
+		double c = (Universe.G * Particle.mass)
+				/ (softened * softened * distSquared * dist);
+		double a = 3 * distSquared + Universe.epsilon;
+		double b = 3 - a * (2 / softened + 1.5 / distSquared);
+
+		double xx = quadXX[node], xy = quadXY[node], yy = quadYY[node];
+		double trace = xx + yy;
+		double irx = xx * rx + xy * ry;
+		double iry = xy * rx + yy * ry;
+		double rir = rx * irx + ry * iry;
+
+		particles.xNetForce[particle] += c
+				* (0.5 * a * (rx * trace + 2 * irx) + b * rir * rx);
+		particles.yNetForce[particle] += c
+				* (0.5 * a * (ry * trace + 2 * iry) + b * rir * ry);
+	}
+
+	/**
+	 * Adds the force between each particle of one leaf and each particle of
+	 * the other to both particles of the pair, so every pair is worked out
+	 * once. If the two leaves are the same, it covers every pair of particles
+	 * within the leaf.
+	 *
+	 * @param node
+	 * @param other
+	 */
+	protected void accumulateLeafPairForces(int node, int other) {
+		double m = Universe.G * Particle.mass * Particle.mass;
+		double[] xNetForce = particles.xNetForce;
+		double[] yNetForce = particles.yNetForce;
+		int start = rangeStart[node];
+		int end = start + rangeCount[node];
+		int otherEnd = rangeStart[other] + rangeCount[other];
+		for (int k = start; k < end; k++) {
+			double x = bodyX[k];
+			double y = bodyY[k];
+			double xForce = 0, yForce = 0;
+			int from = node == other ? k + 1 : rangeStart[other];
+			for (int l = from; l < otherEnd; l++) {
+				double dx = bodyX[l] - x;
+				double dy = bodyY[l] - y;
+				double distSquared = dx * dx + dy * dy;
+
+				// Particles in the same place exert no force on each other
+				if (distSquared > 0) {
+					double dist = Math.sqrt(distSquared);
+					double scale = m / ((distSquared + Universe.epsilon) * dist);
+					xForce += dx * scale;
+					yForce += dy * scale;
+					xNetForce[order[l]] -= dx * scale;
+					yNetForce[order[l]] -= dy * scale;
+				}
+			}
+			xNetForce[order[k]] += xForce;
+			yNetForce[order[k]] += yForce;
+		}
 	}
 
 	/**
-	 * Paints the tree
-	 * 
-	 * @param root
+	 * Paints the tree. The tree may be refilled by the physics thread while it
+	 * is painted, so only nodes that are known to exist are drawn.
+	 *
 	 * @param pane
 	 */
-	private void paintTree(TreeNode root, Graphics pane) {
-		if (root != null) {
-			root.getQuad().paintBounds(pane);
-			if (root.isInternal()) {
-				paintTree(root.getI(), pane);
-				paintTree(root.getII(), pane);
-				paintTree(root.getIII(), pane);
-				paintTree(root.getIV(), pane);
+	public void paint(Graphics pane) {
+		int[] firstChild = this.firstChild;
+		double[] cornerX = this.cornerX;
+		double[] cornerY = this.cornerY;
+		double[] width = this.width;
+		double[] totalMass = this.totalMass;
+		double[] comX = this.comX;
+		double[] comY = this.comY;
+		int count = Math.min(nodeCount, comY.length);
+		int radius = Particle.radius;
+
+		for (int node = 0; node < count; node++) {
+
+			// Draw the bounds of the quadrant
+			pane.drawRect((int) cornerX[node], (int) cornerY[node],
+					(int) width[node], (int) width[node]);
+
+			// If theres particles inside, draw them too
+			if (totalMass[node] != 0) {
+				if (firstChild[node] == NONE) {
+					// If theres a particle in the quadrant, fill the circle
+					pane.fillOval((int) (comX[node] - radius / 2),
+							(int) (comY[node] - radius / 2), radius, radius);
+				} else {
+					// If not, just indicate the center of mass
+					pane.setColor(Color.darkGray);
+					pane.drawOval((int) (comX[node] - radius / 2),
+							(int) (comY[node] - radius / 2), radius, radius);
+					pane.setColor(Color.white);
+				}
 			}
 		}
 	}
 
 	/**
-	 * Returns the root
-	 * 
-	 * @return the root
+	 * Returns the total mass within the given node
+	 *
+	 * @param node
+	 * @return the total mass within the node
+	 */
+	public double getTotalMass(int node) {
+		return totalMass[node];
+	}
+
+	/**
+	 * Returns the x value of the given node's center of mass
+	 *
+	 * @param node
+	 * @return the x value of the node's center of mass
 	 */
-	public TreeNode getRoot() {
-		return root;
+	public double getComX(int node) {
+		return comX[node];
+	}
+
+	/**
+	 * Returns the y value of the given node's center of mass
+	 *
+	 * @param node
+	 * @return the y value of the node's center of mass
+	 */
+	public double getComY(int node) {
+		return comY[node];
+	}
+
+	/**
+	 * Returns the x component of the speed of the given node's center of mass
+	 *
+	 * @param node
+	 * @return the x component of the speed of the node's center of mass
+	 */
+	public double getComXSpeed(int node) {
+		return comXSpeed[node];
+	}
+
+	/**
+	 * Returns the y component of the speed of the given node's center of mass
+	 *
+	 * @param node
+	 * @return the y component of the speed of the node's center of mass
+	 */
+	public double getComYSpeed(int node) {
+		return comYSpeed[node];
+	}
+
+	/**
+	 * Returns the width of the given node's quadrant
+	 *
+	 * @param node
+	 * @return the width of the node's quadrant
+	 */
+	public double getWidth(int node) {
+		return width[node];
+	}
+
+	/**
+	 * The BuildTask class covers a range of the chunks, buckets or subtrees of
+	 * one step of a build on more than one thread, and keeps splitting itself
+	 * in half until it holds a single one
+	 */
+	private class BuildTask extends RecursiveAction {
+
+		/**
+		 * The version of the class, for serialization
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The step of the build
+		 */
+		private int step;
+
+		/**
+		 * The first item of the task's range
+		 */
+		private int start;
+
+		/**
+		 * One past the last item of the task's range
+		 */
+		private int end;
+
+		/**
+		 * The constructor creates a task covering the given items of the
+		 * given step
+		 *
+		 * @param step
+		 * @param start
+		 * @param end
+		 */
+		public BuildTask(int step, int start, int end) {
+			this.step = step;
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 * Runs the step for the task's items, splitting them in two if there
+		 * is more than one
+		 */
+		protected void compute() {
+			if (end - start <= 1) {
+				if (start < end)
+					buildStep(step, start);
+			} else {
+				int middle = (start + end) >>> 1;
+				invokeAll(new BuildTask(step, start, middle), new BuildTask(
+						step, middle, end));
+			}
+		}
 	}
 }
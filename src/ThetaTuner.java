@@ -0,0 +1,242 @@
+import java.util.Random;
+
+/**
+ * The ThetaTuner class picks the largest theta that keeps the error of the
+ * tree's forces within a budget. It works out the exact forces on a small
+ * random sample of particles, walks the tree for the same particles at each
+ * theta it might pick, and keeps the largest theta whose error over the
+ * sample is small enough. Since only the sample is worked on, tuning costs
+ * a small fraction of a step, and it only has to be done every so often.
+ * The walk is the one the steps use: if particles walk the tree in groups,
+ * each sampled particle's whole group walks it, and particles in the region
+ * of interest keep Universe.regionTheta. Universe.theta is only changed
+ * once the tuner has picked its value.
+ *
+ * The error is the root mean square of the difference between the tree's
+ * force and the exact force over the sample, as a fraction of the root mean
+ * square of the exact force.
+ *
+ * @author Christopher Glasz
+ */
+public class ThetaTuner {
+
+	/**
+	 * The smallest theta the tuner will pick
+	 */
+	public static final double MIN_THETA = 0.1;
+
+	/**
+	 * The largest theta the tuner will pick
+	 */
+	public static final double MAX_THETA = 1.5;
+
+	/**
+	 * The steps between the thetas the tuner tries
+	 */
+	public static final double THETA_STEP = 0.05;
+
+	/**
+	 * The tree the forces are computed from
+	 */
+	private Quadtree tree;
+
+	/**
+	 * The particles the forces are computed for
+	 */
+	private ParticleStore particles;
+
+	/**
+	 * The source of the random samples
+	 */
+	private Random random;
+
+	/**
+	 * The error of the theta picked the last time the tuner ran
+	 */
+	private double error;
+
+	/**
+	 * The forces every particle had before the tuner ran, so that the walks
+	 * of the sampled particles can be undone
+	 */
+	private double[] savedX, savedY, savedZ;
+
+	/**
+	 * The interaction counts every particle had before the tuner ran
+	 */
+	private int[] savedInteractions;
+
+	/**
+	 * Default constructor should never be used
+	 */
+	public ThetaTuner() {
+	}
+
+	/**
+	 * Constructor sets up the tuner for the given tree and its particles
+	 *
+	 * @param tree
+	 * @param particles
+	 */
+	public ThetaTuner(Quadtree tree, ParticleStore particles) {
+		this.tree = tree;
+		this.particles = particles;
+		random = new Random();
+	}
+
+	/**
+	 * Returns the sampled error of the theta picked the last time the tuner
+	 * ran
+	 *
+	 * @return the sampled error
+	 */
+	public double getError() {
+		return error;
+	}
+
+	/**
+	 * Sets Universe.theta to the largest theta whose error over a random
+	 * sample of the given size is no more than the given target. The tree
+	 * must hold the particles, and if they walk the tree in groups, the
+	 * groups must have been found. The forces and interaction counts stored
+	 * with the particles are left as they were.
+	 *
+	 * @param sampleSize
+	 * @param target
+	 */
+	public void tune(int sampleSize, double target) {
+		int n = particles.size();
+		int samples = Math.min(sampleSize, n);
+		if (samples == 0)
+			return;
+		save(n);
+
+		// The sample, the group each sampled particle walks the tree with,
+		// and their exact forces
+		boolean grouped = Universe.groupSize > 1;
+		int[] sample = new int[samples];
+		int[] group = new int[samples];
+		double[] exact = new double[3 * samples];
+		double exactSquared = 0;
+		for (int s = 0; s < samples; s++) {
+			int i = random.nextInt(n);
+			sample[s] = i;
+			exactForce(i, exact, 3 * s);
+			exactSquared += exact[3 * s] * exact[3 * s] + exact[3 * s + 1]
+					* exact[3 * s + 1] + exact[3 * s + 2] * exact[3 * s + 2];
+		}
+		if (grouped)
+			findGroups(sample, group);
+
+		// Try every theta from the smallest up, and keep the largest that
+		// stays within the target. The smallest is kept if none do.
+		double best = MIN_THETA;
+		double bestError = Double.POSITIVE_INFINITY;
+		double steps = Math.round((MAX_THETA - MIN_THETA) / THETA_STEP);
+		for (int k = 0; k <= steps; k++) {
+			double theta = MIN_THETA + k * THETA_STEP;
+			double errorSquared = 0;
+			for (int s = 0; s < samples; s++) {
+				int i = sample[s];
+				if (grouped)
+					tree.computeGroupForces(group[s], theta);
+				else
+					tree.computeForce(i, theta);
+				double dx = particles.xNetForce[i] - exact[3 * s];
+				double dy = particles.yNetForce[i] - exact[3 * s + 1];
+				double dz = particles.zNetForce[i] - exact[3 * s + 2];
+				errorSquared += dx * dx + dy * dy + dz * dz;
+			}
+			double sampled = exactSquared > 0 ? Math.sqrt(errorSquared
+					/ exactSquared) : 0;
+			if (sampled <= target || k == 0) {
+				best = theta;
+				bestError = sampled;
+			}
+		}
+		Universe.theta = best;
+		error = bestError;
+		restore(n);
+	}
+
+	/**
+	 * Finds the group each sampled particle walks the tree with
+	 *
+	 * @param sample
+	 * @param group
+	 *            filled with the index of each sampled particle's group
+	 */
+	private void findGroups(int[] sample, int[] group) {
+		// Where each particle sits in the tree's order
+		int n = particles.size();
+		int[] position = new int[n];
+		for (int k = 0; k < n; k++)
+			position[tree.order[k]] = k;
+		for (int s = 0; s < sample.length; s++)
+			group[s] = tree.groupAt(position[sample[s]]);
+	}
+
+	/**
+	 * Keeps a copy of the forces and interaction counts of the given number
+	 * of particles. A group's walk writes every particle in the group, so
+	 * all of them are kept rather than just the sample.
+	 *
+	 * @param n
+	 */
+	private void save(int n) {
+		if (savedX == null || savedX.length < n) {
+			savedX = new double[n];
+			savedY = new double[n];
+			savedZ = new double[n];
+			savedInteractions = new int[n];
+		}
+		System.arraycopy(particles.xNetForce, 0, savedX, 0, n);
+		System.arraycopy(particles.yNetForce, 0, savedY, 0, n);
+		System.arraycopy(particles.zNetForce, 0, savedZ, 0, n);
+		System.arraycopy(particles.interactions, 0, savedInteractions, 0, n);
+	}
+
+	/**
+	 * Puts back the forces and interaction counts kept by save
+	 *
+	 * @param n
+	 */
+	private void restore(int n) {
+		System.arraycopy(savedX, 0, particles.xNetForce, 0, n);
+		System.arraycopy(savedY, 0, particles.yNetForce, 0, n);
+		System.arraycopy(savedZ, 0, particles.zNetForce, 0, n);
+		System.arraycopy(savedInteractions, 0, particles.interactions, 0, n);
+	}
+
+	/**
+	 * Sums up the exact force on the particle with the given index from every
+	 * other particle, and stores it in the given array from the given
+	 * position on
+	 *
+	 * @param particle
+	 * @param force
+	 * @param position
+	 */
+	private void exactForce(int particle, double[] force, int position) {
+		double[] x = particles.x, y = particles.y, z = particles.z;
+		double xi = x[particle], yi = y[particle], zi = z[particle];
+		double fx = 0, fy = 0, fz = 0;
+		for (int j = 0; j < particles.size(); j++) {
+			double dx = x[j] - xi;
+			double dy = y[j] - yi;
+			double dz = z[j] - zi;
+			double distSquared = dx * dx + dy * dy + dz * dz;
+			if (distSquared > 0) {
+				double dist = Math.sqrt(distSquared);
+				double scale = 1 / ((distSquared + Universe.epsilon) * dist);
+				fx += dx * scale;
+				fy += dy * scale;
+				fz += dz * scale;
+			}
+		}
+		double m = Universe.G * Particle.mass * Particle.mass;
+		force[position] = fx * m;
+		force[position + 1] = fy * m;
+		force[position + 2] = fz * m;
+	}
+}
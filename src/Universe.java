@@ -1,5 +1,6 @@
 import java.applet.Applet;
 import java.awt.Color;
+import java.awt.EventQueue;
 import java.awt.Graphics;
 import java.awt.Button;
 import java.awt.Label;
@@ -36,6 +37,11 @@ public class Universe implements ThreadListener {
 	 */
 	private ParticleSystem myParticleSystem;
 
+	/**
+	 * The governor that holds the step rate, made when it is first needed
+	 */
+	private FrameGovernor governor;
+
 	/**
 	 * Buttons which will control the Applet
 	 */
@@ -50,6 +56,11 @@ public class Universe implements ThreadListener {
 	private Label thetaLabel, particleCountLabel, particleMassLabel,
 			softenerLabel, radiusLabel;
 
+	/**
+	 * The theta last shown on the theta label by the physics thread
+	 */
+	private double shownTheta;
+
 	/**
 	 * Constant to hold the window width
 	 */
@@ -70,6 +81,11 @@ public class Universe implements ThreadListener {
 	 */
 	private int particleCount;
 
+	/**
+	 * The most particles that can be added to the system at once
+	 */
+	public static final int MAX_PARTICLE_COUNT = 1000000;
+
 	/**
 	 * The number of times a full iteration of the physics calculations has been
 	 * completed since the last time the user hit the run button
@@ -98,6 +114,252 @@ public class Universe implements ThreadListener {
 	 */
 	public static double theta;
 
+	/**
+	 * Boolean to determine whether forces inside the region of interest are
+	 * worked out with regionTheta rather than theta. The tree walk can then
+	 * spend its time where the simulation is being watched or measured, and
+	 * take a looser theta everywhere else. The fast multipole solvers use
+	 * theta throughout.
+	 */
+	public static boolean regionOfInterest;
+
+	/**
+	 * The theta used for particles inside the region of interest
+	 */
+	public static double regionTheta;
+
+	/**
+	 * The lowest and highest x, y and z values of the region of interest
+	 */
+	public static double regionMinX, regionMaxX, regionMinY, regionMaxY,
+			regionMinZ, regionMaxZ;
+
+	/**
+	 * Boolean to determine whether the frame governor trades accuracy for
+	 * speed to hold the simulation at targetRate steps per second. Turning it
+	 * off puts back the settings it started from.
+	 */
+	public static boolean governed;
+
+	/**
+	 * The number of steps per second the frame governor aims for
+	 */
+	public static double targetRate;
+
+	/**
+	 * The number of steps between each time the system is painted
+	 */
+	public static int renderInterval;
+
+	/**
+	 * Boolean to determine whether theta is tuned automatically. Every so
+	 * often, the forces on a small sample of particles are worked out exactly
+	 * and compared with the tree's, and theta is set to the largest value
+	 * that keeps the error within thetaTarget.
+	 */
+	public static boolean autoTheta;
+
+	/**
+	 * The largest error in the forces that the theta tuner allows, as the
+	 * root mean square of the error over the sample, over that of the force
+	 */
+	public static double thetaTarget;
+
+	/**
+	 * The number of steps between each tuning of theta
+	 */
+	public static int tuneInterval;
+
+	/**
+	 * The number of particles whose forces are sampled to tune theta
+	 */
+	public static int tuneSample;
+
+	/**
+	 * Boolean to determine whether the tree walk decides which nodes to open
+	 * by how much error each would add to a particle's force, measured
+	 * against the force the particle felt in the last step, rather than by
+	 * theta. Nodes in dense regions, where the forces are strong, can then be
+	 * taken whole much closer, and far fewer are opened for the same
+	 * accuracy.
+	 */
+	public static boolean relativeOpening;
+
+	/**
+	 * The largest error in a particle's force that a single node may add
+	 * under the relative opening criterion, as a fraction of the particle's
+	 * last net force. Without quadrupoles, 0.05 is about as accurate as a
+	 * theta of 0.5, and no slower. With quadrupoles each node is a better
+	 * stand-in, and around 0.2 is as accurate as a theta of 0.8.
+	 */
+	public static double forceTolerance;
+
+	/**
+	 * Boolean to determine whether nodes of the tree carry quadrupole moments
+	 * as well as their mass and center of mass. The extra term makes each
+	 * summarized node a much better stand-in for the particles in it, so the
+	 * same accuracy can be had with a higher theta: with quadrupoles, a theta
+	 * of 0.8 is more accurate than a theta of 0.5 without them, and faster.
+	 */
+	public static boolean quadrupole;
+
+	/**
+	 * The number of threads used to compute the forces acting on the
+	 * particles. With one thread, the forces are computed on the physics
+	 * thread itself.
+	 */
+	public static int threads;
+
+	/**
+	 * The number of particles each thread works through at a time when
+	 * computing forces. Smaller chunks balance the work better, larger ones
+	 * spend less time handing it out.
+	 */
+	public static int chunkSize;
+
+	/**
+	 * Boolean to determine whether to build the tree by sorting the particles
+	 * along a Z-order curve, rather than inserting them one at a time
+	 */
+	public static boolean sortedBuild;
+
+	/**
+	 * The solver new systems start out with, one of ParticleSystem's:
+	 *
+	 * BARNES_HUT walks the tree once for each particle (or group).
+	 * FAST_MULTIPOLE sums up whole nodes against each other.
+	 * DIRECT_SUM sums up the force between every pair of particles.
+	 * PARTICLE_MESH works out the field of a periodic box on a mesh.
+	 * TREE_PM adds the tree's short range forces to a mesh's long range ones.
+	 *
+	 * The fast multipole solvers sum up whole leaves against each other. In
+	 * three dimensions, any octant with no more than multipoleLeafSize
+	 * particles counts as a leaf, and the solver runs on the pool of threads,
+	 * taking about half as long per step as BARNES_HUT on 100,000 particles
+	 * with far more accurate forces. In two dimensions it runs on a single
+	 * thread and does best with a larger leafSize, around 64.
+	 */
+	public static int solver;
+
+	/**
+	 * Systems with no more than this many particles have their forces summed
+	 * up directly, whichever solver is chosen, since building and walking a
+	 * tree costs more than it saves. It is kept below the starting number of
+	 * particles, so that a new system uses the chosen solver and its
+	 * settings.
+	 */
+	public static int directSumLimit;
+
+	/**
+	 * The highest power kept in the expansions of the fast multipole solvers.
+	 * Higher orders are more accurate, but every interaction between two
+	 * octants costs more.
+	 */
+	public static int multipoleOrder;
+
+	/**
+	 * The most particles an octant may hold for the three dimensional fast
+	 * multipole solver to treat it as a leaf and sum up its particles
+	 * directly. Larger leaves make for fewer, cheaper translations between
+	 * octants, but more pairs of particles.
+	 */
+	public static int multipoleLeafSize;
+
+	/**
+	 * The number of cells along each side of the particle-mesh solver's mesh,
+	 * rounded up to a power of two. A three dimensional mesh has this many
+	 * cells cubed, so it should be kept smaller there.
+	 */
+	public static int meshSize;
+
+	/**
+	 * The scale of the split between the long range forces of the mesh and
+	 * the short range forces of the tree in the TreePM solver, in cells of the
+	 * mesh. The tree's walk reaches out to 4.5 times this scale, so larger
+	 * scales hand more of the work to the tree.
+	 */
+	public static double splitScale;
+
+	/**
+	 * Boolean to determine whether the system's box has periodic boundaries.
+	 * If it does, particles that leave the box come back in on the other side
+	 * instead of being removed. This is all the flag changes: the
+	 * particle-mesh and TreePM solvers always feel the images of the
+	 * particles in the boxes around the system's box, since the mesh's
+	 * transform is periodic and the TreePM walk also looks in the boxes next
+	 * door. The other solvers never see any images.
+	 */
+	public static boolean periodic;
+
+	/**
+	 * Boolean to determine whether the tree's root is fit around the
+	 * particles every time the tree is built, rather than covering the whole
+	 * system's box. A periodic box and the mesh solvers always keep the
+	 * system's box.
+	 */
+	public static boolean adaptiveBounds;
+
+	/**
+	 * The room left around the particles on each side of a fitted root, as a
+	 * fraction of the width they are spread over
+	 */
+	public static double boundsPadding;
+
+	/**
+	 * The rule for removing particles that leave the system's box, either
+	 * ParticleSystem.ESCAPE_BOX, ESCAPE_NONE or ESCAPE_UNBOUND. Particles
+	 * are only kept outside the box if the tree's root is fit around them.
+	 */
+	public static int escapeRule;
+
+	/**
+	 * The most particles that walk the tree together as a group. Particles
+	 * that are close together open almost the same nodes, so a group walks
+	 * the tree once and shares what it finds. A size of 1 has every particle
+	 * walk the tree on its own.
+	 */
+	public static int groupSize;
+
+	/**
+	 * Boolean to determine whether the tree is refit to where the particles
+	 * have moved between steps, rather than built from scratch every step.
+	 * The tree is still built again once it has drifted too far from the
+	 * particles, or when particles are added or removed.
+	 */
+	public static boolean refitTree;
+
+	/**
+	 * The fraction of the particles that may move to another leaf of the tree
+	 * before it is built from scratch again
+	 */
+	public static double refitLimit;
+
+	/**
+	 * Boolean to determine whether the force work is split between threads
+	 * into pieces of equal cost, judged by how many sources acted on each
+	 * particle on the last step, rather than equal numbers of particles
+	 */
+	public static boolean balanceLoad;
+
+	/**
+	 * The number of steps between putting the particles in the tree's order,
+	 * or zero to leave them in the order they were added
+	 */
+	public static int sortInterval;
+
+	/**
+	 * The number of particles a leaf of the tree can hold before it is split.
+	 * The particles in a leaf act on each other directly, so larger leaves
+	 * make for shallower trees with fewer nodes to visit.
+	 */
+	public static int leafSize;
+
+	/**
+	 * The deepest level of the tree. Leaves at this depth are never split, no
+	 * matter how many particles they hold.
+	 */
+	public static int maxDepth;
+
 	/**
 	 * Boolean to determine whether to display the quadtree
 	 */
@@ -156,8 +418,82 @@ public class Universe implements ThreadListener {
 		// A good starting value for our softening parameter
 		epsilon = 2e4;
 		
-		// A theta that balances between fast and accurate
+		// A theta that balances between fast and accurate. Quadrupoles let a
+		// higher theta be just as accurate, once they are asked for.
+		quadrupole = false;
 		theta = 0.5;
+
+		// The region of interest is the window, once it is asked for
+		regionOfInterest = false;
+		regionTheta = 0.4;
+		regionMinX = 0;
+		regionMaxX = WINDOW_WIDTH;
+		regionMinY = 0;
+		regionMaxY = WINDOW_HEIGHT;
+		regionMinZ = 0;
+		regionMaxZ = WINDOW_HEIGHT;
+
+		// Paint every step, and leave the settings alone until the governor
+		// is asked for
+		governed = false;
+		targetRate = 30;
+		renderInterval = 1;
+
+		// Theta is left alone until tuning is asked for
+		autoTheta = false;
+		thetaTarget = 0.001;
+		tuneInterval = 50;
+		tuneSample = 64;
+
+		// Theta until the relative criterion is asked for, which then
+		// matches the accuracy of the default theta
+		relativeOpening = false;
+		forceTolerance = 0.05;
+
+		// Use every processor we have
+		threads = Runtime.getRuntime().availableProcessors();
+
+		// Enough particles per chunk to make splitting worthwhile
+		chunkSize = 256;
+
+		// Sorting the particles first builds the tree fastest
+		sortedBuild = true;
+
+		// Barnes-Hut until the fast multipole method is asked for
+		solver = ParticleSystem.BARNES_HUT;
+		multipoleOrder = 4;
+		multipoleLeafSize = 64;
+		directSumLimit = 500;
+
+		// A mesh fine enough for the window, in a box that lets particles go
+		meshSize = 128;
+		splitScale = 1.25;
+		periodic = false;
+
+		// The tree covers the system's box until fitting it is asked for, and
+		// particles that leave the box are let go
+		adaptiveBounds = false;
+		boundsPadding = 0.01;
+		escapeRule = ParticleSystem.ESCAPE_BOX;
+
+		// A handful of particles per leaf, and no deeper than a cell about a
+		// hundredth of a pixel wide
+		leafSize = 8;
+		maxDepth = 20;
+
+		// Build the tree from scratch every step until refitting is asked for
+		refitTree = false;
+		refitLimit = 0.25;
+
+		// Leave the particles in the order they were added until sorting is
+		// asked for
+		sortInterval = 0;
+
+		// Split the force work by what it costs
+		balanceLoad = true;
+
+		// Every particle walks the tree on its own until groups are asked for
+		groupSize = 1;
 		
 		// We don't want to show the tree yet
 		showTree = false;
@@ -256,6 +592,7 @@ public class Universe implements ThreadListener {
 		populateRule.setFont(Simulation.myFont);
 		
 		thetaLabel = new Label("Theta\n" + theta);
+		shownTheta = theta;
 		particleCountLabel = new Label("Particles to Add\n" + particleCount);
 		particleMassLabel = new Label(String.format("Particle Mass\n %.1e",
 				Particle.mass));
@@ -334,6 +671,9 @@ public class Universe implements ThreadListener {
 				
 				// We can't change dimensions while particles exist
 				simMode.setEnabled(false);
+
+				// The particles are made first, then added all at once
+				Particle[] newParticles = new Particle[particleCount];
 				
 				if (dynamicCircle) {
 					// Center
@@ -367,14 +707,13 @@ public class Universe implements ThreadListener {
 							y = WINDOW_HEIGHT / 2;
 							z = WINDOW_HEIGHT / 2;
 							particle.giveCircularOrbit(x, y, r, p);
-							((ParticleSystem3D) myParticleSystem).add(particle);
 						} else {
 							particle = new Particle(x, y);
 							x = WINDOW_WIDTH / 2;
 							y = WINDOW_HEIGHT / 2;
 							particle.giveCircularOrbit(x, y, r, p);
-							myParticleSystem.add(particle);
 						}
+						newParticles[i] = particle;
 
 					}
 				} else {
@@ -385,15 +724,16 @@ public class Universe implements ThreadListener {
 									* Math.random(), WINDOW_HEIGHT
 									* Math.random(), WINDOW_HEIGHT
 									* Math.random());
-							((ParticleSystem3D) myParticleSystem).add(particle);
 						} else {
 							particle = new Particle(WINDOW_WIDTH
 									* Math.random(), WINDOW_HEIGHT
 									* Math.random());
-							myParticleSystem.add(particle);
 						}
+						newParticles[i] = particle;
 					}
 				}
+				myParticleSystem.add(newParticles);
+
 				// We have particles
 				populated = true;
 				
@@ -430,8 +770,8 @@ public class Universe implements ThreadListener {
 		countUp.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 				particleCount *= 2;
-				if (particleCount > 200000)
-					particleCount = 200000;
+				if (particleCount > MAX_PARTICLE_COUNT)
+					particleCount = MAX_PARTICLE_COUNT;
 				particleCountLabel
 						.setText("Particles to Add\n" + particleCount);
 			}
@@ -452,8 +792,8 @@ public class Universe implements ThreadListener {
 		countUp2.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 				particleCount *= 10;
-				if (particleCount > 200000)
-					particleCount = 200000;
+				if (particleCount > MAX_PARTICLE_COUNT)
+					particleCount = MAX_PARTICLE_COUNT;
 				particleCountLabel
 						.setText("Particles to Add\n" + particleCount);
 			}
@@ -625,9 +965,41 @@ public class Universe implements ThreadListener {
 				long time = (b - a);
 				calcsPS = (1e9 / (double) time);
 				timesteps++;
+
+				// Let the governor adjust the settings to hold the step rate
+				if (governed) {
+					if (governor == null)
+						governor = new FrameGovernor();
+					governor.update(myParticleSystem);
+				} else if (governor != null) {
+
+					// Turning the governor off undoes what it changed
+					governor.restore();
+					governor = null;
+					showTheta();
+				}
+				if ((autoTheta || governed) && theta != shownTheta)
+					showTheta();
+				if (timesteps % Math.max(renderInterval, 1) != 0)
+					return;
 			}
 			myApplet.repaint();
 		}
 
 	}
+
+	/**
+	 * Shows the current theta on the theta label. The physics thread calls
+	 * this whenever the tuner or the governor has changed theta, so the label
+	 * is updated on the event thread, like the buttons do.
+	 */
+	private void showTheta() {
+		shownTheta = theta;
+		final String text = String.format("Theta\n%.2f", theta);
+		EventQueue.invokeLater(new Runnable() {
+			public void run() {
+				thetaLabel.setText(text);
+			}
+		});
+	}
 }
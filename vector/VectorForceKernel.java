@@ -0,0 +1,257 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The VectorForceKernel class is a ForceKernel that works out the forces of
+ * several sources at once, one in each lane of the processor's widest vector
+ * of doubles. The sources that are left over once the lanes can no longer be
+ * filled are summed up one at a time, as in the ForceKernel class.
+ *
+ * The class uses the Vector API, which is still an incubator module, so it
+ * is kept out of the main source folder. It is compiled on its own against
+ * the rest of the program:
+ *
+ * javac --add-modules jdk.incubator.vector -cp bin -d bin vector/*.java
+ *
+ * and the program is then run with --add-modules jdk.incubator.vector.
+ * ForceKernel.create loads it by name, and falls back to the scalar kernel
+ * if it is missing.
+ *
+ * The short range forces of the TreePM solver go through the split's scalar
+ * function for every source, so they are left to the ForceKernel class.
+ *
+ * @author Christopher Glasz
+ */
+public class VectorForceKernel extends ForceKernel {
+
+	/**
+	 * The widest vector of doubles the processor has
+	 */
+	private static final VectorSpecies<Double> SPECIES =
+			DoubleVector.SPECIES_PREFERRED;
+
+	/**
+	 * The constructor creates a kernel with an empty batch. There is nothing
+	 * to gain without at least two lanes, so it refuses to be made then.
+	 */
+	public VectorForceKernel() {
+		super();
+		if (SPECIES.length() < 2)
+			throw new UnsupportedOperationException("No vector lanes");
+	}
+
+	/**
+	 * Adds the force that the given run of particles exerts on a particle on
+	 * the plane, without counting the run as more interactions. A source in
+	 * the same place as the particle is the particle itself, and its lane is
+	 * masked out.
+	 *
+	 * @param sx
+	 * @param sy
+	 * @param start
+	 * @param end
+	 * @param sourceMass
+	 * @param x
+	 * @param y
+	 */
+	protected void sumRun(double[] sx, double[] sy, int start, int end,
+			double sourceMass, double x, double y) {
+		if (end - start < SPECIES.length()) {
+			super.sumRun(sx, sy, start, end, sourceMass, x, y);
+			return;
+		}
+		double epsilon = Universe.epsilon;
+		DoubleVector px = DoubleVector.broadcast(SPECIES, x);
+		DoubleVector py = DoubleVector.broadcast(SPECIES, y);
+		DoubleVector zero = DoubleVector.zero(SPECIES);
+		DoubleVector one = DoubleVector.broadcast(SPECIES, 1);
+		DoubleVector fx = zero, fy = zero;
+		int lanes = SPECIES.length();
+		int upper = start + SPECIES.loopBound(end - start);
+		int j = start;
+		for (; j < upper; j += lanes) {
+			DoubleVector dx = DoubleVector.fromArray(SPECIES, sx, j).sub(px);
+			DoubleVector dy = DoubleVector.fromArray(SPECIES, sy, j).sub(py);
+			DoubleVector distSquared = dx.mul(dx).add(dy.mul(dy));
+			VectorMask<Double> apart = distSquared.compare(VectorOperators.GT,
+					0);
+			DoubleVector scale = zero.blend(one.div(distSquared.add(epsilon)
+					.mul(distSquared.sqrt())), apart);
+			fx = dx.fma(scale, fx);
+			fy = dy.fma(scale, fy);
+		}
+		double xSum = fx.reduceLanes(VectorOperators.ADD);
+		double ySum = fy.reduceLanes(VectorOperators.ADD);
+		for (; j < end; j++) {
+			double dx = sx[j] - x;
+			double dy = sy[j] - y;
+			double distSquared = dx * dx + dy * dy;
+			double dist = Math.sqrt(distSquared);
+			double scale = distSquared > 0 ? 1 / ((distSquared + epsilon)
+					* dist) : 0;
+			xSum += dx * scale;
+			ySum += dy * scale;
+		}
+		double m = Universe.G * Particle.mass * sourceMass;
+		xForce += xSum * m;
+		yForce += ySum * m;
+	}
+
+	/**
+	 * Adds the force that the given run of particles exerts on a particle,
+	 * without counting the run as more interactions
+	 *
+	 * @param sx
+	 * @param sy
+	 * @param sz
+	 * @param start
+	 * @param end
+	 * @param sourceMass
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	protected void sumRun(double[] sx, double[] sy, double[] sz, int start,
+			int end, double sourceMass, double x, double y, double z) {
+		if (end - start < SPECIES.length()) {
+			super.sumRun(sx, sy, sz, start, end, sourceMass, x, y, z);
+			return;
+		}
+		double epsilon = Universe.epsilon;
+		DoubleVector px = DoubleVector.broadcast(SPECIES, x);
+		DoubleVector py = DoubleVector.broadcast(SPECIES, y);
+		DoubleVector pz = DoubleVector.broadcast(SPECIES, z);
+		DoubleVector zero = DoubleVector.zero(SPECIES);
+		DoubleVector one = DoubleVector.broadcast(SPECIES, 1);
+		DoubleVector fx = zero, fy = zero, fz = zero;
+		int lanes = SPECIES.length();
+		int upper = start + SPECIES.loopBound(end - start);
+		int j = start;
+		for (; j < upper; j += lanes) {
+			DoubleVector dx = DoubleVector.fromArray(SPECIES, sx, j).sub(px);
+			DoubleVector dy = DoubleVector.fromArray(SPECIES, sy, j).sub(py);
+			DoubleVector dz = DoubleVector.fromArray(SPECIES, sz, j).sub(pz);
+			DoubleVector distSquared = dx.mul(dx).add(dy.mul(dy))
+					.add(dz.mul(dz));
+			VectorMask<Double> apart = distSquared.compare(VectorOperators.GT,
+					0);
+			DoubleVector scale = zero.blend(one.div(distSquared.add(epsilon)
+					.mul(distSquared.sqrt())), apart);
+			fx = dx.fma(scale, fx);
+			fy = dy.fma(scale, fy);
+			fz = dz.fma(scale, fz);
+		}
+		double xSum = fx.reduceLanes(VectorOperators.ADD);
+		double ySum = fy.reduceLanes(VectorOperators.ADD);
+		double zSum = fz.reduceLanes(VectorOperators.ADD);
+		for (; j < end; j++) {
+			double dx = sx[j] - x;
+			double dy = sy[j] - y;
+			double dz = sz[j] - z;
+			double distSquared = dx * dx + dy * dy + dz * dz;
+			double dist = Math.sqrt(distSquared);
+			double scale = distSquared > 0 ? 1 / ((distSquared + epsilon)
+					* dist) : 0;
+			xSum += dx * scale;
+			ySum += dy * scale;
+			zSum += dz * scale;
+		}
+		double m = Universe.G * Particle.mass * sourceMass;
+		xForce += xSum * m;
+		yForce += ySum * m;
+		zForce += zSum * m;
+	}
+
+	/**
+	 * Adds the force the batch exerts on a particle at the given location on
+	 * the plane to the force worked out so far
+	 *
+	 * @param x
+	 * @param y
+	 */
+	public void apply(double x, double y) {
+		double[] sx = this.x, sy = this.y, sm = this.mass;
+		double epsilon = Universe.epsilon;
+		DoubleVector px = DoubleVector.broadcast(SPECIES, x);
+		DoubleVector py = DoubleVector.broadcast(SPECIES, y);
+		DoubleVector fx = DoubleVector.zero(SPECIES), fy = fx;
+		int lanes = SPECIES.length();
+		int upper = SPECIES.loopBound(count);
+		int j = 0;
+		for (; j < upper; j += lanes) {
+			DoubleVector dx = DoubleVector.fromArray(SPECIES, sx, j).sub(px);
+			DoubleVector dy = DoubleVector.fromArray(SPECIES, sy, j).sub(py);
+			DoubleVector distSquared = dx.mul(dx).add(dy.mul(dy));
+			DoubleVector scale = DoubleVector.fromArray(SPECIES, sm, j).div(
+					distSquared.add(epsilon).mul(distSquared.sqrt()));
+			fx = dx.fma(scale, fx);
+			fy = dy.fma(scale, fy);
+		}
+		double xSum = fx.reduceLanes(VectorOperators.ADD);
+		double ySum = fy.reduceLanes(VectorOperators.ADD);
+		for (; j < count; j++) {
+			double dx = sx[j] - x;
+			double dy = sy[j] - y;
+			double distSquared = dx * dx + dy * dy;
+			double dist = Math.sqrt(distSquared);
+			double scale = sm[j] / ((distSquared + epsilon) * dist);
+			xSum += dx * scale;
+			ySum += dy * scale;
+		}
+		double m = Universe.G * Particle.mass;
+		xForce += xSum * m;
+		yForce += ySum * m;
+	}
+
+	/**
+	 * Adds the force the batch exerts on a particle at the given location to
+	 * the force worked out so far
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void apply(double x, double y, double z) {
+		double[] sx = this.x, sy = this.y, sz = this.z, sm = this.mass;
+		double epsilon = Universe.epsilon;
+		DoubleVector px = DoubleVector.broadcast(SPECIES, x);
+		DoubleVector py = DoubleVector.broadcast(SPECIES, y);
+		DoubleVector pz = DoubleVector.broadcast(SPECIES, z);
+		DoubleVector fx = DoubleVector.zero(SPECIES), fy = fx, fz = fx;
+		int lanes = SPECIES.length();
+		int upper = SPECIES.loopBound(count);
+		int j = 0;
+		for (; j < upper; j += lanes) {
+			DoubleVector dx = DoubleVector.fromArray(SPECIES, sx, j).sub(px);
+			DoubleVector dy = DoubleVector.fromArray(SPECIES, sy, j).sub(py);
+			DoubleVector dz = DoubleVector.fromArray(SPECIES, sz, j).sub(pz);
+			DoubleVector distSquared = dx.mul(dx).add(dy.mul(dy))
+					.add(dz.mul(dz));
+			DoubleVector scale = DoubleVector.fromArray(SPECIES, sm, j).div(
+					distSquared.add(epsilon).mul(distSquared.sqrt()));
+			fx = dx.fma(scale, fx);
+			fy = dy.fma(scale, fy);
+			fz = dz.fma(scale, fz);
+		}
+		double xSum = fx.reduceLanes(VectorOperators.ADD);
+		double ySum = fy.reduceLanes(VectorOperators.ADD);
+		double zSum = fz.reduceLanes(VectorOperators.ADD);
+		for (; j < count; j++) {
+			double dx = sx[j] - x;
+			double dy = sy[j] - y;
+			double dz = sz[j] - z;
+			double distSquared = dx * dx + dy * dy + dz * dz;
+			double dist = Math.sqrt(distSquared);
+			double scale = sm[j] / ((distSquared + epsilon) * dist);
+			xSum += dx * scale;
+			ySum += dy * scale;
+			zSum += dz * scale;
+		}
+		double m = Universe.G * Particle.mass;
+		xForce += xSum * m;
+		yForce += ySum * m;
+		zForce += zSum * m;
+	}
+}